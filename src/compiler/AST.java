@@ -28,13 +28,16 @@ public class AST {
 	// Function declaration
 	public static class FunNode extends DecNode {
 		final String id;
+		final int symbol; // simbolo di id (vedi Symbols)
 		final TypeNode retType;
 		final List<ParNode> parlist;
 		final List<DecNode> declist; 
 		final Node exp;
+		STentry entry; // entry della dichiarazione (per i metodi quella nella virtual table), usata dalle chiamate
 
-		FunNode(String i, TypeNode rt, List<ParNode> pl, List<DecNode> dl, Node e) {
+		FunNode(String i, int s, TypeNode rt, List<ParNode> pl, List<DecNode> dl, Node e) {
 	    	id=i; 
+	    	symbol=s;
 	    	retType=rt; 
 	    	parlist=Collections.unmodifiableList(pl); 
 	    	declist=Collections.unmodifiableList(dl); 
@@ -49,7 +52,8 @@ public class AST {
 
 	public static class ParNode extends DecNode {
 		final String id;
-		ParNode(String i, TypeNode t) {id = i; type = t;}
+		final int symbol;
+		ParNode(String i, int s, TypeNode t) {id = i; symbol = s; type = t;}
 
 		@Override
 		public <S,E extends Exception> S accept(BaseASTVisitor<S,E> visitor) throws E {return visitor.visitNode(this);}
@@ -57,8 +61,9 @@ public class AST {
 	
 	public static class VarNode extends DecNode {
 		final String id;
+		final int symbol;
 		final Node exp;
-		VarNode(String i, TypeNode t, Node v) {id = i; type = t; exp = v;}
+		VarNode(String i, int s, TypeNode t, Node v) {id = i; symbol = s; type = t; exp = v;}
 
 		@Override
 		public <S,E extends Exception> S accept(BaseASTVisitor<S,E> visitor) throws E {return visitor.visitNode(this);}
@@ -173,11 +178,13 @@ public class AST {
 	
 	public static class CallNode extends Node {
 		final String id;
+		final int symbol;
 		final List<Node> arglist;
 		STentry entry;
 		int nl;
-		CallNode(String i, List<Node> p) {
+		CallNode(String i, int s, List<Node> p) {
 			id = i; 
+			symbol = s;
 			arglist = Collections.unmodifiableList(p);
 		}
 
@@ -187,9 +194,10 @@ public class AST {
 	
 	public static class IdNode extends Node {
 		final String id;
+		final int symbol;
 		STentry entry;
 		int nl;
-		IdNode(String i) {id = i;}
+		IdNode(String i, int s) {id = i; symbol = s;}
 
 		@Override
 		public <S,E extends Exception> S accept(BaseASTVisitor<S,E> visitor) throws E {return visitor.visitNode(this);}
@@ -214,15 +222,19 @@ public class AST {
 	// dichiarazione di una classe
 	public static class ClassNode extends DecNode {
 		final String id;
+		final int symbol;
 		final String superID;  // ID classe padre
+		final int superSymbol; // simbolo della classe padre, -1 se non eredita
 		final List<FieldNode> fields;
 		final List<MethodNode> methods;
 		ClassTypeNode type; // tipo della classe
 		STentry superEntry; // entry della classe padre
 
-		public ClassNode(final String i, final String fatherID, final List<FieldNode> f, final List<MethodNode> m) {
+		public ClassNode(final String i, final int s, final String fatherID, final int fatherSymbol, final List<FieldNode> f, final List<MethodNode> m) {
 			id = i;
+			symbol = s;
 			superID = fatherID;
+			superSymbol = fatherSymbol;
 			fields = Collections.unmodifiableList(f);
 			methods = Collections.unmodifiableList(m);
 		}
@@ -236,8 +248,8 @@ public class AST {
 	// dichiarazione di un campo
 	public static class FieldNode extends ParNode {
 		public int offset;
-		FieldNode(String i, TypeNode t) {
-			super(i, t);
+		FieldNode(String i, int s, TypeNode t) {
+			super(i, s, t);
 		}
 
 		@Override
@@ -251,8 +263,8 @@ public class AST {
 		public String label;
 		public int offset;
 
-		MethodNode(final String i, final TypeNode rt, final List<ParNode> pl, final List<DecNode> dl, final Node e) {
-			super(i, rt, pl, dl, e);
+		MethodNode(final String i, final int s, final TypeNode rt, final List<ParNode> pl, final List<DecNode> dl, final Node e) {
+			super(i, s, rt, pl, dl, e);
 		}
 
 		@Override
@@ -264,15 +276,19 @@ public class AST {
 	// invocazione metodo dall'esterno
 	public static class ClassCallNode extends Node {
 		final String objID; // id oggetto
+		final int objSymbol;
 		final String methodID; // id metodo
+		final int methodSymbol;
 		final List<Node> arglist;
 		STentry entry; // entry dell'oggetto
 		STentry methodEntry; // entry del metodo
 		int nl;
 
-		public ClassCallNode(final String oID, final String mID, final List<Node> args) {
+		public ClassCallNode(final String oID, final int oSymbol, final String mID, final int mSymbol, final List<Node> args) {
 			objID = oID;
+			objSymbol = oSymbol;
 			methodID = mID;
+			methodSymbol = mSymbol;
 			arglist = Collections.unmodifiableList(args);
 		}
 
@@ -282,14 +298,28 @@ public class AST {
 		}
 	}
 
+	// lettura di un campo di un oggetto: non esiste nel linguaggio, la produce l'inlining dei metodi
+	public static class FieldAccessNode extends Node {
+		final Node object; // espressione che vale l'object pointer
+		final STentry entry; // entry del campo
+		FieldAccessNode(Node o, STentry e) {object = o; entry = e;}
+
+		@Override
+		public <S, E extends Exception> S accept(final BaseASTVisitor<S, E> visitor) throws E {
+			return visitor.visitNode(this);
+		}
+	}
+
 	// istanziazione di un oggetto
 	public static class NewNode extends Node {
 		final String classID;
+		final int classSymbol;
 		final List<Node> arglist;
 		STentry entry; // entry della classe
 
-		public NewNode(final String cID, final List<Node> args) {
+		public NewNode(final String cID, final int cSymbol, final List<Node> args) {
 			classID = cID;
+			classSymbol = cSymbol;
 			arglist = Collections.unmodifiableList(args);
 		}
 
@@ -379,9 +409,11 @@ public class AST {
 	// riferimento ad una classe (tipo quando si invoca un metodo dall'esterno)
 	public static class RefTypeNode extends TypeNode {
 		final String classID;
+		final int classSymbol;
 
-		public RefTypeNode(String classID) {
+		public RefTypeNode(String classID, int classSymbol) {
 			this.classID = classID;
+			this.classSymbol = classSymbol;
 		}
 
 		@Override
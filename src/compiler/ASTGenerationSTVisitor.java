@@ -13,9 +13,23 @@ public class ASTGenerationSTVisitor extends FOOLBaseVisitor<Node> {
 
 	String indent;
     public boolean print;
+    private final Symbols symbols; // simboli degli identificatori della compilazione
+    private final Types types;
 	
-    public ASTGenerationSTVisitor() {}
-    public ASTGenerationSTVisitor(boolean debug) { print=debug; }
+    public ASTGenerationSTVisitor() {this(new CompilationContext());}
+    public ASTGenerationSTVisitor(boolean debug) {this(new CompilationContext(), debug);}
+    public ASTGenerationSTVisitor(CompilationContext context) {
+    	symbols = context.symbols;
+    	types = context.types;
+    }
+    public ASTGenerationSTVisitor(CompilationContext context, boolean debug) {
+    	this(context);
+    	print=debug;
+    }
+
+    private int symbol(String id) {
+    	return id == null ? -1 : symbols.intern(id);
+    }
         
     private void printVarAndProdName(ParserRuleContext ctx) {
         String prefix="";        
@@ -144,7 +158,7 @@ public class ASTGenerationSTVisitor extends FOOLBaseVisitor<Node> {
 
 		Node n = null;
 		if (c.ID() != null) { //non-incomplete ST
-			n = new VarNode(c.ID().getText(), (TypeNode) visit(c.type()), visit(c.exp()));
+			n = new VarNode(c.ID().getText(), symbol(c.ID().getText()), (TypeNode) visit(c.type()), visit(c.exp()));
 			n.setLine(c.VAR().getSymbol().getLine());
 		}
 
@@ -157,7 +171,7 @@ public class ASTGenerationSTVisitor extends FOOLBaseVisitor<Node> {
 
 		List<ParNode> parList = new ArrayList<>();
 		for (int i = 1; i < c.ID().size(); i++) { 
-			ParNode p = new ParNode(c.ID(i).getText(),(TypeNode) visit(c.type(i)));
+			ParNode p = new ParNode(c.ID(i).getText(), symbol(c.ID(i).getText()), (TypeNode) visit(c.type(i)));
 			p.setLine(c.ID(i).getSymbol().getLine());
 			parList.add(p);
 		}
@@ -166,7 +180,7 @@ public class ASTGenerationSTVisitor extends FOOLBaseVisitor<Node> {
 		for (DecContext dec : c.dec()) decList.add((DecNode) visit(dec));
 		Node n = null;
 		if (c.ID().size()>0) { //non-incomplete ST
-			n = new FunNode(c.ID(0).getText(), (TypeNode)visit(c.type(0)),parList,decList,visit(c.exp()));
+			n = new FunNode(c.ID(0).getText(), symbol(c.ID(0).getText()), (TypeNode)visit(c.type(0)),parList,decList,visit(c.exp()));
 			n.setLine(c.FUN().getSymbol().getLine());
 		}
         return n;
@@ -175,19 +189,19 @@ public class ASTGenerationSTVisitor extends FOOLBaseVisitor<Node> {
 	@Override
 	public Node visitIntType(IntTypeContext c) {
 		if (print) printVarAndProdName(c);
-		return new IntTypeNode();
+		return Types.INT;
 	}
 
 	@Override
 	public Node visitBoolType(BoolTypeContext c) {
 		if (print) printVarAndProdName(c);
-		return new BoolTypeNode();
+		return Types.BOOL;
 	}
 
 	@Override
 	public Node visitIdType(IdTypeContext c) {
 		if (print) printVarAndProdName(c);
-		return new RefTypeNode(c.ID().getText());
+		return types.ref(symbol(c.ID().getText()));
 	}
 
 	@Override
@@ -235,7 +249,7 @@ public class ASTGenerationSTVisitor extends FOOLBaseVisitor<Node> {
 	@Override
 	public Node visitId(IdContext c) {
 		if (print) printVarAndProdName(c);
-		Node n = new IdNode(c.ID().getText());
+		Node n = new IdNode(c.ID().getText(), symbol(c.ID().getText()));
 		n.setLine(c.ID().getSymbol().getLine());
 		return n;
 	}
@@ -245,7 +259,7 @@ public class ASTGenerationSTVisitor extends FOOLBaseVisitor<Node> {
 		if (print) printVarAndProdName(c);		
 		List<Node> arglist = new ArrayList<>();
 		for (ExpContext arg : c.exp()) arglist.add(visit(arg));
-		Node n = new CallNode(c.ID().getText(), arglist);
+		Node n = new CallNode(c.ID().getText(), symbol(c.ID().getText()), arglist);
 		n.setLine(c.ID().getSymbol().getLine());
 		return n;
 	}
@@ -261,7 +275,7 @@ public class ASTGenerationSTVisitor extends FOOLBaseVisitor<Node> {
 		String methodID = c.ID(1).getText();
 		String objID = c.ID(0).getText();
 
-		Node n = new ClassCallNode(objID, methodID, arglist);
+		Node n = new ClassCallNode(objID, symbol(objID), methodID, symbol(methodID), arglist);
 		n.setLine(c.ID(0).getSymbol().getLine());
 		return n;
 	}
@@ -277,7 +291,7 @@ public class ASTGenerationSTVisitor extends FOOLBaseVisitor<Node> {
 		List<Node> arglist = new ArrayList<>();
 		for (ExpContext arg : c.exp()) arglist.add(visit(arg));
 
-		Node n = new NewNode(classID, arglist);
+		Node n = new NewNode(classID, symbol(classID), arglist);
 		n.setLine(c.ID().getSymbol().getLine());
 		return n;
 	}
@@ -300,7 +314,7 @@ public class ASTGenerationSTVisitor extends FOOLBaseVisitor<Node> {
 		// Reading fields
 		List<FieldNode> fieldlist = new ArrayList<>();
 		for(int j=0; i < c.ID().size(); i++, j++) {
-			FieldNode n = new FieldNode(c.ID(i).getText(), (TypeNode) visit(c.type(j)));
+			FieldNode n = new FieldNode(c.ID(i).getText(), symbol(c.ID(i).getText()), (TypeNode) visit(c.type(j)));
 			n.setLine(c.ID(i).getSymbol().getLine());
 			fieldlist.add(n);
 		}
@@ -311,7 +325,7 @@ public class ASTGenerationSTVisitor extends FOOLBaseVisitor<Node> {
 			methodlist.add((MethodNode) visit(meth));
 		}
 
-		Node n = new ClassNode(classID, superID, fieldlist, methodlist);
+		Node n = new ClassNode(classID, symbol(classID), superID, symbol(superID), fieldlist, methodlist);
 		n.setLine(c.ID(0).getSymbol().getLine());
 		return n;
 	}
@@ -323,7 +337,7 @@ public class ASTGenerationSTVisitor extends FOOLBaseVisitor<Node> {
 
 		List<ParNode> parList = new ArrayList<>();
 		for (int i = 1; i < c.ID().size(); i++) {
-			ParNode p = new ParNode(c.ID(i).getText(), (TypeNode) visit(c.type(i)));
+			ParNode p = new ParNode(c.ID(i).getText(), symbol(c.ID(i).getText()), (TypeNode) visit(c.type(i)));
 			p.setLine(c.ID(i).getSymbol().getLine());
 			parList.add(p);
 		}
@@ -332,7 +346,7 @@ public class ASTGenerationSTVisitor extends FOOLBaseVisitor<Node> {
 		for (DecContext dec : c.dec()) decList.add((DecNode) visit(dec));
 		Node n = null;
 		if (c.ID().size() > 0) { //non-incomplete ST
-			n = new MethodNode(c.ID(0).getText(), (TypeNode)visit(c.type(0)), parList, decList, visit(c.exp()));
+			n = new MethodNode(c.ID(0).getText(), symbol(c.ID(0).getText()), (TypeNode)visit(c.type(0)), parList, decList, visit(c.exp()));
 			n.setLine(c.FUN().getSymbol().getLine());
 		}
 
@@ -0,0 +1,87 @@
+package compiler;
+
+import compiler.exc.IncomplException;
+import compiler.exc.TypeException;
+import compiler.lib.CompilationContext;
+import compiler.lib.Node;
+import org.antlr.v4.runtime.CharStream;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.tree.ParseTree;
+import svm.ObjectFile;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.stream.Stream;
+
+/*
+ * Compila tutti i file .fool di una directory (quella corrente se non indicata), scrivendo accanto ad ognuno
+ * il file oggetto .svm. Ogni compilazione ha il suo CompilationContext, quindi i file sono compilati in parallelo.
+ */
+public class Batch {
+	public static void main(String[] args) throws IOException {
+		Path dir = Paths.get(args.length > 0 ? args[0] : ".");
+		List<Path> sources;
+		try (Stream<Path> files = Files.list(dir)) {
+			sources = files.filter(f -> f.toString().endsWith(".fool")).sorted().toList();
+		}
+
+		List<ObjectFile> programs = compileAll(sources);
+
+		int failed = 0;
+		for (int i = 0; i < sources.size(); i++) {
+			if (programs.get(i) == null) {
+				System.out.println(sources.get(i) + ": compilation failed");
+				failed++;
+			} else {
+				programs.get(i).write(Paths.get(sources.get(i) + ".svm"));
+			}
+		}
+		System.out.println("Compiled " + (sources.size() - failed) + " of " + sources.size() + " files.");
+		if (failed > 0) System.exit(1);
+	}
+
+	// compila i sorgenti in parallelo sul ForkJoinPool comune: nella lista risultato null per quelli con errori
+	public static List<ObjectFile> compileAll(List<Path> sources) {
+		return sources.parallelStream().map(Batch::compileFile).toList();
+	}
+
+	public static ObjectFile compileFile(Path source) {
+		try {
+			return compile(CharStreams.fromPath(source));
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// una compilazione completa, fino al codice assemblato: null se ci sono errori
+	public static ObjectFile compile(CharStream chars) {
+		CompilationContext context = new CompilationContext();
+
+		FOOLLexer lexer = new FOOLLexer(chars);
+		FOOLParser parser = new FOOLParser(new CommonTokenStream(lexer));
+		ParseTree st = parser.prog();
+
+		Node ast = new ASTGenerationSTVisitor(context).visit(st);
+		// symbol table e type checking in una sola visita
+		SemanticAnalysisASTVisitor analysisVisitor = new SemanticAnalysisASTVisitor(context);
+		try {
+			analysisVisitor.visit(ast);
+		} catch (IncomplException ignored) {
+		} catch (TypeException e) {
+			System.out.println(chars.getSourceName() + ": type checking error in main program expression: " + e.text);
+		}
+
+		int frontEndErrors = lexer.lexicalErrors + parser.getNumberOfSyntaxErrors() + analysisVisitor.stErrors() + context.typeErrors;
+		if (frontEndErrors > 0) return null;
+
+		ast = new LambdaLiftingASTVisitor(context).visit(ast);
+		ast = new InliningASTVisitor(context).visit(ast);
+		ast = new ConstantFoldingASTVisitor().visit(ast);
+		return new CodeGenerationASTVisitor(context).visit(ast).assemble();
+	}
+}
@@ -4,340 +4,620 @@ import compiler.exc.*;
 import compiler.lib.*;
 import compiler.AST.*;
 
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 
-import static compiler.lib.FOOLlib.*;
+import static compiler.lib.Code.*;
 import static svm.ExecuteVM.*;
+import static svm.SVMParser.*;
 
-public class CodeGenerationASTVisitor extends BaseASTVisitor<String, VoidException> {
+public class CodeGenerationASTVisitor extends BaseASTVisitor<Code, VoidException> {
 
 	private final List<List<String>> dispatchTables = new ArrayList<>();
-
-	public CodeGenerationASTVisitor() {}
-	public CodeGenerationASTVisitor(boolean debug) {super(false, debug);} //enables print for debugging
+	// dispatch table di ogni classe per simbolo, per le chiamate di metodo con una sola destinazione possibile
+	private final SymbolMap<List<String>> classDispatchTables = new SymbolMap<>();
+	// le dispatch table sono allocate per prime, dall'indirizzo 0 dello heap: il loro indirizzo e' noto a compile time
+	private final List<Integer> dispatchPointers = new ArrayList<>();
+	private int heapTop = 0;
+
+	// per ogni cella del frame corrente (da fp-1 verso la cima dello stack) il suo contenuto (SLOT_VALUE,
+	// SLOT_REFERENCE o SLOT_FRAME): serve a generare le mappe dello stack lette dalla SVM
+	private List<Integer> stackSlots = new ArrayList<>();
+
+	// chiamate in posizione di coda (il loro valore e' il risultato della funzione che le contiene), etichette
+	// delle funzioni (assegnate prima di visitarne il corpo) e funzione di cui si sta generando il corpo
+	private final Set<Node> tailCalls = new HashSet<>();
+	private final Map<STentry, String> functionLabels = new HashMap<>();
+	private FunNode currentFunction = null;
+
+	// con il display: funzioni che all'ingresso registrano il proprio frame nel display (i metodi lo fanno sempre)
+	// e se si sta generando il corpo di un metodo, dove il nesting level 1 e' l'oggetto
+	private final Set<STentry> displayed = new HashSet<>();
+	private boolean insideMethod = false;
+
+	// in modalita' streaming il codice viene scritto su out man mano che e' generato e la visita ritorna null:
+	// il codice di funzioni e metodi, che va in fondo al programma, viene parcheggiato in un file temporaneo
+	private final Writer out;
+	private Writer spool;
+
+	private final CompilationContext context;
+
+	public CodeGenerationASTVisitor(CompilationContext context) {this.context = context; this.out = null;}
+	public CodeGenerationASTVisitor(CompilationContext context, boolean debug) { //enables print for debugging
+		super(false, debug);
+		this.context = context;
+		this.out = null;
+	}
+	public CodeGenerationASTVisitor(CompilationContext context, Writer out) {this.context = context; this.out = out;}
 
 	@Override
-	public String visitNode(ProgLetInNode n) {
+	public Code visitNode(ProgLetInNode n) {
 		if (print) printNode(n);
+		if (out != null) return stream(n);
 
-		String declCode = null;
-		for (Node dec : n.declist) {
-			declCode = nlJoin(declCode, visit(dec));
+		Code declCode = null;
+		stackSlots = new ArrayList<>(List.of(SLOT_VALUE)); // push 0
+		for (DecNode dec : n.declist) {
+			declCode = join(declCode, visit(dec));
+			stackSlots.add(dec instanceof VarNode && dec.getType() instanceof RefTypeNode ? SLOT_REFERENCE : SLOT_VALUE);
 		}
 
-		return nlJoin(
-			"push 0",	
+		return optimize(join(
+			push(0),	
+			context.display ? setDisplay(0) : null, // frame of the global declarations
 			declCode, // generate code for declarations (allocation)			
 			visit(n.exp), // generate code for the program body
-			"halt", // end of program
-			getCode() // generate the code for function (and method) bodies
-		);
+			op(HALT), // end of program
+			context.getCode() // generate the code for function (and method) bodies
+		));
+	}
+
+	// genera il programma una dichiarazione alla volta: in memoria c'e' solo il codice della dichiarazione corrente
+	private Code stream(ProgLetInNode n) {
+		try {
+			Path spoolFile = Files.createTempFile("fool", ".asm");
+			try {
+				try (Writer spool = Files.newBufferedWriter(spoolFile)) {
+					this.spool = spool;
+					join(push(0), context.display ? setDisplay(0) : null).write(out);
+					stackSlots = new ArrayList<>(List.of(SLOT_VALUE)); // push 0
+					for (DecNode dec : n.declist) {
+						Code decCode = visit(dec);
+						if (decCode != null) optimize(decCode).write(out);
+						stackSlots.add(dec instanceof VarNode && dec.getType() instanceof RefTypeNode ? SLOT_REFERENCE : SLOT_VALUE);
+					}
+					optimize(join(visit(n.exp), op(HALT))).write(out);
+				} finally {
+					this.spool = null;
+				}
+				try (Reader bodies = Files.newBufferedReader(spoolFile)) {
+					bodies.transferTo(out);
+				}
+				out.flush();
+			} finally {
+				Files.delete(spoolFile);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return null;
+	}
+
+	// codice di una funzione o di un metodo, da mettere in fondo al programma
+	private void putBody(Code body) {
+		if (spool == null) {
+			context.putCode(body);
+			return;
+		}
+		try {
+			optimize(body).write(spool);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	// il codice generato passa dall'ottimizzatore peephole del contesto, se c'e' (in streaming un frammento alla volta)
+	private Code optimize(Code code) {
+		return context.peephole == null ? code : context.peephole.optimize(code);
 	}
 
 	@Override
-	public String visitNode(ProgNode n) {
+	public Code visitNode(ProgNode n) {
 		if (print) printNode(n);
-		return nlJoin(
+		if (out != null) {
+			try {
+				optimize(join(visit(n.exp), op(HALT))).write(out);
+				out.flush();
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return null;
+		}
+		return optimize(join(
 			visit(n.exp), // generate code for function body
-			"halt" // end fo program
+			op(HALT) // end fo program
 				// no call to getCode() because the ProgNode has no declarations, therefore no functions bodies to generate
-		);
+		));
 	}
 
 	@Override
-	public String visitNode(FunNode n) {
+	public Code visitNode(FunNode n) {
 		if (print) printNode(n,n.id);
 
-		String declCode = null, popDecl = null, popParl = null;
+		Code declCode = null;
 
-		for (Node dec : n.declist) {
-			declCode = nlJoin(declCode, visit(dec));
-			popDecl = nlJoin(popDecl, "pop");
-		}
+		String funl = context.freshFunLabel();
+		functionLabels.put(n.entry, funl);
+		int level = n.entry.nl + 1;
+		boolean display = context.display && level < DISPLAY_SIZE && nestingDepth(n) >= 2;
+		if (display) displayed.add(n.entry);
 
-		for (int i=0; i<n.parlist.size(); i++) {
-			popParl = nlJoin(popParl, "pop");
+		List<Integer> outerSlots = stackSlots;
+		stackSlots = new ArrayList<>(List.of(SLOT_VALUE)); // return address
+		for (DecNode dec : n.declist) {
+			declCode = join(declCode, visit(dec));
+			stackSlots.add(dec instanceof VarNode && dec.getType() instanceof RefTypeNode ? SLOT_REFERENCE : SLOT_VALUE);
 		}
 
-		String funl = freshFunLabel();
+		Code bodyCode = visitBody(n);
+		stackSlots = outerSlots;
 
-		putCode(
-			nlJoin("/* function "+n.id+" */",
-				funl+":",
-				"cfp", // set $fp to $sp value
-				"lra", // load $ra value
+		putBody(
+			join(comment("function "+n.id),
+				label(funl),
+				op(ENTER), // set $fp to $sp value and push $ra value
+				display ? setDisplay(level) : null, // functions nested in this one find its frame in the display
 
-				"/* local declaration code */",
+				comment("local declaration code"),
 				declCode, // generate code for local declarations (they use the new $fp!!!)
 
-				"/* function body */",
-				visit(n.exp), // generate code for function body expression
-				"stm", // set $tm to popped value (function result)
-
-				"/* removing local declaration */",
-				popDecl, // remove local declarations from stack
-				"sra", // set $ra to popped value
-				"pop", // remove Access Link from stack
-
-				"/* removing parameters */",
-				popParl, // remove parameters from stack
-				"sfp", // set $fp to popped value (Control Link)
-				"ltm", // load $tm value (function result)
-				"lra", // load $ra value
-				"js"  // jump to popped address
+				comment("function body"),
+				bodyCode, // generate code for function body expression
+				op(STORETM), // set $tm to popped value (function result)
+
+				comment("removing local declaration"),
+				popn(n.declist.size()), // remove local declarations from stack
+				op(STORERA), // set $ra to popped value
+
+				comment("removing parameters"),
+				popn(1 + n.parlist.size()), // remove Access Link and parameters from stack
+				op(STOREFP), // set $fp to popped value (Control Link)
+				op(LOADTM), // load $tm value (function result)
+				op(RET)  // jump to $ra value
 			)
 		);
 
-		return "push "+funl;		
+		return push(funl);		
+	}
+
+	// visita il corpo di una funzione o di un metodo, dopo averne segnato le chiamate in posizione di coda
+	private Code visitBody(FunNode n) {
+		markTailCalls(n.exp);
+		FunNode outerFunction = currentFunction;
+		currentFunction = n;
+		Code bodyCode = visit(n.exp);
+		currentFunction = outerFunction;
+		return bodyCode;
+	}
+
+	private void markTailCalls(Node exp) {
+		if (exp instanceof IfNode ifNode) {
+			markTailCalls(ifNode.th);
+			markTailCalls(ifNode.el);
+		} else if (exp instanceof CallNode || exp instanceof ClassCallNode) {
+			tailCalls.add(exp);
+		}
 	}
 
 	@Override
-	public String visitNode(VarNode n) {
+	public Code visitNode(VarNode n) {
 		if (print) printNode(n,n.id);
 		return visit(n.exp);
 	}
 
 	@Override
-	public String visitNode(PrintNode n) {
+	public Code visitNode(PrintNode n) {
 		if (print) printNode(n);
-		return nlJoin(
+		return join(
 			visit(n.exp),
-			"print"
+			op(PRINT)
 		);
 	}
 
 	@Override
-	public String visitNode(IfNode n) {
+	public Code visitNode(IfNode n) {
 		if (print) printNode(n);
-	 	String l1 = freshLabel();
-	 	String l2 = freshLabel();		
-		return nlJoin(
-			visit(n.cond),
-			"push 1",
-			"beq "+l1,
+	 	String l1 = context.freshLabel();
+	 	String l2 = context.freshLabel();		
+		return join(
+			branchIf(n.cond, true, l1), // jump to the "then" branch if the condition holds
 			visit(n.el),
-			"b "+l2,
-			l1+":",
+			branch(BRANCH, l2),
+			label(l1),
 			visit(n.th),
-			l2+":"
+			label(l2)
 		);
 	}
 
 	@Override
-	public String visitNode(EqualNode n) {
+	public Code visitNode(EqualNode n) {
 		if (print) printNode(n);
-	 	String l1 = freshLabel();
-	 	String l2 = freshLabel();
-		return nlJoin(
-			visit(n.left),
-			visit(n.right),
-			"beq "+l1,
-			"push 0",
-			"b "+l2,
-			l1+":",
-			"push 1",
-			l2+":"
+	 	String l1 = context.freshLabel();
+	 	String l2 = context.freshLabel();
+		return join(
+			visitOperands(n.left, n.right),
+			branch(BRANCHEQ, l1),
+			push(0),
+			branch(BRANCH, l2),
+			label(l1),
+			push(1),
+			label(l2)
 		);
 	}
 
 	@Override
-	public String visitNode(LessEqualNode n) {
+	public Code visitNode(LessEqualNode n) {
 		if (print) printNode(n);
-		String l1 = freshLabel();
-		String l2 = freshLabel();
-		return nlJoin(
-				visit(n.left),
-				visit(n.right),
-				"bleq "+l1,
-				"push 0",
-				"b "+l2,
-				l1+":",
-				"push 1",
-				l2+":"
+		String l1 = context.freshLabel();
+		String l2 = context.freshLabel();
+		return join(
+				visitOperands(n.left, n.right),
+				branch(BRANCHLESSEQ, l1),
+				push(0),
+				branch(BRANCH, l2),
+				label(l1),
+				push(1),
+				label(l2)
 		);
 	}
 
 	@Override
-	public String visitNode(GreaterEqualNode n) {
+	public Code visitNode(GreaterEqualNode n) {
 		if (print) printNode(n);
-		String l1 = freshLabel();
-		String l2 = freshLabel();
-		return nlJoin(
+		String l1 = context.freshLabel();
+		String l2 = context.freshLabel();
+		return join(
 				// since we can only check if "less or equal", we evaluate expressions in reverse order and check if less or equal
-				visit(n.right),
-				visit(n.left),
-				"bleq "+l1,
-				"push 0",
-				"b "+l2,
-				l1+":",
-				"push 1",
-				l2+":"
+				visitOperands(n.right, n.left),
+				branch(BRANCHLESSEQ, l1),
+				push(0),
+				branch(BRANCH, l2),
+				label(l1),
+				push(1),
+				label(l2)
 		);
 	}
 
 	@Override
-	public String visitNode(OrNode n) {
+	public Code visitNode(OrNode n) {
 		if (print) printNode(n);
-		String labelTrue = freshLabel();
-		String labelEnd = freshLabel();
-		return nlJoin(
+		String labelTrue = context.freshLabel();
+		String labelEnd = context.freshLabel();
+		return join(
 				// efficient or: we check the second expression only if the first one is false
-				visit(n.left),
-				"push 1",
-				"beq "+labelTrue,
-				visit(n.right),
-				"push 1",
-				"beq "+labelTrue,
-				"push 0",
-				"b "+labelEnd,
-				labelTrue+":",
-				"push 1",
-				labelEnd+":"
+				branchIf(n, true, labelTrue),
+				push(0),
+				branch(BRANCH, labelEnd),
+				label(labelTrue),
+				push(1),
+				label(labelEnd)
 		);
 	}
 
 	@Override
-	public String visitNode(AndNode n) {
+	public Code visitNode(AndNode n) {
 		if (print) printNode(n);
-		String labelFalse = freshLabel();
-		String labelEnd = freshLabel();
-		return nlJoin(
+		String labelFalse = context.freshLabel();
+		String labelEnd = context.freshLabel();
+		return join(
 				// efficient and: we check the second expression only if the first one is true
-				visit(n.left),
-				"push 0",
-				"beq " + labelFalse,
-				visit(n.right),
-				"push 0",
-				"beq " + labelFalse,
-				"push 1",
-				"b " + labelEnd,
-				labelFalse + ":",
-				"push 0",
-				labelEnd + ":"
+				branchIf(n, false, labelFalse),
+				push(1),
+				branch(BRANCH, labelEnd),
+				label(labelFalse),
+				push(0),
+				label(labelEnd)
 		);
 	}
 
+	/*
+	 * Codice di una condizione in posizione di salto: salta a target se la condizione vale when, altrimenti
+	 * prosegue con l'istruzione successiva, senza mai materializzare 0/1 sullo stack.
+	 * Confronti, not, and e or (con il loro cortocircuito) diventano direttamente salti; le altre espressioni
+	 * sono valutate e confrontate con il valore atteso.
+	 */
+	private Code branchIf(Node cond, boolean when, String target) {
+		if (cond instanceof BoolNode b) {
+			return b.val == when ? branch(BRANCH, target) : null;
+		}
+		if (cond instanceof NotNode not) {
+			return branchIf(not.exp, !when, target);
+		}
+		if (cond instanceof AndNode and) {
+			if (!when) return join(branchIf(and.left, false, target), branchIf(and.right, false, target));
+			String skip = context.freshLabel();
+			return join(branchIf(and.left, false, skip), branchIf(and.right, true, target), label(skip));
+		}
+		if (cond instanceof OrNode or) {
+			if (when) return join(branchIf(or.left, true, target), branchIf(or.right, true, target));
+			String skip = context.freshLabel();
+			return join(branchIf(or.left, true, skip), branchIf(or.right, false, target), label(skip));
+		}
+		if (cond instanceof EqualNode eq) {
+			return join(visitOperands(eq.left, eq.right), compareBranch(BRANCHEQ, when, target));
+		}
+		if (cond instanceof LessEqualNode le) {
+			return join(visitOperands(le.left, le.right), compareBranch(BRANCHLESSEQ, when, target));
+		}
+		if (cond instanceof GreaterEqualNode ge) {
+			return join(visitOperands(ge.right, ge.left), compareBranch(BRANCHLESSEQ, when, target));
+		}
+		return join(visit(cond), push(when ? 1 : 0), branch(BRANCHEQ, target));
+	}
+
+	// salto condizionato sui due operandi in cima allo stack: per saltare se il confronto e' falso
+	// si scavalca un salto incondizionato
+	private Code compareBranch(int opcode, boolean when, String target) {
+		if (when) return branch(opcode, target);
+		String skip = context.freshLabel();
+		return join(branch(opcode, skip), branch(BRANCH, target), label(skip));
+	}
+
 	@Override
-	public String visitNode(NotNode n) {
+	public Code visitNode(NotNode n) {
 		if (print) printNode(n);
-		return nlJoin(
+		return join(
 				// to invert 1 into 0 and 0 into 1, we compute x = 1-x
-				"push 1",
-				visit(n.exp),
-				"sub"
+				push(1),
+				visitOperand(n.exp, SLOT_VALUE),
+				op(SUB)
 		);
 	}
 
 	@Override
-	public String visitNode(TimesNode n) {
+	public Code visitNode(TimesNode n) {
 		if (print) printNode(n);
-		return nlJoin(
-			visit(n.left),
-			visit(n.right),
-			"mult"
+		return join(
+			visitOperands(n.left, n.right),
+			op(MULT)
 		);	
 	}
 
 	@Override
-	public String visitNode(DivNode n) {
+	public Code visitNode(DivNode n) {
 		if (print) printNode(n);
-		return nlJoin(
-				visit(n.left),
-				visit(n.right),
-				"div"
+		return join(
+				visitOperands(n.left, n.right),
+				op(DIV)
 		);
 	}
 
 	@Override
-	public String visitNode(PlusNode n) {
+	public Code visitNode(PlusNode n) {
 		if (print) printNode(n);
-		return nlJoin(
-			visit(n.left),
-			visit(n.right),
-			"add"				
+		return join(
+			visitOperands(n.left, n.right),
+			op(ADD)				
 		);
 	}
 
 	@Override
-	public String visitNode(MinusNode n) {
+	public Code visitNode(MinusNode n) {
 		if (print) printNode(n);
-		return nlJoin(
-				visit(n.left),
-				visit(n.right),
-				"sub"
+		return join(
+				visitOperands(n.left, n.right),
+				op(SUB)
 		);
 	}
 
 	@Override
-	public String visitNode(CallNode n) {
+	public Code visitNode(CallNode n) {
 		if (print) printNode(n, n.id);
+		if (isTailCall(n)) return tailCall(n);
 
-		String argCode = null, getAR = null;
+		Code argCode = null;
 
+		int level = n.entry.nl + 1; // nesting level del corpo del chiamato
+		boolean saveDisplay = displayed.contains(n.entry) || context.display && n.entry.type instanceof MethodTypeNode;
+		if (saveDisplay) stackSlots.add(SLOT_FRAME); // display entry of the callee's level, restored on return
+		stackSlots.add(SLOT_FRAME); // Control Link
 		for (int i=n.arglist.size()-1; i>=0; i--) {
-			argCode = nlJoin(argCode, visit(n.arglist.get(i)));
+			argCode = join(argCode, visit(n.arglist.get(i)));
+			stackSlots.add(typeKind(parameters(n.entry.type).get(i)));
 		}
+		// l'Access Link di un metodo e' l'oggetto, quello di una funzione e' un frame
+		Code stackMap = stackMap(n.entry.type instanceof MethodTypeNode ? SLOT_REFERENCE : SLOT_FRAME, n.arglist.size(), slotKind(n));
+		if (saveDisplay) stackSlots.remove(stackSlots.size()-1);
+
+		// il valore di una funzione e' sempre la sua etichetta: se e' gia' nota la chiamata e' diretta
+		String funl = n.entry.type instanceof MethodTypeNode ? null : functionLabels.get(n.entry);
+		Code jumpCode = funl != null
+				? call(funl) // jump to "id" body (saving address of subsequent instruction in $ra)
+				: join(
+					op(DUP), // duplicate Access Link (pointer to frame of function "id" declaration)
+					op(ADDI, n.entry.offset), // compute address of "id" declaration
+					op(LOADW), // load address of "id" function
+					op(JS) // jump to popped address (saving address of subsequent instruction in $ra)
+				);
+
+		return join(comment("calling "+n.id),
+			saveDisplay ? op(LOADDISPLAY, level) : null,
+			op(LOADFP), // load Control Link (pointer to frame of function "id" caller)
+
+			comment("argument expressions"),
+			argCode, // generate code for argument expressions in reversed order
+
+			comment("searching "+n.id+" declaration"),
+			frameAt(n.nl, n.entry.nl), // retrieve address of frame containing "id" declaration
+			jumpCode,
+			stackMap,
+			saveDisplay ? restoreDisplay(level) : null
+		);
+	}
 
-		for (int i = 0; i < n.nl-n.entry.nl; i++) {
-			getAR = nlJoin(getAR, "lw");
+	/*
+	 * Display: con context.display ogni funzione che contiene funzioni annidate almeno due livelli piu' in basso
+	 * (e ogni metodo) scrive all'ingresso il proprio frame nel display della SVM, alla cella del suo nesting level.
+	 * Chi la chiama salva prima la cella sullo stack (sotto la CL) e la ripristina al ritorno, quindi durante
+	 * l'esecuzione di una funzione il display contiene i frame della sua catena statica: un nome dichiarato due o
+	 * piu' livelli piu' in alto si raggiunge con un solo ldisp invece di un lw per livello. Nei metodi il livello 1
+	 * e' l'oggetto, che e' l'AL del frame del metodo. Le celle salvate sono indirizzi di frame, che la SVM trasla
+	 * quando sposta lo stack.
+	 */
+	private Code frameAt(int nl, int level) {
+		if (context.display && nl - level >= 2) {
+			if (insideMethod && level == 1) return join(op(LOADDISPLAY, 2), op(LOADW)); // l'oggetto e' l'AL del metodo
+			if (level < DISPLAY_SIZE) return op(LOADDISPLAY, level);
 		}
+		Code getAR = op(LOADFP);
+		for (int i = 0; i < nl - level; i++) {
+			getAR = join(getAR, op(LOADW)); // following the static chain (of Access Links)
+		}
+		return getAR;
+	}
+
+	private static Code setDisplay(int level) {
+		return join(op(LOADFP), op(STOREDISPLAY, level));
+	}
 
-		return nlJoin("/* calling "+n.id+" */",
-			"lfp", // load Control Link (pointer to frame of function "id" caller)
+	// al ritorno il risultato e' sopra la cella del display salvata prima della chiamata
+	private static Code restoreDisplay(int level) {
+		return join(op(SWAP), op(STOREDISPLAY, level));
+	}
 
-			"/* argument expressions */",
-			argCode, // generate code for argument expressions in reversed order
+	// numero massimo di livelli di funzioni annidate nelle dichiarazioni di una funzione
+	private static int nestingDepth(FunNode n) {
+		int depth = 0;
+		for (DecNode dec : n.declist) {
+			if (dec instanceof FunNode fun) depth = Math.max(depth, 1 + nestingDepth(fun));
+		}
+		return depth;
+	}
 
-			"/* searching "+n.id+" declaration */",
-			"lfp", getAR, // retrieve address of frame containing "id" declaration
-                          // by following the static chain (of Access Links)
+	// toglie n celle dalla cima dello stack
+	private static Code popn(int n) {
+		if (n == 0) return null;
+		return n == 1 ? op(POP) : op(POPN, n);
+	}
 
-            "stm", // set $tm to popped value (with the aim of duplicating top of stack)
-            "ltm", // load Access Link (pointer to frame of function "id" declaration)
-            "ltm", // duplicate top of stack
+	/*
+	 * Una chiamata in coda riusa il frame della funzione corrente: calcola argomenti e AL del chiamato, li scrive
+	 * al posto di AL e parametri correnti (la CL resta quella del chiamante), rimette in $ra il return address
+	 * salvato, libera return address e dichiarazioni locali e salta al chiamato senza js ne' call.
+	 * Il frame deve avere la stessa forma (numero e contenuto dei parametri, tipo di AL) perche' la mappa dello
+	 * stack del chiamante originale continui a descriverlo; la destinazione deve essere nota a compile time:
+	 * una funzione dichiarata fuori dalla funzione corrente o un metodo chiamato senza dispatch.
+	 */
+	private boolean isTailCall(CallNode n) {
+		if (!tailCalls.contains(n)) return false;
+		if (!functionLabels.containsKey(n.entry)) return false; // metodo, o funzione non ancora visitata
+		if (n.nl - n.entry.nl == 0) return false; // funzione locale: il suo AL e' proprio il frame da sostituire
+		if (!sameFrame(false, parameters(n.entry.type))) return false;
+		// il chiamante originale ripristina solo la cella del display della funzione corrente
+		return !displayed.contains(n.entry) || displayed.contains(currentFunction.entry) && n.entry.nl == currentFunction.entry.nl;
+	}
 
-            "push "+n.entry.offset, "add", // compute address of "id" declaration
-			"lw", // load address of "id" function
-            "js"  // jump to popped address (saving address of subsequent instruction in $ra)
-		);
+	// i metodi sono tutti allo stesso livello: la cella del display salvata dal chiamante originale e' la stessa
+	private boolean isTailCall(ClassCallNode n) {
+		if (!tailCalls.contains(n)) return false;
+		int classSymbol = ((RefTypeNode) n.entry.type).classSymbol;
+		if (context.typeRels.isOverridden(classSymbol, n.methodEntry.offset)) return false;
+		return sameFrame(true, parameters(n.methodEntry.type));
 	}
 
-	@Override
-	public String visitNode(IdNode n) {
-		if (print) printNode(n, n.id);
+	// l'AL di un metodo e' un oggetto, quello di una funzione un frame: la mappa dello stack del chiamante originale
+	// descrive la cella in un solo modo, e grow() trasla solo i frame, quindi una funzione non chiama in coda un metodo
+	// ne' un metodo una funzione
+	private boolean sameFrame(boolean method, List<TypeNode> parameters) {
+		if (currentFunction == null || (currentFunction instanceof MethodNode) != method) return false;
+		if (parameters.size() != currentFunction.parlist.size()) return false;
+		for (int i = 0; i < parameters.size(); i++) {
+			if (typeKind(parameters.get(i)) != typeKind(currentFunction.parlist.get(i).getType())) return false;
+		}
+		return true;
+	}
 
-		String getAR = null;
+	private Code tailCall(CallNode n) {
+		return tailCall(n.id, n.arglist, parameters(n.entry.type),
+				frameAt(n.nl, n.entry.nl), // Access Link of "id"
+				functionLabels.get(n.entry));
+	}
 
-		for (int i = 0; i < n.nl-n.entry.nl; i++) {
-			getAR = nlJoin(getAR, "lw");
+	private Code tailCall(ClassCallNode n) {
+		context.devirtualizedCalls++;
+		int classSymbol = ((RefTypeNode) n.entry.type).classSymbol;
+		return tailCall(n.objID+"."+n.methodID, n.arglist, parameters(n.methodEntry.type),
+				join(
+					frameAt(n.nl, n.entry.nl), // retrieve address of frame containing "id" declaration
+					op(ADDI, n.entry.offset), // address of object's dispatch pointer
+					op(LOADW),
+					op(DUP), // duplicate Access Link (the object)
+					op(LOADW), // null check: load the dispatch pointer
+					op(POP)
+				),
+				classDispatchTables.get(classSymbol).get(n.methodEntry.offset));
+	}
+
+	private Code tailCall(String id, List<Node> arglist, List<TypeNode> parameters, Code accessLink, String label) {
+		Code argCode = null, storeCode = null;
+
+		for (int i = arglist.size()-1; i >= 0; i--) {
+			argCode = join(argCode, visit(arglist.get(i)));
+			stackSlots.add(typeKind(parameters.get(i)));
+		}
+		stackSlots.subList(stackSlots.size() - arglist.size(), stackSlots.size()).clear();
+
+		storeCode = join(op(LOADFP), op(STOREW)); // Access Link
+		for (int i = 0; i < arglist.size(); i++) {
+			storeCode = join(storeCode, op(LOADFP), op(ADDI, i+1), op(STOREW));
 		}
 
-		return nlJoin(
-			"lfp", getAR, // retrieve address of frame containing "id" declaration
-						 // by following the static chain (of Access Links)
+		return join(comment("tail call "+id),
+			comment("argument expressions"),
+			argCode, // generate code for argument expressions in reversed order
+
+			comment("searching "+id+" declaration"),
+			accessLink,
+
+			comment("replacing the current frame"),
+			storeCode,
+			op(LOADFP), op(ADDI, -1), op(LOADW), op(STORERA), // return address of the current function
+			popn(stackSlots.size()), // return address e dichiarazioni locali
+			branch(BRANCH, label)
+		);
+	}
 
-			"push "+n.entry.offset, "add", // compute address of "id" declaration
-			"lw" // load value of "id" variable
+	@Override
+	public Code visitNode(IdNode n) {
+		if (print) printNode(n, n.id);
+
+		return join(
+			frameAt(n.nl, n.entry.nl), // retrieve address of frame containing "id" declaration
+
+			op(ADDI, n.entry.offset), // compute address of "id" declaration
+			op(LOADW) // load value of "id" variable
 		);
 	}
 
 	@Override
-	public String visitNode(BoolNode n) {
+	public Code visitNode(BoolNode n) {
 		if (print) printNode(n, n.val.toString());
-		return "push "+(n.val?1:0);
+		return push(n.val?1:0);
 	}
 
 	@Override
-	public String visitNode(IntNode n) {
+	public Code visitNode(IntNode n) {
 		if (print) printNode(n, n.val.toString());
-		return "push "+n.val;
+		return push(n.val);
 	}
 
 	@Override
-	public String visitNode(ClassNode n) {
+	public Code visitNode(ClassNode n) {
 		if (print) printNode(n, n.id);
 
-		String dispatchTableCode = null;
+		Code dispatchTableCode = null;
 		List<String> fatherDT;
 		List<String> myDT = new ArrayList<>();
 
@@ -346,7 +626,7 @@ public class CodeGenerationASTVisitor extends BaseASTVisitor<String, VoidExcepti
 			myDT.addAll(fatherDT);
 		}
 
-		// qui visito i metodi
+		// qui costruisco la Dispatch Table
 		for(int i = 0; i < n.methods.size(); i++) {
 			MethodNode method = n.methods.get(i);
 			method.label = "class" + dispatchTables.size() + "method" + i;
@@ -360,80 +640,169 @@ public class CodeGenerationASTVisitor extends BaseASTVisitor<String, VoidExcepti
 				// se il metodo fa overriding, sostituisco quello vecchio
 				myDT.set(methodOffset, methodLabel);
 			}
+		}
 
-			// visitare solo i metodi che non fanno overriding
-			visit(method);
+		// l'indirizzo della Dispatch Table deve essere noto prima di visitare i metodi (possono istanziare la classe)
+		List<TypeNode> fieldTypes = n.type.allFields;
+		dispatchTables.add(myDT);
+		classDispatchTables.put(n.symbol, myDT);
+		dispatchPointers.add(heapTop + fieldTypes.size() + 2);
+		heapTop += fieldTypes.size() + 2 + myDT.size();
 
-			// sulla cima dello stack viene lasciato l'indirizzo del metodo
+		// qui visito i metodi
+		for (MethodNode method : n.methods) {
+			visit(method);
 		}
 
 		// qui genero il codice
 		for (String methodLabel : myDT) {
-			dispatchTableCode = nlJoin(
+			dispatchTableCode = join(
 					dispatchTableCode,
 
 					// aggiungo alla Dispatch Table l'eitchetta del metodo (ovvero il suo indirizzo)
-					"push " + methodLabel,
-					"lhp",
-					"sw",
-
-					// incremento hp
-					"lhp",
-					"push 1",
-					"add",
-					"shp"
+					push(methodLabel),
+					storeOnHeap()
 			);
 		}
 
-		dispatchTables.add(myDT);
+		// prima della Dispatch Table scrivo l'header per il garbage collector:
+		// la dimensione del blocco (negata, per distinguerlo da un oggetto), per ogni campo
+		// (dall'ultimo al primo) 1 se e' un riferimento e 0 altrimenti, infine il numero di campi
+		Code headerCode = join(push(-(fieldTypes.size() + 2 + myDT.size())), storeOnHeap());
+		for (int i = fieldTypes.size()-1; i >= 0; i--) {
+			headerCode = join(headerCode,
+					push(fieldTypes.get(i) instanceof RefTypeNode ? 1 : 0),
+					storeOnHeap()
+			);
+		}
+		headerCode = join(headerCode, push(fieldTypes.size()), storeOnHeap());
 
-		return nlJoin(
-			"/* class " + n.id + " declaration */",
-				"lhp", // metto il dispatch pointer sullo stack
+		return join(
+			comment("class " + n.id + " declaration"),
+				headerCode,
+				op(LOADHP), // metto il dispatch pointer sullo stack
 				dispatchTableCode
 		);
 	}
 
+	// copia la cima dello stack nella prima cella libera dello heap e incrementa hp
+	private static Code storeOnHeap() {
+		return join(
+				op(LOADHP), // prendo l'heap pointer (sopra il valore da caricare)
+				op(STOREW),  // carico il valore sull'heap
+
+				// incremento heap pointer
+				op(LOADHP),
+				op(ADDI, 1),
+				op(STOREHP)
+		);
+	}
+
+	// visita first e poi second: mentre si valuta second il valore di first resta sullo stack
+	private Code visitOperands(Node first, Node second) {
+		Code firstCode = visit(first);
+		return join(firstCode, visitOperand(second, slotKind(first)));
+	}
+
+	// visita n mentre sulla cima dello stack c'e' un valore in attesa, con contenuto kind
+	private Code visitOperand(Node n, int kind) {
+		stackSlots.add(kind);
+		Code code = visit(n);
+		stackSlots.remove(stackSlots.size()-1);
+		return code;
+	}
+
+	private static int slotKind(Node n) {
+		return isReference(n) ? SLOT_REFERENCE : SLOT_VALUE;
+	}
+
+	// true se l'espressione ha come valore un riferimento ad un oggetto (o null)
+	private static boolean isReference(Node n) {
+		if (n instanceof NewNode) return true;
+		if (n instanceof IdNode id) return id.entry.type instanceof RefTypeNode;
+		if (n instanceof CallNode call) return returnType(call.entry.type) instanceof RefTypeNode;
+		if (n instanceof ClassCallNode call) return returnType(call.methodEntry.type) instanceof RefTypeNode;
+		if (n instanceof FieldAccessNode field) return field.entry.type instanceof RefTypeNode;
+		if (n instanceof IfNode ifNode) return isReference(ifNode.th) || isReference(ifNode.el);
+		if (n instanceof PrintNode print) return isReference(print.exp); // print restituisce il valore stampato
+		return false;
+	}
+
+	// contenuto della cella di un parametro di tipo t
+	private static int typeKind(TypeNode t) {
+		return t instanceof RefTypeNode ? SLOT_REFERENCE : SLOT_VALUE;
+	}
+
+	private static List<TypeNode> parameters(TypeNode t) {
+		if (t instanceof MethodTypeNode method) t = method.fun;
+		return ((ArrowTypeNode) t).parlist;
+	}
+
+	private static TypeNode returnType(TypeNode t) {
+		if (t instanceof MethodTypeNode method) t = method.fun;
+		return (t instanceof ArrowTypeNode arrow) ? arrow.returnType : null;
+	}
+
+	/*
+	 * Mappa dello stack, emessa subito dopo il js di una chiamata (il parser la associa all'indirizzo di ritorno):
+	 * la SVM la usa per trovare i riferimenti (garbage collector) e gli indirizzi di frame (quando sposta lo stack).
+	 * Contiene il numero di celle occupate da AL, argomenti e CL, il contenuto del risultato, poi il contenuto di
+	 * ogni cella dalla cima dello stack (l'AL del chiamato) fino al return address del chiamante.
+	 * Consuma dallo stato del frame la CL e gli argomenti della chiamata.
+	 */
+	private Code stackMap(int accessLink, int argCount, int result) {
+		int[] map = new int[3 + stackSlots.size()];
+		map[0] = argCount+2;
+		map[1] = result;
+		map[2] = accessLink;
+		for (int i = 0; i < stackSlots.size(); i++) {
+			map[3+i] = stackSlots.get(stackSlots.size()-1-i);
+		}
+		stackSlots.subList(stackSlots.size() - argCount - 1, stackSlots.size()).clear();
+		return gcmap(map);
+	}
+
 	@Override
-	public String visitNode(MethodNode n) {
+	public Code visitNode(MethodNode n) {
 		if (print) printNode(n, n.id);
 
-		String declCode = null, popDecl = null, popParl = null;
+		Code declCode = null;
 
-		for (Node dec : n.declist) {
-			declCode = nlJoin(declCode, visit(dec));
-			popDecl = nlJoin(popDecl, "pop");
+		List<Integer> outerSlots = stackSlots;
+		stackSlots = new ArrayList<>(List.of(SLOT_VALUE)); // return address
+		insideMethod = true;
+		for (DecNode dec : n.declist) {
+			declCode = join(declCode, visit(dec));
+			stackSlots.add(dec instanceof VarNode && dec.getType() instanceof RefTypeNode ? SLOT_REFERENCE : SLOT_VALUE);
 		}
 
-		for (int i = 0; i < n.parlist.size(); i++) {
-			popParl = nlJoin(popParl, "pop");
-		}
+		Code bodyCode = visitBody(n);
+		insideMethod = false; // i metodi sono dichiarati solo nelle classi, al livello piu' esterno
+		stackSlots = outerSlots;
 
-		putCode(
-				nlJoin(
-						"/* method "+n.id+" */",
-						n.label+":",
-						"cfp", // set $fp to $sp value
-						"lra", // load $ra value
+		putBody(
+				join(
+						comment("method "+n.id),
+						label(n.label),
+						op(ENTER), // set $fp to $sp value and push $ra value
+						context.display ? setDisplay(n.entry.nl + 1) : null, // frame of the method in the display
 
-						"/* local declaration code */",
+						comment("local declaration code"),
 						declCode, // generate code for local declarations
 
-						"/* method body */",
-						visit(n.exp), // generate code for function body expression
-						"stm", // set $tm to popped value (function result)
-
-						"/* removing local declaration */",
-						popDecl, // remove local declarations from stack
-						"sra", // set $ra to popped value
-						"pop", // remove Access Link from stack
-
-						"/* removing parameters */",
-						popParl, // remove parameters from stack
-						"sfp", // set $fp to popped value (Control Link)
-						"ltm", // load $tm value (function result)
-						"lra", // load $ra value
-						"js"  // jump to popped address
+						comment("method body"),
+						bodyCode, // generate code for function body expression
+						op(STORETM), // set $tm to popped value (function result)
+
+						comment("removing local declaration"),
+						popn(n.declist.size()), // remove local declarations from stack
+						op(STORERA), // set $ra to popped value
+
+						comment("removing parameters"),
+						popn(1 + n.parlist.size()), // remove Access Link and parameters from stack
+						op(STOREFP), // set $fp to popped value (Control Link)
+						op(LOADTM), // load $tm value (function result)
+						op(RET)  // jump to $ra value
 				)
 		);
 
@@ -441,102 +810,123 @@ public class CodeGenerationASTVisitor extends BaseASTVisitor<String, VoidExcepti
 	}
 
 	@Override
-	public String visitNode(NewNode n) {
+	public Code visitNode(NewNode n) {
 		if (print) printNode(n, n.classID);
 
-		String argCode = null;
+		Code argCode = null;
 
 		// Visito tutti gli argomenti (ognuno pusha il suo valore sullo stack)
 		for (int i = 0; i < n.arglist.size(); i++) {
-			argCode = nlJoin(argCode, visit(n.arglist.get(i)));
+			argCode = join(argCode, visit(n.arglist.get(i)));
+			stackSlots.add(slotKind(n.arglist.get(i)));
 		}
+		stackSlots.subList(stackSlots.size() - n.arglist.size(), stackSlots.size()).clear();
+
+		// header dell'oggetto per il garbage collector: il numero di campi
+		argCode = join(argCode, push(n.arglist.size()), storeOnHeap());
 
 		// Per ogni argomento, carico il suo valore sull'heap, incrementando hp
 		for (int i = 0; i < n.arglist.size(); i++) {
-			argCode = nlJoin(argCode,
-					"lhp", // prendo l'heap pointer (sopra il valore da caricare)
-					"sw",  // carico il valore sull'heap
-
-					// incremento heap pointer
-					"lhp",
-					"push 1",
-					"add",
-					"shp"
-			);
+			argCode = join(argCode, storeOnHeap());
 		}
 
-		return nlJoin(
-				"/* new " + n.classID + " */",
+		return join(
+				comment("new " + n.classID),
 				argCode,
 
-				// calcolo dispatch pointer
-				"push " + MEMSIZE,
-				"push " + n.entry.offset,
-				"add",
-				"lw",
+				// dispatch pointer della classe (le dispatch table non si spostano)
+				push(dispatchPointers.get(-n.entry.offset-2)),
 
 				// carico il dispatch pointer sull'heap
-				"lhp",
-				"sw",
+				op(LOADHP),
+				op(STOREW),
 
 				// carico sullo stack l'object pointer
-				"lhp",
+				op(LOADHP),
 
 				// incremento hp
-				"lhp",
-				"push 1",
-				"add",
-				"shp",
-				"/* end new " + n.classID + " */"
+				op(LOADHP),
+				op(ADDI, 1),
+				op(STOREHP),
+				comment("end new " + n.classID)
 		);
 	}
 
 	@Override
-	public String visitNode(ClassCallNode n) {
+	public Code visitNode(ClassCallNode n) {
 		if (print) printNode(n, n.objID+"."+n.methodID);
+		if (isTailCall(n)) return tailCall(n);
 
-		String argCode = null, getAR = null;
+		Code argCode = null;
 
+		int level = n.methodEntry.nl + 1; // nesting level del corpo del metodo
+		if (context.display) stackSlots.add(SLOT_FRAME); // display entry of the method's level, restored on return
+		stackSlots.add(SLOT_FRAME); // Control Link
 		for (int i = n.arglist.size()-1; i >= 0; i--) {
-			argCode = nlJoin(argCode, visit(n.arglist.get(i)));
+			argCode = join(argCode, visit(n.arglist.get(i)));
+			stackSlots.add(typeKind(parameters(n.methodEntry.type).get(i)));
 		}
+		Code stackMap = stackMap(SLOT_REFERENCE, n.arglist.size(), slotKind(n));
+		if (context.display) stackSlots.remove(stackSlots.size()-1);
+
+		// se nessuna sottoclasse del tipo statico dell'oggetto ridefinisce il metodo la destinazione e' quella
+		// della dispatch table del tipo statico: la chiamata e' diretta, ma il dispatch pointer viene comunque
+		// letto (e scartato) perche' una chiamata su null fallisca come quella attraverso la dispatch table
+		int classSymbol = ((RefTypeNode) n.entry.type).classSymbol;
+		Code jumpCode;
+		if (!context.typeRels.isOverridden(classSymbol, n.methodEntry.offset)) {
+			context.devirtualizedCalls++;
+			jumpCode = join(
+					op(DUP), // duplicate Access Link (the object)
+					op(LOADW), // null check: load the dispatch pointer
+					op(POP),
+					call(classDispatchTables.get(classSymbol).get(n.methodEntry.offset)) // jump to the method body
+			);
+		} else {
+			jumpCode = join(
+					op(DUP), // duplicate Access Link (the object)
+					op(LOADW),
 
-		for (int i = 0; i < n.nl-n.entry.nl; i++) {
-			getAR = nlJoin(getAR, "lw");
+					// compute address of "id" declaration
+					comment("computing address of "+n.objID+"."+n.methodID+" declaration"),
+					op(ADDI, n.methodEntry.offset), // address of method's pointer
+
+					op(LOADW),
+					op(JS) // jump to popped address (saving address of subsequent instruction in $ra)
+			);
 		}
 
-		return nlJoin(
-				"/* calling "+n.objID+"."+n.methodID+" */",
-				"lfp", // load Control Link (pointer to frame of function "id" caller)
+		return join(
+				comment("calling "+n.objID+"."+n.methodID),
+				context.display ? op(LOADDISPLAY, level) : null,
+				op(LOADFP), // load Control Link (pointer to frame of function "id" caller)
 
-				"/* argument expressions */",
+				comment("argument expressions"),
 				argCode, // generate code for argument expressions in reversed order
 
-				"/* searching "+n.methodID+" declaration */",
-				"lfp", getAR, // retrieve address of frame containing "id" declaration
-				              // by following the static chain (of Access Links)
-				"push " + n.entry.offset, // address of object's dispatch pointer
-				"add",
-				"lw",
-
-				"stm", // set $tm to popped value (with the aim of duplicating top of stack)
-				"ltm", // load Access Link (pointer to frame of function "id" declaration)
-				"ltm", // duplicate top of stack
-				"lw",
-
-				// compute address of "id" declaration
-				"/* computing address of "+n.objID+"."+n.methodID+" declaration */",
-				"push "+n.methodEntry.offset, // address of method's pointer
-				"add",
-
-				"lw",
-				"js"  // jump to popped address (saving address of subsequent instruction in $ra)
+				comment("searching "+n.methodID+" declaration"),
+				frameAt(n.nl, n.entry.nl), // retrieve address of frame containing "id" declaration
+				op(ADDI, n.entry.offset), // address of object's dispatch pointer
+				op(LOADW),
+				jumpCode,
+				stackMap,
+				context.display ? restoreDisplay(level) : null
+		);
+	}
+
+	@Override
+	public Code visitNode(FieldAccessNode n) {
+		if (print) printNode(n);
+		return join(
+				visit(n.object), // object pointer
+				op(ADDI, n.entry.offset), // address of the field
+				op(LOADW)
 		);
 	}
 
 	@Override
-	public String visitNode(EmptyNode n) {
+	public Code visitNode(EmptyNode n) {
 		if (print) printNode(n);
-		return "push -1";
+		return push(-1);
 	}
 }
\ No newline at end of file
@@ -0,0 +1,142 @@
+package compiler;
+
+import compiler.lib.*;
+import compiler.AST.*;
+
+/*
+ * Constant folding e semplificazioni algebriche, dopo l'inlining (che porta costanti dentro i corpi inlinati):
+ *  - gli operatori con operandi costanti diventano la costante risultato, con l'aritmetica a 32 bit della SVM
+ *  - identita': x+0, 0+x, x-0, x*1, 1*x, x/1, !!x diventano x; x*0 e 0*x diventano 0 se x e' pura
+ *  - and e or con un operando costante si riducono all'altro operando o ad una costante, rispettando
+ *    il cortocircuito (un operando destro non valutato resta non valutato, uno sinistro con effetti resta)
+ *  - un if con condizione costante diventa il ramo scelto, uno con condizione negata scambia i rami
+ * Le divisioni per zero non vengono valutate: restano nel codice e falliscono a runtime come prima.
+ */
+public class ConstantFoldingASTVisitor extends RewritingASTVisitor {
+
+	public ConstantFoldingASTVisitor() {}
+	public ConstantFoldingASTVisitor(boolean debug) {super(debug);} // enables print for debugging
+
+	private static boolean isInt(Node n, int value) {
+		return n instanceof IntNode i && i.val == value;
+	}
+
+	private static boolean isBool(Node n, boolean value) {
+		return n instanceof BoolNode b && b.val == value;
+	}
+
+	private static IntNode intNode(int value, Node original) {
+		return at(new IntNode(value), original);
+	}
+
+	private static BoolNode boolNode(boolean value, Node original) {
+		return at(new BoolNode(value), original);
+	}
+
+	@Override
+	public Node visitNode(PlusNode n) {
+		if (print) printNode(n);
+		Node left = visit(n.left), right = visit(n.right);
+		if (left instanceof IntNode l && right instanceof IntNode r) return intNode(l.val + r.val, n);
+		if (isInt(left, 0)) return right;
+		if (isInt(right, 0)) return left;
+		return at(new PlusNode(left, right), n);
+	}
+
+	@Override
+	public Node visitNode(MinusNode n) {
+		if (print) printNode(n);
+		Node left = visit(n.left), right = visit(n.right);
+		if (left instanceof IntNode l && right instanceof IntNode r) return intNode(l.val - r.val, n);
+		if (isInt(right, 0)) return left;
+		return at(new MinusNode(left, right), n);
+	}
+
+	@Override
+	public Node visitNode(TimesNode n) {
+		if (print) printNode(n);
+		Node left = visit(n.left), right = visit(n.right);
+		if (left instanceof IntNode l && right instanceof IntNode r) return intNode(l.val * r.val, n);
+		if (isInt(left, 1)) return right;
+		if (isInt(right, 1)) return left;
+		if (isInt(left, 0) && isPure(right)) return left;
+		if (isInt(right, 0) && isPure(left)) return right;
+		return at(new TimesNode(left, right), n);
+	}
+
+	@Override
+	public Node visitNode(DivNode n) {
+		if (print) printNode(n);
+		Node left = visit(n.left), right = visit(n.right);
+		if (left instanceof IntNode l && right instanceof IntNode r && r.val != 0) return intNode(l.val / r.val, n);
+		if (isInt(right, 1)) return left;
+		return at(new DivNode(left, right), n);
+	}
+
+	@Override
+	public Node visitNode(EqualNode n) {
+		if (print) printNode(n);
+		Node left = visit(n.left), right = visit(n.right);
+		if (left instanceof IntNode l && right instanceof IntNode r) return boolNode(l.val.equals(r.val), n);
+		if (left instanceof BoolNode l && right instanceof BoolNode r) return boolNode(l.val.equals(r.val), n);
+		if (left instanceof EmptyNode && right instanceof EmptyNode) return boolNode(true, n);
+		return at(new EqualNode(left, right), n);
+	}
+
+	@Override
+	public Node visitNode(LessEqualNode n) {
+		if (print) printNode(n);
+		Node left = visit(n.left), right = visit(n.right);
+		if (left instanceof IntNode l && right instanceof IntNode r) return boolNode(l.val <= r.val, n);
+		return at(new LessEqualNode(left, right), n);
+	}
+
+	@Override
+	public Node visitNode(GreaterEqualNode n) {
+		if (print) printNode(n);
+		Node left = visit(n.left), right = visit(n.right);
+		if (left instanceof IntNode l && right instanceof IntNode r) return boolNode(l.val >= r.val, n);
+		return at(new GreaterEqualNode(left, right), n);
+	}
+
+	@Override
+	public Node visitNode(AndNode n) {
+		if (print) printNode(n);
+		Node left = visit(n.left), right = visit(n.right);
+		if (isBool(left, true)) return right;
+		if (isBool(left, false)) return left; // right non verrebbe valutato
+		if (isBool(right, true)) return left;
+		if (isBool(right, false) && isPure(left)) return right;
+		return at(new AndNode(left, right), n);
+	}
+
+	@Override
+	public Node visitNode(OrNode n) {
+		if (print) printNode(n);
+		Node left = visit(n.left), right = visit(n.right);
+		if (isBool(left, false)) return right;
+		if (isBool(left, true)) return left; // right non verrebbe valutato
+		if (isBool(right, false)) return left;
+		if (isBool(right, true) && isPure(left)) return right;
+		return at(new OrNode(left, right), n);
+	}
+
+	@Override
+	public Node visitNode(NotNode n) {
+		if (print) printNode(n);
+		Node exp = visit(n.exp);
+		if (exp instanceof BoolNode b) return boolNode(!b.val, n);
+		if (exp instanceof NotNode not) return not.exp;
+		return at(new NotNode(exp), n);
+	}
+
+	@Override
+	public Node visitNode(IfNode n) {
+		if (print) printNode(n);
+		Node cond = visit(n.cond);
+		if (cond instanceof BoolNode b) return b.val ? visit(n.th) : visit(n.el); // il ramo non scelto e' codice morto
+		Node th = visit(n.th), el = visit(n.el);
+		if (cond instanceof NotNode not) return at(new IfNode(not.exp, el, th), n);
+		return at(new IfNode(cond, th, el), n);
+	}
+}
@@ -0,0 +1,194 @@
+package compiler;
+
+import compiler.lib.*;
+import compiler.AST.*;
+
+import java.util.*;
+
+/*
+ * Inlining delle chiamate a funzioni e metodi piccoli, tra il type checking e la generazione del codice:
+ * una chiamata viene sostituita dal corpo del chiamato, con gli argomenti al posto dei parametri.
+ * Le dichiarazioni sono visitate nell'ordine del programma, quindi il corpo di un chiamato e' gia' stato
+ * ottimizzato quando lo si inlina.
+ *
+ * Si inlinano solo:
+ *  - funzioni non ricorsive senza dichiarazioni locali (il corpo non apre nuovi scope); sono ricorsive anche
+ *    quelle che contengono una chiamata ad una funzione in cui sono dichiarate
+ *  - metodi senza dichiarazioni locali il cui corpo usa solo parametri e campi, chiamati su un oggetto
+ *    il cui tipo statico non ha sottoclassi che li ridefiniscono (la destinazione e' nota a compile time,
+ *    vedi TypeRels.isOverridden) e che non puo' essere null: la chiamata e' nel ramo di un if che ha
+ *    escluso null (x == null, null == x o la loro negazione), perche' il corpo inlinato non legge il
+ *    dispatch pointer e una chiamata su null non fallirebbe piu';
+ *    i campi diventano letture dall'oggetto (FieldAccessNode)
+ *  - chiamate i cui argomenti sono puri (niente chiamate, print, new o divisioni), che si possono quindi
+ *    valutare piu' volte, nessuna volta o in un ordine diverso
+ *  - chiamate il cui corpo inlinato non supera inlineBudget nodi
+ */
+public class InliningASTVisitor extends RewritingASTVisitor {
+
+	// sostituzione in corso: chiamato, argomenti, oggetto (per i metodi) e nesting level della chiamata
+	private record Site(FunNode callee, List<Node> args, Node receiver, int nl) {
+		int paramLevel() {
+			return callee.entry.nl + 1;
+		}
+	}
+
+	private final CompilationContext context;
+
+	// funzioni e metodi gia' visitati (per entry, quella della virtual table per i metodi)
+	private final Map<STentry, FunNode> functions = new HashMap<>();
+	private Site site = null;
+
+	// funzioni di cui si sta visitando il corpo (la piu' interna in cima) e funzioni chiamate dal proprio corpo
+	private final Deque<STentry> visiting = new ArrayDeque<>();
+	private final Set<STentry> recursive = new HashSet<>();
+
+	// nomi che nel punto corrente non possono essere null (confrontati con null dall'if che lo contiene)
+	private final Set<STentry> nonNull = new HashSet<>();
+
+	public InliningASTVisitor(CompilationContext context) {this.context = context;}
+	public InliningASTVisitor(CompilationContext context, boolean debug) { //enables print for debugging
+		super(debug);
+		this.context = context;
+	}
+
+	@Override
+	public Node visitNode(FunNode n) {
+		visiting.push(n.entry);
+		FunNode fun = (FunNode) super.visitNode(n);
+		visiting.pop();
+		functions.put(fun.entry, fun);
+		return fun;
+	}
+
+	@Override
+	public Node visitNode(MethodNode n) {
+		MethodNode method = (MethodNode) super.visitNode(n);
+		functions.put(method.entry, method);
+		return method;
+	}
+
+	@Override
+	public Node visitNode(CallNode n) {
+		if (print) printNode(n, n.id);
+		List<Node> args = visitAll(n.arglist);
+		if (visiting.contains(n.entry)) { // chiamata ricorsiva: lo sono anche le funzioni dichiarate nel chiamato
+			for (STentry entry : visiting) {
+				recursive.add(entry);
+				if (entry == n.entry) break;
+			}
+		}
+		if (site == null && !(n.entry.type instanceof MethodTypeNode)) { // un metodo chiamato dall'interno ha come oggetto il frame corrente
+			Node body = inline(functions.get(n.entry), args, null, n.nl);
+			if (body != null) return body;
+		}
+		CallNode call = at(new CallNode(n.id, n.symbol, args), n);
+		call.entry = n.entry;
+		call.nl = (site == null) ? n.nl : site.nl;
+		return call;
+	}
+
+	@Override
+	public Node visitNode(ClassCallNode n) {
+		if (print) printNode(n, n.objID+"."+n.methodID);
+		List<Node> args = visitAll(n.arglist);
+		IdNode object = idNode(n.objID, n.objSymbol, n.entry, n.nl);
+		if (site == null) {
+			Node body = nonNull.contains(n.entry) ? inline(staticTarget(n), args, object, n.nl) : null;
+			if (body != null) return body;
+		} else if (n.entry.nl == site.paramLevel()) {
+			object = (IdNode) site.args.get(n.entry.offset-1); // l'oggetto e' un parametro: l'argomento e' una variabile
+		} else {
+			object = idNode(n.objID, n.objSymbol, n.entry, site.nl);
+		}
+		ClassCallNode call = at(new ClassCallNode(object.id, object.symbol, n.methodID, n.methodSymbol, args), n);
+		call.entry = object.entry;
+		call.methodEntry = n.methodEntry;
+		call.nl = object.nl;
+		return call;
+	}
+
+	@Override
+	public Node visitNode(IfNode n) {
+		if (print) printNode(n);
+		Node cond = visit(n.cond);
+		boolean negated = n.cond instanceof NotNode;
+		STentry guarded = nullTest(negated ? ((NotNode) n.cond).exp : n.cond);
+		Node th = visitGuarded(n.th, negated ? guarded : null);
+		Node el = visitGuarded(n.el, negated ? null : guarded);
+		return at(new IfNode(cond, th, el), n);
+	}
+
+	// visita un ramo di un if sapendo che il nome guarded (se non null) non e' null
+	private Node visitGuarded(Node n, STentry guarded) {
+		if (guarded == null || !nonNull.add(guarded)) return visit(n);
+		Node visited = visit(n);
+		nonNull.remove(guarded);
+		return visited;
+	}
+
+	// entry del nome confrontato con null da cond (x == null o null == x), oppure null
+	private static STentry nullTest(Node cond) {
+		if (!(cond instanceof EqualNode equal)) return null;
+		if (equal.left instanceof IdNode id && equal.right instanceof EmptyNode) return id.entry;
+		if (equal.right instanceof IdNode id && equal.left instanceof EmptyNode) return id.entry;
+		return null;
+	}
+
+	@Override
+	public Node visitNode(IdNode n) {
+		if (print) printNode(n, n.id);
+		if (site == null) return n;
+		if (n.entry.nl == site.paramLevel()) return site.args.get(n.entry.offset-1); // parametro
+		if (site.receiver != null) return at(new FieldAccessNode(site.receiver, n.entry), n); // campo
+		return at(idNode(n.id, n.symbol, n.entry, site.nl), n); // variabile non locale
+	}
+
+	// corpo del chiamato con gli argomenti al posto dei parametri, oppure null se la chiamata non va inlinata
+	private Node inline(FunNode callee, List<Node> args, Node receiver, int nl) {
+		if (callee == null || recursive.contains(callee.entry) || !callee.declist.isEmpty()) return null;
+		for (Node arg : args) {
+			if (!isPure(arg)) return null;
+		}
+		Site s = new Site(callee, args, receiver, nl);
+		if (!canSubstitute(callee.exp, s) || size(callee.exp, s) > context.inlineBudget) return null;
+
+		site = s;
+		Node body = visit(callee.exp);
+		site = null;
+		context.inlinedCalls++;
+		return body;
+	}
+
+	// il metodo chiamato, se nessuna sottoclasse del tipo statico dell'oggetto lo ridefinisce
+	private FunNode staticTarget(ClassCallNode n) {
+		FunNode method = functions.get(n.methodEntry);
+		if (method == null) return null; // metodo della classe che si sta visitando
+		int classSymbol = ((RefTypeNode) n.entry.type).classSymbol;
+		return context.typeRels.isOverridden(classSymbol, ((MethodNode) method).offset) ? null : method;
+	}
+
+	// true se il corpo si puo' copiare nel punto della chiamata: i metodi non hanno un oggetto per le chiamate
+	// interne e i loro campi non sono raggiungibili dal frame del chiamante
+	private static boolean canSubstitute(Node n, Site s) {
+		boolean method = s.receiver != null;
+		if (n instanceof IdNode id && method && id.entry.nl < s.paramLevel()-1) return false;
+		if (n instanceof CallNode && method) return false;
+		if (n instanceof ClassCallNode call) {
+			if (method) return false;
+			if (call.entry.nl == s.paramLevel() && !(s.args.get(call.entry.offset-1) instanceof IdNode)) return false;
+		}
+		for (Node child : children(n)) {
+			if (!canSubstitute(child, s)) return false;
+		}
+		return true;
+	}
+
+	// numero di nodi del corpo inlinato (s e' null per gli argomenti, che non contengono parametri del chiamato)
+	private static int size(Node n, Site s) {
+		if (s != null && n instanceof IdNode id && id.entry.nl == s.paramLevel()) return size(s.args.get(id.entry.offset-1), null);
+		int size = 1;
+		for (Node child : children(n)) size += size(child, s);
+		return size;
+	}
+}
@@ -0,0 +1,310 @@
+package compiler;
+
+import compiler.lib.*;
+import compiler.AST.*;
+
+import java.util.*;
+
+/*
+ * Lambda lifting delle funzioni annidate, tra il type checking e l'inlining: una funzione dichiarata dentro
+ * un'altra funzione diventa una dichiarazione globale, subito prima della funzione globale che la conteneva,
+ * e i nomi non locali che usa (variabili e parametri delle funzioni che la contengono) le vengono passati come
+ * parametri aggiuntivi, dopo quelli dichiarati. In FOOL le variabili non si modificano e le funzioni non sono
+ * valori, quindi passare il valore di un nome equivale a leggerlo risalendo la catena statica.
+ * Una funzione sollevata legge i nomi dal proprio frame, il frame di chi la conteneva perde una cella e le sue
+ * chiamate non sono piu' locali (possono essere chiamate in coda); la funzione che la conteneva, se non le
+ * restano dichiarazioni, si puo' inlinare.
+ *
+ * Si sollevano solo le funzioni:
+ *  - dichiarate (anche indirettamente) in una funzione globale, non in un metodo
+ *  - che chiamano solo funzioni globali, funzioni dichiarate al loro interno o funzioni a loro volta sollevate
+ *  - a cui servono al massimo liftBudget parametri aggiuntivi, compresi quelli da passare alle funzioni
+ *    sollevate che chiamano
+ * Le altre restano al loro posto e continuano ad usare l'Access Link. Le dichiarazioni che cambiano nesting
+ * level o offset ricevono entry nuove, a cui vengono ricollegati tutti i loro usi.
+ */
+public class LambdaLiftingASTVisitor extends RewritingASTVisitor {
+
+	// identificatore e simbolo di un nome
+	private record Name(String id, int symbol) {}
+
+	// funzione da sollevare: funzione globale che la contiene, nomi non locali da passarle (entry originali),
+	// nuova entry globale e entry dei parametri aggiuntivi
+	private static class Lift {
+		final FunNode fun;
+		final FunNode top;
+		final Set<STentry> free = new LinkedHashSet<>();
+		final Map<STentry, STentry> params = new HashMap<>();
+		STentry entry;
+
+		Lift(FunNode fun, FunNode top) {
+			this.fun = fun;
+			this.top = top;
+		}
+
+		// true se la dichiarazione di e e' in una delle funzioni che contengono questa (non globale)
+		boolean outside(STentry e) {
+			return e.nl >= 1 && e.nl <= fun.entry.nl;
+		}
+	}
+
+	// scope di una funzione (o del programma) durante la riscrittura: nesting level del corpo dopo il lifting,
+	// nuovi offset delle dichiarazioni spostate (da quelli originali) e entry gia' ricollegate
+	private static class Scope {
+		final int level;
+		final Map<Integer, Integer> offsets = new HashMap<>();
+		final Map<STentry, STentry> entries = new HashMap<>();
+
+		Scope(int level) {this.level = level;}
+
+		STentry entry(STentry original) {
+			return entries.computeIfAbsent(original, e -> {
+				int offset = offsets.getOrDefault(e.offset, e.offset);
+				return (e.nl == level && offset == e.offset) ? e : new STentry(level, e.type, offset);
+			});
+		}
+	}
+
+	private final CompilationContext context;
+
+	// analisi: funzioni del programma (non i metodi) per entry, nomi non locali usati e funzioni chiamate nel corpo
+	// di ognuna (comprese le funzioni dichiarate al suo interno), identificatori dei nomi usati
+	private final Map<STentry, FunNode> functions = new HashMap<>();
+	private final Map<FunNode, Set<STentry>> uses = new HashMap<>();
+	private final Map<FunNode, Set<STentry>> calls = new HashMap<>();
+	private final Map<STentry, Name> names = new HashMap<>();
+
+	// funzioni da sollevare, in post-ordine (una funzione dopo quelle sollevate dal suo corpo)
+	private final Map<FunNode, Lift> lifts = new LinkedHashMap<>();
+	private final Map<STentry, STentry> liftedEntries = new HashMap<>();
+
+	// riscrittura: scope per nesting level originale (null per i livelli che una funzione sollevata non vede piu')
+	// e funzione sollevata piu' interna di cui si sta riscrivendo il corpo
+	private List<Scope> scopes = new ArrayList<>();
+	private Lift current = null;
+
+	public LambdaLiftingASTVisitor(CompilationContext context) {this.context = context;}
+	public LambdaLiftingASTVisitor(CompilationContext context, boolean debug) { //enables print for debugging
+		super(debug);
+		this.context = context;
+	}
+
+	@Override
+	public Node visitNode(ProgLetInNode n) {
+		if (print) printNode(n);
+		if (context.liftBudget < 0) return n;
+		for (DecNode dec : n.declist) {
+			if (dec instanceof FunNode fun) scanFunction(fun, new ArrayDeque<>());
+		}
+		chooseLifts();
+		if (lifts.isEmpty()) return n;
+
+		// ogni funzione globale e' preceduta da quelle sollevate dal suo corpo: le dichiarazioni globali
+		// successive cambiano offset
+		List<DecNode> order = new ArrayList<>();
+		Scope global = new Scope(0);
+		for (int i = 0; i < n.declist.size(); i++) {
+			DecNode dec = n.declist.get(i);
+			for (Lift lift : lifts.values()) {
+				if (lift.top != dec) continue;
+				lift.entry = new STentry(0, liftedType(lift), -2 - order.size());
+				liftedEntries.put(lift.fun.entry, lift.entry);
+				order.add(lift.fun);
+			}
+			global.offsets.put(-2 - i, -2 - order.size());
+			order.add(dec);
+		}
+
+		scopes.add(global);
+		List<DecNode> declist = new ArrayList<>();
+		for (DecNode dec : order) {
+			Lift lift = (dec instanceof FunNode fun) ? lifts.get(fun) : null;
+			declist.add(lift != null ? function(lift.fun, lift.entry, lift) : (DecNode) visit(dec));
+		}
+		context.liftedFunctions += lifts.size();
+		return at(new ProgLetInNode(declist, visit(n.exp)), n);
+	}
+
+	private void scanFunction(FunNode fun, Deque<FunNode> enclosing) {
+		functions.put(fun.entry, fun);
+		uses.put(fun, new LinkedHashSet<>());
+		calls.put(fun, new LinkedHashSet<>());
+		enclosing.push(fun);
+		for (DecNode dec : fun.declist) {
+			if (dec instanceof FunNode inner) scanFunction(inner, enclosing);
+			if (dec instanceof VarNode var) scan(var.exp, enclosing);
+		}
+		scan(fun.exp, enclosing);
+		enclosing.pop();
+		if (!enclosing.isEmpty()) lifts.put(fun, new Lift(fun, enclosing.getLast()));
+	}
+
+	private void scan(Node n, Deque<FunNode> enclosing) {
+		STentry used = null;
+		if (n instanceof IdNode id) {
+			used = id.entry;
+			names.put(used, new Name(id.id, id.symbol));
+		} else if (n instanceof ClassCallNode call) {
+			used = call.entry;
+			names.put(used, new Name(call.objID, call.objSymbol));
+		}
+		for (FunNode fun : enclosing) {
+			if (used != null) uses.get(fun).add(used);
+			if (n instanceof CallNode call) calls.get(fun).add(call.entry);
+		}
+		for (Node child : children(n)) scan(child, enclosing);
+	}
+
+	// si parte da tutte le funzioni annidate e si tolgono quelle che non si possono sollevare, finche' ce ne sono
+	private void chooseLifts() {
+		boolean changed = true;
+		while (changed) {
+			computeFree();
+			changed = lifts.values().removeIf(lift -> lift.free.size() > context.liftBudget || !callsReachable(lift.fun));
+		}
+	}
+
+	// nomi non locali di ogni funzione da sollevare: quelli che usa e quelli da passare alle sollevate che chiama
+	private void computeFree() {
+		for (Lift lift : lifts.values()) {
+			lift.free.clear();
+			for (STentry e : uses.get(lift.fun)) {
+				if (lift.outside(e)) lift.free.add(e);
+			}
+		}
+		boolean changed = true;
+		while (changed) {
+			changed = false;
+			for (Lift lift : lifts.values()) {
+				for (STentry callee : calls.get(lift.fun)) {
+					Lift other = lifts.get(functions.get(callee));
+					if (other == null) continue;
+					for (STentry e : other.free) {
+						if (lift.outside(e) && lift.free.add(e)) changed = true;
+					}
+				}
+			}
+		}
+	}
+
+	// true se ogni funzione chiamata resta raggiungibile da una dichiarazione globale
+	private boolean callsReachable(FunNode fun) {
+		for (STentry callee : calls.get(fun)) {
+			if (callee.nl > 0 && callee.nl <= fun.entry.nl && !lifts.containsKey(functions.get(callee))) return false;
+		}
+		return true;
+	}
+
+	private ArrowTypeNode liftedType(Lift lift) {
+		ArrowTypeNode type = (ArrowTypeNode) lift.fun.getType();
+		List<TypeNode> parTypes = new ArrayList<>(type.parlist);
+		for (STentry e : lift.free) parTypes.add(e.type);
+		return context.types.arrow(parTypes, type.returnType);
+	}
+
+	// nesting level del punto che si sta riscrivendo
+	private int level() {
+		return scopes.get(scopes.size()-1).level;
+	}
+
+	private STentry resolve(STentry e) {
+		STentry lifted = liftedEntries.get(e);
+		if (lifted != null) return lifted;
+		if (current != null && current.outside(e)) return current.params.get(e); // parametro aggiuntivo
+		return scopes.get(e.nl).entry(e);
+	}
+
+	// le funzioni sollevate sono gia' tra le dichiarazioni globali
+	@Override
+	protected List<DecNode> visitDeclarations(List<DecNode> declist) {
+		List<DecNode> visited = new ArrayList<>();
+		for (DecNode dec : declist) {
+			if (!lifts.containsKey(dec)) visited.add((DecNode) visit(dec));
+		}
+		return visited;
+	}
+
+	@Override
+	public Node visitNode(FunNode n) {
+		if (print) printNode(n, n.id);
+		return function(n, resolve(n.entry), null);
+	}
+
+	// riscrive una funzione con la sua nuova entry; se e' sollevata riceve i parametri aggiuntivi e il suo corpo
+	// vede solo le dichiarazioni globali e le proprie
+	private FunNode function(FunNode n, STentry entry, Lift lift) {
+		Scope scope = new Scope(entry.nl + 1);
+		int kept = 0;
+		for (int i = 0; i < n.declist.size(); i++) {
+			if (!lifts.containsKey(n.declist.get(i))) scope.offsets.put(-2 - i, -2 - kept++);
+		}
+
+		List<Scope> outerScopes = scopes;
+		Lift outerLift = current;
+		scopes = new ArrayList<>(scopes.subList(0, lift == null ? n.entry.nl + 1 : 1));
+		while (scopes.size() <= n.entry.nl) scopes.add(null);
+		scopes.add(scope);
+
+		List<ParNode> parlist = new ArrayList<>(n.parlist);
+		if (lift != null) {
+			current = lift;
+			for (STentry e : lift.free) {
+				lift.params.put(e, new STentry(scope.level, e.type, parlist.size() + 1));
+				Name name = names.get(e);
+				parlist.add(at(new ParNode(name.id(), name.symbol(), e.type), n));
+			}
+		}
+		List<DecNode> declist = visitDeclarations(n.declist);
+		FunNode fun = at(new FunNode(n.id, n.symbol, n.retType, parlist, declist, visit(n.exp)), n);
+		fun.setType(entry.type);
+		fun.entry = entry;
+
+		scopes = outerScopes;
+		current = outerLift;
+		return fun;
+	}
+
+	@Override
+	public Node visitNode(MethodNode n) {
+		List<Scope> outerScopes = scopes;
+		scopes = new ArrayList<>(List.of(scopes.get(0), new Scope(1), new Scope(2))); // campi e metodi, corpo del metodo
+		Node method = super.visitNode(n);
+		scopes = outerScopes;
+		return method;
+	}
+
+	@Override
+	public Node visitNode(CallNode n) {
+		if (print) printNode(n, n.id);
+		List<Node> args = visitAll(n.arglist);
+		Lift lift = lifts.get(functions.get(n.entry));
+		if (lift != null) {
+			for (STentry e : lift.free) {
+				Name name = names.get(e);
+				args.add(at(idNode(name.id(), name.symbol(), resolve(e), level()), n));
+			}
+		}
+		CallNode call = at(new CallNode(n.id, n.symbol, args), n);
+		call.entry = resolve(n.entry);
+		call.nl = level();
+		return call;
+	}
+
+	@Override
+	public Node visitNode(ClassCallNode n) {
+		if (print) printNode(n, n.objID+"."+n.methodID);
+		ClassCallNode call = at(new ClassCallNode(n.objID, n.objSymbol, n.methodID, n.methodSymbol, visitAll(n.arglist)), n);
+		call.entry = resolve(n.entry);
+		call.methodEntry = n.methodEntry;
+		call.nl = level();
+		return call;
+	}
+
+	@Override
+	public Node visitNode(IdNode n) {
+		if (print) printNode(n, n.id);
+		STentry entry = resolve(n.entry);
+		if (entry == n.entry && level() == n.nl) return n;
+		return at(idNode(n.id, n.symbol, entry, level()), n);
+	}
+}
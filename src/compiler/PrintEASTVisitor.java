@@ -247,6 +247,14 @@ public class PrintEASTVisitor extends BaseEASTVisitor<Void, VoidException> {
 		return null;
 	}
 	
+	@Override
+	public Void visitNode(FieldAccessNode n) {
+		printNode(n);
+		visit(n.object);
+		visit(n.entry);
+		return null;
+	}
+
 	@Override
 	public Void visitSTentry(STentry entry) {
 		printSTentry("nestlev "+entry.nl);
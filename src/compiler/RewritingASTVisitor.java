@@ -0,0 +1,255 @@
+package compiler;
+
+import compiler.exc.*;
+import compiler.lib.*;
+import compiler.AST.*;
+
+import java.util.*;
+
+/*
+ * Base delle ottimizzazioni sull'AST arricchito: i nodi sono immutabili, quindi ogni visita ritorna una copia
+ * del nodo visitato con i figli gia' trasformati (le foglie sono condivise). Le sottoclassi ridefiniscono
+ * solo i nodi che trasformano; le entry della symbol table e i tipi sono quelli dell'albero originale.
+ */
+public class RewritingASTVisitor extends BaseASTVisitor<Node, VoidException> {
+
+	protected RewritingASTVisitor() {}
+	protected RewritingASTVisitor(boolean debug) {super(false, debug);} // enables print for debugging
+
+	// il nodo copiato mantiene la riga dell'originale
+	protected static <T extends Node> T at(T copy, Node original) {
+		copy.setLine(original.getLine());
+		return copy;
+	}
+
+	// uso di un nome gia' risolto: entry della dichiarazione e nesting level del punto d'uso
+	protected static IdNode idNode(String id, int symbol, STentry entry, int nl) {
+		IdNode node = new IdNode(id, symbol);
+		node.entry = entry;
+		node.nl = nl;
+		return node;
+	}
+
+	protected List<Node> visitAll(List<Node> nodes) {
+		List<Node> visited = new ArrayList<>();
+		for (Node node : nodes) visited.add(visit(node));
+		return visited;
+	}
+
+	protected List<DecNode> visitDeclarations(List<DecNode> declist) {
+		List<DecNode> visited = new ArrayList<>();
+		for (DecNode dec : declist) visited.add((DecNode) visit(dec));
+		return visited;
+	}
+
+	@Override
+	public Node visitNode(ProgLetInNode n) {
+		if (print) printNode(n);
+		List<DecNode> declist = visitDeclarations(n.declist);
+		return at(new ProgLetInNode(declist, visit(n.exp)), n);
+	}
+
+	@Override
+	public Node visitNode(ProgNode n) {
+		if (print) printNode(n);
+		return at(new ProgNode(visit(n.exp)), n);
+	}
+
+	@Override
+	public Node visitNode(FunNode n) {
+		if (print) printNode(n, n.id);
+		List<DecNode> declist = visitDeclarations(n.declist);
+		FunNode fun = at(new FunNode(n.id, n.symbol, n.retType, n.parlist, declist, visit(n.exp)), n);
+		fun.setType(n.getType());
+		fun.entry = n.entry;
+		return fun;
+	}
+
+	@Override
+	public Node visitNode(VarNode n) {
+		if (print) printNode(n, n.id);
+		return at(new VarNode(n.id, n.symbol, n.getType(), visit(n.exp)), n);
+	}
+
+	@Override
+	public Node visitNode(ClassNode n) {
+		if (print) printNode(n, n.id);
+		List<MethodNode> methods = new ArrayList<>();
+		for (MethodNode method : n.methods) methods.add((MethodNode) visit(method));
+		ClassNode classNode = at(new ClassNode(n.id, n.symbol, n.superID, n.superSymbol, n.fields, methods), n);
+		classNode.type = n.type;
+		classNode.superEntry = n.superEntry;
+		return classNode;
+	}
+
+	@Override
+	public Node visitNode(MethodNode n) {
+		if (print) printNode(n, n.id);
+		List<DecNode> declist = visitDeclarations(n.declist);
+		MethodNode method = at(new MethodNode(n.id, n.symbol, n.retType, n.parlist, declist, visit(n.exp)), n);
+		method.setType(n.getType());
+		method.entry = n.entry;
+		method.offset = n.offset;
+		return method;
+	}
+
+	@Override
+	public Node visitNode(CallNode n) {
+		if (print) printNode(n, n.id);
+		CallNode call = at(new CallNode(n.id, n.symbol, visitAll(n.arglist)), n);
+		call.entry = n.entry;
+		call.nl = n.nl;
+		return call;
+	}
+
+	@Override
+	public Node visitNode(ClassCallNode n) {
+		if (print) printNode(n, n.objID+"."+n.methodID);
+		ClassCallNode call = at(new ClassCallNode(n.objID, n.objSymbol, n.methodID, n.methodSymbol, visitAll(n.arglist)), n);
+		call.entry = n.entry;
+		call.methodEntry = n.methodEntry;
+		call.nl = n.nl;
+		return call;
+	}
+
+	@Override
+	public Node visitNode(IdNode n) {
+		if (print) printNode(n, n.id);
+		return n;
+	}
+
+	@Override
+	public Node visitNode(FieldAccessNode n) {
+		if (print) printNode(n);
+		return at(new FieldAccessNode(visit(n.object), n.entry), n);
+	}
+
+	@Override
+	public Node visitNode(NewNode n) {
+		if (print) printNode(n, n.classID);
+		NewNode node = at(new NewNode(n.classID, n.classSymbol, visitAll(n.arglist)), n);
+		node.entry = n.entry;
+		return node;
+	}
+
+	@Override
+	public Node visitNode(PrintNode n) {
+		if (print) printNode(n);
+		return at(new PrintNode(visit(n.exp)), n);
+	}
+
+	@Override
+	public Node visitNode(IfNode n) {
+		if (print) printNode(n);
+		return at(new IfNode(visit(n.cond), visit(n.th), visit(n.el)), n);
+	}
+
+	@Override
+	public Node visitNode(EqualNode n) {
+		if (print) printNode(n);
+		return at(new EqualNode(visit(n.left), visit(n.right)), n);
+	}
+
+	@Override
+	public Node visitNode(GreaterEqualNode n) {
+		if (print) printNode(n);
+		return at(new GreaterEqualNode(visit(n.left), visit(n.right)), n);
+	}
+
+	@Override
+	public Node visitNode(LessEqualNode n) {
+		if (print) printNode(n);
+		return at(new LessEqualNode(visit(n.left), visit(n.right)), n);
+	}
+
+	@Override
+	public Node visitNode(AndNode n) {
+		if (print) printNode(n);
+		return at(new AndNode(visit(n.left), visit(n.right)), n);
+	}
+
+	@Override
+	public Node visitNode(OrNode n) {
+		if (print) printNode(n);
+		return at(new OrNode(visit(n.left), visit(n.right)), n);
+	}
+
+	@Override
+	public Node visitNode(NotNode n) {
+		if (print) printNode(n);
+		return at(new NotNode(visit(n.exp)), n);
+	}
+
+	@Override
+	public Node visitNode(TimesNode n) {
+		if (print) printNode(n);
+		return at(new TimesNode(visit(n.left), visit(n.right)), n);
+	}
+
+	@Override
+	public Node visitNode(DivNode n) {
+		if (print) printNode(n);
+		return at(new DivNode(visit(n.left), visit(n.right)), n);
+	}
+
+	@Override
+	public Node visitNode(PlusNode n) {
+		if (print) printNode(n);
+		return at(new PlusNode(visit(n.left), visit(n.right)), n);
+	}
+
+	@Override
+	public Node visitNode(MinusNode n) {
+		if (print) printNode(n);
+		return at(new MinusNode(visit(n.left), visit(n.right)), n);
+	}
+
+	@Override
+	public Node visitNode(BoolNode n) {
+		if (print) printNode(n, n.val.toString());
+		return n;
+	}
+
+	@Override
+	public Node visitNode(IntNode n) {
+		if (print) printNode(n, n.val.toString());
+		return n;
+	}
+
+	@Override
+	public Node visitNode(EmptyNode n) {
+		if (print) printNode(n);
+		return n;
+	}
+
+	// true se valutare l'espressione non ha effetti (niente chiamate, print, new o divisioni, che possono fallire):
+	// si puo' quindi valutare piu' volte, nessuna volta o in un ordine diverso
+	protected static boolean isPure(Node n) {
+		if (n instanceof CallNode || n instanceof ClassCallNode || n instanceof NewNode || n instanceof PrintNode || n instanceof DivNode) return false;
+		for (Node child : children(n)) {
+			if (!isPure(child)) return false;
+		}
+		return true;
+	}
+
+	// sottoespressioni di un'espressione
+	protected static List<Node> children(Node n) {
+		if (n instanceof IfNode ifNode) return List.of(ifNode.cond, ifNode.th, ifNode.el);
+		if (n instanceof PrintNode print) return List.of(print.exp);
+		if (n instanceof NotNode not) return List.of(not.exp);
+		if (n instanceof FieldAccessNode field) return List.of(field.object);
+		if (n instanceof CallNode call) return call.arglist;
+		if (n instanceof ClassCallNode call) return call.arglist;
+		if (n instanceof NewNode newNode) return newNode.arglist;
+		if (n instanceof EqualNode op) return List.of(op.left, op.right);
+		if (n instanceof GreaterEqualNode op) return List.of(op.left, op.right);
+		if (n instanceof LessEqualNode op) return List.of(op.left, op.right);
+		if (n instanceof AndNode op) return List.of(op.left, op.right);
+		if (n instanceof OrNode op) return List.of(op.left, op.right);
+		if (n instanceof TimesNode op) return List.of(op.left, op.right);
+		if (n instanceof DivNode op) return List.of(op.left, op.right);
+		if (n instanceof PlusNode op) return List.of(op.left, op.right);
+		if (n instanceof MinusNode op) return List.of(op.left, op.right);
+		return List.of();
+	}
+}
@@ -0,0 +1,412 @@
+package compiler;
+
+import compiler.exc.*;
+import compiler.lib.*;
+import compiler.AST.*;
+
+import java.util.*;
+
+/*
+ * Analisi semantica in una sola visita: costruisce la symbol table (con i passi di SymbolTableASTVisitor) e fa il
+ * type checking (con le regole di TypingRules, le stesse di TypeCheckEASTVisitor) nodo per nodo, invece di visitare
+ * l'albero due volte.
+ * Ritorna il tipo dell'espressione principale; gli errori e i messaggi sono quelli delle due visite separate.
+ *
+ * Il type checker abbandona una dichiarazione al primo errore, la symbol table deve invece visitarla tutta: dopo un
+ * errore di tipo la visita prosegue solo per la symbol table e l'errore resta in sospeso fino alla dichiarazione
+ * (o all'espressione principale) in cui il type checker lo raccoglierebbe. I messaggi del type checking sono
+ * stampati alla fine, dopo quelli della symbol table come con due visite; quelli del corpo di un metodo che ne
+ * ridefinisce uno della superclasse, che il type checker non visita, vengono scartati.
+ */
+public class SemanticAnalysisASTVisitor extends BaseEASTVisitor<TypeNode, TypeException> {
+
+	private final CompilationContext context;
+	private final TypeRels typeRels;
+	private final TypingRules rules;
+	private final SymbolTableASTVisitor symbolTable;
+
+	// errore in sospeso (TypeException o IncomplException): finche' c'e' i tipi non vengono controllati
+	private Exception failure = null;
+	// messaggi degli errori raccolti nelle dichiarazioni, stampati e contati alla fine
+	private final List<String> reports = new ArrayList<>();
+
+	public SemanticAnalysisASTVisitor(CompilationContext context) {this(context, false);}
+	public SemanticAnalysisASTVisitor(CompilationContext context, boolean debug) { // enables print for debugging
+		super(false, debug);
+		this.context = context;
+		this.typeRels = context.typeRels;
+		this.rules = new TypingRules(typeRels);
+		this.symbolTable = new SymbolTableASTVisitor(context);
+	}
+
+	public int stErrors() {
+		return symbolTable.stErrors;
+	}
+
+	private boolean checking() {
+		return failure == null;
+	}
+
+	// una regola di TypingRules, applicata solo finche' non c'e' un errore in sospeso: il suo errore lo diventa
+	private interface Rule<T> {
+		T apply() throws TypeException;
+	}
+
+	private interface Check {
+		void apply() throws TypeException;
+	}
+
+	private <T> T check(Rule<T> rule) {
+		if (!checking()) return null;
+		try {
+			return rule.apply();
+		} catch (TypeException e) {
+			failure = e;
+			return null;
+		}
+	}
+
+	private void check(Check rule) {
+		check(() -> {
+			rule.apply();
+			return null;
+		});
+	}
+
+	private void incomplete() {
+		if (failure == null) failure = new IncomplException();
+	}
+
+	// un nodo mancante (albero incompleto) ferma il type checking come IncomplException
+	@Override
+	public TypeNode visit(Visitable v, String mark) throws TypeException {
+		if (v == null) {
+			incomplete();
+			return null;
+		}
+		return super.visit(v, mark);
+	}
+
+	// come la visita dei tipi del type checker: un tipo (anche di un parametro) mancante e' un albero incompleto
+	private TypeNode ckvisit(TypeNode t) {
+		if (t == null) {
+			incomplete();
+		} else if (t instanceof ArrowTypeNode arrow) {
+			for (TypeNode par : arrow.parlist) ckvisit(par);
+			ckvisit(arrow.returnType);
+		}
+		return t;
+	}
+
+	private TypeNode entryType(STentry entry) {
+		if (entry == null) {
+			incomplete();
+			return null;
+		}
+		if (print) printSTentry("type");
+		return ckvisit(entry.type);
+	}
+
+	// visita di una dichiarazione: il type checker raccoglie qui gli errori che la interrompono
+	private void visitDeclaration(Node dec) throws TypeException {
+		boolean checking = checking();
+		visit(dec);
+		if (!checking) return;
+		if (failure instanceof TypeException e) reports.add(TypingRules.declarationError(e));
+		failure = null;
+	}
+
+	// visita solo per la symbol table, di un nodo che il type checker non visita
+	private void resolveOnly(Node n) throws TypeException {
+		Exception outer = failure;
+		if (outer == null) failure = new IncomplException();
+		visit(n);
+		failure = outer;
+	}
+
+	// fine della visita: i messaggi delle dichiarazioni, poi l'errore dell'espressione principale al chiamante
+	private TypeNode visitMain(Node exp) throws TypeException {
+		TypeNode t = visit(exp);
+		for (String report : reports) {
+			context.typeErrors++;
+			System.out.println(report);
+		}
+		reports.clear();
+		if (failure instanceof TypeException e) {
+			context.typeErrors++;
+			throw e;
+		}
+		if (failure != null) throw (IncomplException) failure;
+		return t;
+	}
+
+	@Override
+	public TypeNode visitNode(ProgLetInNode n) throws TypeException {
+		if (print) printNode(n);
+		symbolTable.enterProgram();
+		for (Node dec : n.declist) visitDeclaration(dec);
+		try {
+			return visitMain(n.exp);
+		} finally {
+			symbolTable.exitProgram();
+		}
+	}
+
+	@Override
+	public TypeNode visitNode(ProgNode n) throws TypeException {
+		if (print) printNode(n);
+		return visitMain(n.exp);
+	}
+
+	@Override
+	public TypeNode visitNode(FunNode n) throws TypeException {
+		if (print) printNode(n, n.id);
+		int prevNLDecOffset = symbolTable.enterFunction(n);
+		for (Node dec : n.declist) visitDeclaration(dec);
+		TypeNode t = visit(n.exp);
+		TypeNode retType = ckvisit(n.retType);
+		check(() -> rules.result(t, retType, n));
+		symbolTable.exitFunction(prevNLDecOffset);
+		return null;
+	}
+
+	@Override
+	public TypeNode visitNode(VarNode n) throws TypeException {
+		if (print) printNode(n, n.id);
+		TypeNode t = visit(n.exp);
+		symbolTable.declare(n);
+		TypeNode type = ckvisit(n.getType());
+		check(() -> rules.variable(t, type, n));
+		return null;
+	}
+
+	@Override
+	public TypeNode visitNode(PrintNode n) throws TypeException {
+		if (print) printNode(n);
+		return visit(n.exp);
+	}
+
+	@Override
+	public TypeNode visitNode(IfNode n) throws TypeException {
+		if (print) printNode(n);
+		TypeNode cond = visit(n.cond);
+		check(() -> rules.condition(cond, n));
+		TypeNode t = visit(n.th);
+		TypeNode e = visit(n.el);
+		return check(() -> rules.branches(t, e, n));
+	}
+
+	private TypeNode comparison(Node left, Node right, Node n) throws TypeException {
+		TypeNode l = visit(left);
+		TypeNode r = visit(right);
+		check(() -> rules.comparison(l, r, n));
+		return Types.BOOL;
+	}
+
+	@Override
+	public TypeNode visitNode(EqualNode n) throws TypeException {
+		if (print) printNode(n);
+		return comparison(n.left, n.right, n);
+	}
+
+	@Override
+	public TypeNode visitNode(GreaterEqualNode n) throws TypeException {
+		if (print) printNode(n);
+		return comparison(n.left, n.right, n);
+	}
+
+	@Override
+	public TypeNode visitNode(LessEqualNode n) throws TypeException {
+		if (print) printNode(n);
+		return comparison(n.left, n.right, n);
+	}
+
+	private TypeNode logical(Node left, Node right, Node n) throws TypeException {
+		TypeNode l = visit(left);
+		TypeNode r = visit(right);
+		check(() -> rules.logical(l, r, n));
+		return Types.BOOL;
+	}
+
+	@Override
+	public TypeNode visitNode(OrNode n) throws TypeException {
+		if (print) printNode(n);
+		return logical(n.left, n.right, n);
+	}
+
+	@Override
+	public TypeNode visitNode(AndNode n) throws TypeException {
+		if (print) printNode(n);
+		return logical(n.left, n.right, n);
+	}
+
+	@Override
+	public TypeNode visitNode(NotNode n) throws TypeException {
+		if (print) printNode(n);
+		TypeNode t = visit(n.exp);
+		check(() -> rules.not(t, n));
+		return Types.BOOL;
+	}
+
+	// come nel type checker, il secondo operando non si controlla se il primo non e' intero
+	private TypeNode arithmetic(Node left, Node right, Node n) throws TypeException {
+		TypeNode l = visit(left);
+		check(() -> rules.arithmetic(l, n));
+		TypeNode r = visit(right);
+		check(() -> rules.arithmetic(r, n));
+		return Types.INT;
+	}
+
+	@Override
+	public TypeNode visitNode(TimesNode n) throws TypeException {
+		if (print) printNode(n);
+		return arithmetic(n.left, n.right, n);
+	}
+
+	@Override
+	public TypeNode visitNode(DivNode n) throws TypeException {
+		if (print) printNode(n);
+		return arithmetic(n.left, n.right, n);
+	}
+
+	@Override
+	public TypeNode visitNode(PlusNode n) throws TypeException {
+		if (print) printNode(n);
+		return arithmetic(n.left, n.right, n);
+	}
+
+	@Override
+	public TypeNode visitNode(MinusNode n) throws TypeException {
+		if (print) printNode(n);
+		return arithmetic(n.left, n.right, n);
+	}
+
+	@Override
+	public TypeNode visitNode(CallNode n) throws TypeException {
+		if (print) printNode(n, n.id);
+		symbolTable.resolve(n);
+
+		TypeNode t = entryType(n.entry);
+		ArrowTypeNode at = check(() -> rules.call(t, n));
+
+		for (int i = 0; i < n.arglist.size(); i++) {
+			TypeNode arg = visit(n.arglist.get(i));
+			int position = i;
+			if (at != null) check(() -> rules.argument(arg, at, position, n));
+		}
+		return at == null ? null : at.returnType;
+	}
+
+	@Override
+	public TypeNode visitNode(IdNode n) throws TypeException {
+		if (print) printNode(n, n.id);
+		symbolTable.resolve(n);
+		TypeNode t = entryType(n.entry);
+		check(() -> rules.identifier(t, n));
+		return t;
+	}
+
+	@Override
+	public TypeNode visitNode(BoolNode n) {
+		if (print) printNode(n, n.val.toString());
+		return Types.BOOL;
+	}
+
+	@Override
+	public TypeNode visitNode(IntNode n) {
+		if (print) printNode(n, n.val.toString());
+		return Types.INT;
+	}
+
+	@Override
+	public TypeNode visitNode(NewNode n) throws TypeException {
+		if (print) printNode(n, n.classID);
+		symbolTable.resolve(n);
+
+		ClassTypeNode ctn = check(() -> rules.instance(n));
+
+		for (int i = 0; i < n.arglist.size(); i++) {
+			TypeNode arg = visit(n.arglist.get(i));
+			int position = i;
+			if (ctn != null) check(() -> rules.field(arg, ctn, position, n));
+		}
+		return context.types.ref(n.classSymbol);
+	}
+
+	@Override
+	public TypeNode visitNode(ClassNode n) throws TypeException {
+		if (print) printNode(n, n.id + ((n.superID==null)?"":" extends "+n.superID));
+		int prevDecOffset = symbolTable.enterClass(n);
+		typeRels.declareClass(n.symbol, n.superSymbol);
+		ClassTypeNode parentCT = (n.superID == null) ? null : (ClassTypeNode) n.superEntry.type;
+
+		// overriding dei campi, controllato prima dei metodi
+		for (int f = 0; parentCT != null && f < n.fields.size(); f++) {
+			int field = f;
+			check(() -> rules.fieldOverriding(n, parentCT, field));
+		}
+
+		// il corpo di un metodo che ne ridefinisce uno della superclasse non e' controllato, solo il suo tipo;
+		// lo si sa solo dopo averlo dichiarato, quindi dopo la visita del corpo
+		Set<Integer> declared = new HashSet<>();
+		for (int m = 0; m < n.methods.size(); m++) {
+			MethodNode method = n.methods.get(m);
+			boolean checking = checking();
+			int mark = reports.size();
+			visit(method);
+			symbolTable.declare(n, method);
+			declared.add(method.offset);
+
+			if (TypingRules.overrides(method, parentCT)) {
+				if (checking) {
+					reports.subList(mark, reports.size()).clear();
+					failure = null;
+				}
+				int overriding = m;
+				check(() -> rules.methodOverriding(n, parentCT, overriding));
+			}
+		}
+		typeRels.declareMethods(n.symbol, declared);
+
+		symbolTable.exitClass(prevDecOffset);
+		return null;
+	}
+
+	@Override
+	public TypeNode visitNode(ClassCallNode n) throws TypeException {
+		if (print) printNode(n, n.objID+"."+n.methodID);
+		if (!symbolTable.resolve(n)) return null;
+
+		if (n.methodEntry == null) {
+			for (Node arg : n.arglist) resolveOnly(arg);
+			return null;
+		}
+
+		ArrowTypeNode atn = check(() -> rules.method(n));
+
+		for (int i = 0; i < n.arglist.size(); i++) {
+			TypeNode arg = visit(n.arglist.get(i));
+			int position = i;
+			if (atn != null) check(() -> rules.argument(arg, atn, position, n));
+		}
+		return atn == null ? null : atn.returnType;
+	}
+
+	@Override
+	public TypeNode visitNode(MethodNode n) throws TypeException {
+		if (print) printNode(n, n.id);
+		int prevNLOffset = symbolTable.enterMethod(n);
+		for (Node dec : n.declist) visitDeclaration(dec);
+		TypeNode t = visit(n.exp);
+		TypeNode retType = ckvisit(n.retType);
+		check(() -> rules.result(t, retType, n));
+		symbolTable.exitMethod(prevNLOffset);
+		return null;
+	}
+
+	@Override
+	public TypeNode visitNode(EmptyNode n) {
+		if (print) printNode(n);
+		return Types.EMPTY;
+	}
+}
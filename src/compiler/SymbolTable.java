@@ -0,0 +1,136 @@
+package compiler;
+
+import compiler.lib.*;
+
+import java.util.*;
+
+/*
+ * Symbol table piatta di SymbolTableASTVisitor: un array indicizzato dal simbolo di ogni identificatore (vedi
+ * Symbols) con la catena delle sue dichiarazioni visibili (la piu' interna in testa) e un log dei simboli dichiarati
+ * in ogni scope, che all'uscita dallo scope vengono tolti dalle loro catene. Cercare un nome costa un accesso
+ * all'array; aprire e chiudere uno scope non alloca tabelle.
+ * Lo scope di una classe e' la sua virtual table, consultata direttamente invece di essere copiata nella tabella:
+ * i nomi dichiarati nei metodi la nascondono, lei nasconde le dichiarazioni globali.
+ */
+class SymbolTable {
+
+	// dichiarazione visibile di un nome: entry, nesting level dello scope e dichiarazione che nasconde
+	private static final class Binding {
+		STentry entry;
+		final int level;
+		final Binding shadowed;
+
+		Binding(STentry entry, int level, Binding shadowed) {
+			this.entry = entry;
+			this.level = level;
+			this.shadowed = shadowed;
+		}
+	}
+
+	private Binding[] bindings = new Binding[64];  // per simbolo
+	private int[] log = new int[64];               // simboli dichiarati, scope dopo scope
+	private int logSize = 0;
+	private int[] scopeStarts = new int[16];       // per ogni scope aperto, la sua posizione nel log
+	private int level = -1;
+
+	// virtual table della classe di cui si stanno visitando i metodi e suo nesting level
+	private VirtualTable classScope = null;
+	private int classLevel = -1;
+
+	boolean isEmpty() {
+		return level < 0;
+	}
+
+	void enterScope() {
+		if (++level == scopeStarts.length) scopeStarts = Arrays.copyOf(scopeStarts, 2 * level);
+		scopeStarts[level] = logSize;
+	}
+
+	void exitScope() {
+		while (logSize > scopeStarts[level]) {
+			int symbol = log[--logSize];
+			bindings[symbol] = bindings[symbol].shadowed;
+		}
+		level--;
+	}
+
+	void enterClass(VirtualTable vt) {
+		enterScope();
+		classScope = vt;
+		classLevel = level;
+	}
+
+	void exitClass() {
+		classScope = null;
+		classLevel = -1;
+		exitScope();
+	}
+
+	private Binding binding(int symbol) {
+		return symbol < bindings.length ? bindings[symbol] : null;
+	}
+
+	// dichiara il simbolo nello scope corrente: ritorna la entry che vi aveva gia', o null
+	STentry put(int symbol, STentry entry) {
+		Binding binding = binding(symbol);
+		if (binding != null && binding.level == level) {
+			STentry old = binding.entry;
+			binding.entry = entry;
+			return old;
+		}
+		if (symbol >= bindings.length) bindings = Arrays.copyOf(bindings, Math.max(2 * bindings.length, symbol + 1));
+		if (logSize == log.length) log = Arrays.copyOf(log, 2 * logSize);
+		bindings[symbol] = new Binding(entry, level, binding);
+		log[logSize++] = symbol;
+		return null;
+	}
+
+	// la dichiarazione piu' interna del simbolo, o null
+	STentry lookup(int symbol) {
+		Binding binding = binding(symbol);
+		if (classScope != null && (binding == null || binding.level < classLevel)) {
+			STentry entry = classScope.get(symbol);
+			if (entry != null) return entry;
+		}
+		return binding == null ? null : binding.entry;
+	}
+
+	// la dichiarazione globale del simbolo (le classi), anche se nascosta da una locale
+	STentry lookupGlobal(int symbol) {
+		Binding binding = binding(symbol);
+		while (binding != null && binding.level > 0) binding = binding.shadowed;
+		return binding == null ? null : binding.entry;
+	}
+
+	/*
+	 * Virtual table di una classe: le entry di tutti i suoi campi e metodi, ereditati compresi, quindi cercare un nome
+	 * costa un accesso alla tabella a qualunque profondita' della gerarchia. Una sottoclasse condivide la tabella della
+	 * superclasse e la copia solo alla prima dichiarazione (nuova o ridefinita). Dopo la visita della classe non cambia
+	 * piu', quindi le sottoclassi vedono sempre quella completa.
+	 */
+	static final class VirtualTable {
+		private SymbolMap<STentry> entries;
+		private boolean shared; // entries e' ancora quella della superclasse
+
+		VirtualTable(VirtualTable parent) {
+			this.entries = (parent == null) ? new SymbolMap<>() : parent.entries;
+			this.shared = parent != null;
+		}
+
+		STentry get(int symbol) {
+			return entries.get(symbol);
+		}
+
+		boolean containsKey(int symbol) {
+			return entries.containsKey(symbol);
+		}
+
+		void put(int symbol, STentry entry) {
+			if (shared) {
+				entries = entries.copy();
+				shared = false;
+			}
+			entries.put(symbol, entry);
+		}
+	}
+}
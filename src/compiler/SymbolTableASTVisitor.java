@@ -8,56 +8,65 @@ import java.util.*;
 
 public class SymbolTableASTVisitor extends BaseASTVisitor<Void, VoidException> {
 	
-	private final List<Map<String, STentry>> symTable = new ArrayList<>();
+	private final SymbolTable symTable = new SymbolTable();
 	private int nestingLevel = 0; // current nesting level
 	private int decOffset = -2; // counter for offset of local declarations at current nesting level
 	public int stErrors = 0;
 
-	private final Map<String, // id della classe
-			Map<String, STentry> // virtual table della classe
-			> classTable = new HashMap<>();
+	// virtual table di ogni classe, per simbolo della classe
+	private final SymbolMap<SymbolTable.VirtualTable> classTable = new SymbolMap<>();
 
-	private Set<String> symbolIDs;
+	private BitSet symbolIDs; // simboli dei campi e dei metodi dichiarati dalla classe che si sta visitando
+	private SymbolTable.VirtualTable vt; // virtual table della classe che si sta visitando
 
-	public SymbolTableASTVisitor() {}
-	public SymbolTableASTVisitor(boolean debug) {super(debug);} // enables print for debugging
+	private final Types types;
 
-	private STentry stLookup(String id) {
-		if(symTable.isEmpty()) return null;
+	public SymbolTableASTVisitor() {this(new CompilationContext());}
+	public SymbolTableASTVisitor(boolean debug) {this(new CompilationContext(), debug);}
+	public SymbolTableASTVisitor(CompilationContext context) {types = context.types;}
+	public SymbolTableASTVisitor(CompilationContext context, boolean debug) { // enables print for debugging
+		super(debug);
+		types = context.types;
+	}
 
-		int j = nestingLevel;
-		STentry entry = null;
-		while (j >= 0 && entry == null) 
-			entry = symTable.get(j--).get(id);	
-		return entry;
+	private STentry stLookup(int symbol) {
+		if(symTable.isEmpty()) return null;
+		return symTable.lookup(symbol);
 	}
 
 	// virtual table lookup
-	private STentry vtLookup(String classID, String id) {
-		STentry entry = null;
-		if (classTable.containsKey(classID)) {
-			Map<String, STentry> virtualTable = classTable.get(classID);
-			if(virtualTable.containsKey(id)) {
-				entry = virtualTable.get(id);
-			}
-		}
-		return entry;
+	private STentry vtLookup(int classSymbol, int symbol) {
+		SymbolTable.VirtualTable virtualTable = classTable.get(classSymbol);
+		return virtualTable == null ? null : virtualTable.get(symbol);
 	}
 
 	@Override
 	public Void visitNode(ProgLetInNode n) {
 		if (print) printNode(n);
 
-		Map<String, STentry> hm = new HashMap<>();
-		symTable.add(hm);
+		enterProgram();
 	    for (Node dec : n.declist) visit(dec);
 
 		visit(n.exp);
-		symTable.remove(0);
+		exitProgram();
 
 		return null;
 	}
 
+	/*
+	 * Le visite dei nodi che dichiarano o usano nomi sono divise in passi (enterX prima dei figli, exitX dopo,
+	 * declare e resolve per i nodi senza scope), cosi' un'altra visita dell'albero, come SemanticAnalysisASTVisitor,
+	 * puo' costruire la symbol table insieme al proprio lavoro.
+	 */
+
+	void enterProgram() {
+		symTable.enterScope();
+	}
+
+	void exitProgram() {
+		symTable.exitScope();
+	}
+
 	@Override
 	public Void visitNode(ProgNode n) {
 		if (print) printNode(n);
@@ -68,41 +77,48 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void, VoidException> {
 	@Override
 	public Void visitNode(FunNode n) {
 		if (print) printNode(n);
+		int prevNLDecOffset = enterFunction(n);
+		for (Node dec : n.declist) visit(dec);
+		visit(n.exp);
+		exitFunction(prevNLDecOffset);
+		return null;
+	}
 
-		Map<String, STentry> hm = symTable.get(nestingLevel);
+	// dichiara la funzione e apre il suo scope con i parametri: ritorna l'offset da ripristinare all'uscita
+	int enterFunction(FunNode n) {
 		List<TypeNode> parTypes = new ArrayList<>();  
 		for (ParNode par : n.parlist) parTypes.add(par.getType());
-		ArrowTypeNode atn = new ArrowTypeNode(parTypes, n.retType);
+		ArrowTypeNode atn = types.arrow(parTypes, n.retType);
 		n.setType(atn);
 		STentry entry = new STentry(nestingLevel, atn, decOffset--);
+		n.entry = entry;
 
 		//inserimento di ID nella symtable
-		if (hm.put(n.id, entry) != null) {
+		if (symTable.put(n.symbol, entry) != null) {
 			System.out.println("Fun id " + n.id + " at line "+ n.getLine() +" already declared");
 			stErrors++;
 		} 
 
-		//creare una nuova hashmap per la symTable
+		//aprire un nuovo scope nella symTable
 		nestingLevel++;
-		Map<String, STentry> hmn = new HashMap<>();
-		symTable.add(hmn);
+		symTable.enterScope();
 		int prevNLDecOffset = decOffset; // stores counter for offset of declarations at previous nesting level
 		decOffset = -2;
 		
 		int parOffset = 1;
 		for (ParNode par : n.parlist)
-			if (hmn.put(par.id, new STentry(nestingLevel, par.getType(), parOffset++)) != null) {
+			if (symTable.put(par.symbol, new STentry(nestingLevel, par.getType(), parOffset++)) != null) {
 				System.out.println("Par id " + par.id + " at line "+ n.getLine() +" already declared");
 				stErrors++;
 			}
-		for (Node dec : n.declist) visit(dec);
-		visit(n.exp);
+		return prevNLDecOffset;
+	}
 
-		//rimuovere la hashmap corrente poiche' esco dallo scope               
-		symTable.remove(nestingLevel--);
+	void exitFunction(int prevNLDecOffset) {
+		//rimuovere le dichiarazioni dello scope corrente poiche' esco dallo scope
+		symTable.exitScope();
+		nestingLevel--;
 		decOffset = prevNLDecOffset; // restores counter for offset of declarations at previous nesting level
-
-		return null;
 	}
 	
 	@Override
@@ -110,16 +126,19 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void, VoidException> {
 		if (print) printNode(n);
 
 		visit(n.exp);
-		Map<String, STentry> hm = symTable.get(nestingLevel);
+		declare(n);
+		return null;
+	}
+
+	// la variabile e' visibile solo dopo la sua inizializzazione
+	void declare(VarNode n) {
 		STentry entry = new STentry(nestingLevel, n.getType(), decOffset--);
 
 		//inserimento di ID nella symtable
-		if (hm.put(n.id, entry) != null) {
+		if (symTable.put(n.symbol, entry) != null) {
 			System.out.println("Var id " + n.id + " at line "+ n.getLine() + " already declared");
 			stErrors++;
 		}
-
-		return null;
 	}
 
 	@Override
@@ -220,9 +239,14 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void, VoidException> {
 	@Override
 	public Void visitNode(CallNode n) {
 		if (print) printNode(n);
+		resolve(n);
+		for (Node arg : n.arglist) visit(arg);
+		return null;
+	}
 
+	void resolve(CallNode n) {
 		// cerca id della funzione nella symbol table
-		STentry entry = stLookup(n.id);
+		STentry entry = stLookup(n.symbol);
 		if (entry == null) {
 			System.out.println("Fun id " + n.id + " at line "+ n.getLine() + " not declared");
 			stErrors++;
@@ -230,22 +254,27 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void, VoidException> {
 			n.entry = entry;
 			n.nl = nestingLevel;
 		}
-
-		for (Node arg : n.arglist) visit(arg);
-
-		return null;
 	}
 
 	@Override
 	public Void visitNode(ClassNode n) {
 		if (print) printNode(n);
+		int prevDecOffset = enterClass(n);
+		for (MethodNode meth : n.methods) {
+			visit(meth);
+			declare(n, meth);
+		}
+		exitClass(prevDecOffset);
+		return null;
+	}
 
+	// dichiara la classe e i suoi campi e apre il suo scope: ritorna l'offset da ripristinare all'uscita
+	int enterClass(ClassNode n) {
 		// Preparing the set for not-inherited declarations
-		symbolIDs = new HashSet<>();
+		symbolIDs = new BitSet();
 
 		ClassTypeNode classTypeNode;
 		ClassTypeNode superType = null;
-		Map<String, STentry> vt; // virtual table
 
 		// se non si eredita, la lista dei campi, la lista dei metodi e la virtual table sono vuote
 		if(n.superID == null) {
@@ -253,16 +282,16 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void, VoidException> {
 					new ArrayList<>(), // fields
 					new ArrayList<>()  // methods
 			);
-			 vt = new HashMap<>();
+			 vt = new SymbolTable.VirtualTable(null);
 		} else {
 			// se si eredita, controllo che la superclasse esista
-			if(!classTable.containsKey(n.superID)) {
+			if(!classTable.containsKey(n.superSymbol)) {
 				System.out.println("Superclass id " + n.id + " at line " + n.getLine() + " not declared");
 				stErrors++;
 			}
 
 			// estraggo il tipo della sueprclasse
-			n.superEntry = symTable.get(0).get(n.superID);
+			n.superEntry = symTable.lookupGlobal(n.superSymbol);
 			superType = (ClassTypeNode) n.superEntry.type;
 
 			// inizializzo il classType e la virtual table con quelle delle superclasse
@@ -270,7 +299,7 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void, VoidException> {
 					new ArrayList<>(superType.allFields),
 					new ArrayList<>(superType.allMethods)
 			);
-			vt = new HashMap<>(classTable.get(n.superID));
+			vt = new SymbolTable.VirtualTable(classTable.get(n.superSymbol)); // condivisa fino alla prima dichiarazione
 		}
 
 		// Creating the STentry for the current class (and setting its type)
@@ -278,14 +307,14 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void, VoidException> {
 		n.type = classTypeNode;
 
 		// Checking that the class is not already declared
-		if (symTable.get(0).put(n.id, classEntry) != null) {
+		if (symTable.put(n.symbol, classEntry) != null) { // le classi sono solo globali
 			System.out.println("Class id " + n.id + " at line " + n.getLine() + " already declared");
 			stErrors++;
 		}
 
 		// Adding class's virtual table
-		classTable.put(n.id, vt);
-		symTable.add(vt);
+		classTable.put(n.symbol, vt);
+		symTable.enterClass(vt);
 
 		// Preparing the offset for field declarations
 		int prevDecOffset = decOffset;
@@ -297,19 +326,20 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void, VoidException> {
 			FieldNode field = n.fields.get(i);
 
 			// adding field to virtual table
-			if(!symbolIDs.add(field.id)) { // if a field is redeclared
+			if(symbolIDs.get(field.symbol)) { // if a field is redeclared
 				System.out.println("Field id " + field.id + " at line " + field.getLine() + " already declared");
 				stErrors++;
 			} else {
-				if(!vt.containsKey(field.id)) {
+				symbolIDs.set(field.symbol);
+				if(!vt.containsKey(field.symbol)) {
 					// not-overriding fields
-					vt.put(field.id, new STentry(nestingLevel, field.getType(), decOffset));
+					vt.put(field.symbol, new STentry(nestingLevel, field.getType(), decOffset));
 					field.offset = decOffset;
 					decOffset--;
 					classTypeNode.allFields.add(field.getType());
 				} else {
 					// overriding
-					STentry oldEntry = vt.get(field.id);
+					STentry oldEntry = vt.get(field.symbol);
 
 					// invalid overriding
 					if(oldEntry.type instanceof MethodTypeNode) {
@@ -317,7 +347,7 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void, VoidException> {
 						stErrors++;
 					} else {
 						// correct overriding
-						vt.put(field.id, new STentry(nestingLevel, field.getType(), oldEntry.offset));
+						vt.put(field.symbol, new STentry(nestingLevel, field.getType(), oldEntry.offset));
 						field.offset = oldEntry.offset;
 						classTypeNode.allFields.set(i, field.getType());
 					}
@@ -327,118 +357,137 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void, VoidException> {
 
 		// preparing offset for method declarations
 		decOffset = (n.superID == null) ? 0 : superType.allMethods.size();
+		return prevDecOffset;
+	}
 
-		// Visiting methods
-		for(int i=0; i<n.methods.size(); i++) {
-			MethodNode meth = n.methods.get(i);
+	// un metodo entra nella virtual table dopo la visita del suo corpo
+	void declare(ClassNode n, MethodNode meth) {
+		ClassTypeNode classTypeNode = n.type;
 
-			visit(meth);
+		// Extracting the method type
+		ArrowTypeNode methATN = ((MethodTypeNode) meth.getType()).fun;
 
-			// Extracting the method type
-			ArrowTypeNode methATN = ((MethodTypeNode) meth.getType()).fun;
+		if(!vt.containsKey(meth.symbol)) {
+			// not-overriding methods
+			vt.put(meth.symbol, new STentry(nestingLevel, meth.getType(), decOffset));
+			meth.offset = decOffset;
+			meth.entry = vt.get(meth.symbol);
+			decOffset++;
+			classTypeNode.allMethods.add(methATN);
+		} else {
+			// overriding
+			STentry oldEntry = vt.get(meth.symbol);
 
-			if(!vt.containsKey(meth.id)) {
-				// not-overriding methods
-				vt.put(meth.id, new STentry(nestingLevel, meth.getType(), decOffset));
-				meth.offset = decOffset;
-				decOffset++;
-				classTypeNode.allMethods.add(methATN);
+			// invalid overriding
+			if(!(oldEntry.type instanceof MethodTypeNode)) {
+				System.out.println("Field " + n.id+"."+meth.id + " cannot override a method in superclass");
+				stErrors++;
 			} else {
-				// overriding
-				STentry oldEntry = vt.get(meth.id);
-
-				// invalid overriding
-				if(!(oldEntry.type instanceof MethodTypeNode)) {
-					System.out.println("Field " + n.id+"."+meth.id + " cannot override a method in superclass");
-					stErrors++;
-				} else {
-					// correct overriding
-					vt.put(meth.id, new STentry(nestingLevel, meth.getType(), oldEntry.offset));
-					meth.offset = oldEntry.offset;
-					classTypeNode.allMethods.set(oldEntry.offset, methATN);
-				}
+				// correct overriding
+				vt.put(meth.symbol, new STentry(nestingLevel, meth.getType(), oldEntry.offset));
+				meth.offset = oldEntry.offset;
+				meth.entry = vt.get(meth.symbol);
+				classTypeNode.allMethods.set(oldEntry.offset, methATN);
 			}
 		}
+	}
 
+	void exitClass(int prevDecOffset) {
 		// Resetting old values of nesting level and offset
 		decOffset = prevDecOffset;
 		nestingLevel--;
 
 		// Removing the class's virtual table from the symbol table after visiting the declaration
-		symTable.remove(vt);
-
-		return null;
+		symTable.exitClass();
+		vt = null;
 	}
 
 	@Override
 	public Void visitNode(MethodNode n) {
 		if (print) printNode(n);
+		int prevNLOffset = enterMethod(n);
+		for(DecNode dec : n.declist) {
+			visit(dec);
+		}
 
+		// Visiting method body
+		visit(n.exp);
+		exitMethod(prevNLOffset);
+		return null;
+	}
+
+	// apre lo scope del metodo con i parametri: ritorna l'offset da ripristinare all'uscita
+	int enterMethod(MethodNode n) {
 		// Checking that the method is not already declared
-		if(!symbolIDs.add(n.id)) {
+		if(symbolIDs.get(n.symbol)) {
 			System.out.println("Method id " + n.id + " at line " + n.getLine() + " already declared");
 			stErrors++;
 		}
+		symbolIDs.set(n.symbol);
 
 		// Creating and setting the method type
 		List<TypeNode> parTypes = n.parlist.stream()
 				.map(DecNode::getType)
 				.toList(); // Collecting parameters
-		MethodTypeNode methodType = new MethodTypeNode(new ArrowTypeNode(parTypes, n.retType));
+		MethodTypeNode methodType = types.method(types.arrow(parTypes, n.retType));
 		n.setType(methodType);
 
 		// Preparing the offset for the parameters
 		int prevNLOffset = decOffset;
 		decOffset = 1;
 
-		// Preparing the map for the next nesting level
-		HashMap<String, STentry> nlMethodMap = new HashMap<>();
+		// Opening the scope of the next nesting level
 		nestingLevel++;
-		symTable.add(nlMethodMap);
+		symTable.enterScope();
 
 		// Setting parameters without visit
 		for (ParNode par : n.parlist) {
-			if (nlMethodMap.put(par.id, new STentry(nestingLevel, par.getType(), decOffset++)) != null) {
+			if (symTable.put(par.symbol, new STentry(nestingLevel, par.getType(), decOffset++)) != null) {
 				System.out.println("Par id " + par.id + " at line " + par.getLine() + " already declared");
 				stErrors++;
 			}
 		}
 
-		// Visiting declarations
-		for(DecNode dec : n.declist) {
-			visit(dec);
-		}
-
-		// Visiting method body
-		visit(n.exp);
+		// local declarations start below the return address, as in functions
+		decOffset = -2;
+		return prevNLOffset;
+	}
 
+	void exitMethod(int prevNLOffset) {
 		decOffset = prevNLOffset;
 
 		nestingLevel--;
-		symTable.remove(nlMethodMap);
-
-		return null;
+		symTable.exitScope();
 	}
 
 	@Override
 	public Void visitNode(ClassCallNode n) {
 		if (print) printNode(n);
+		if (!resolve(n)) return null; // avoid dereferencing a null pointer
+		for (Node arg : n.arglist) {
+			visit(arg);
+		}
+		return null;
+	}
 
+	// false se l'oggetto non e' dichiarato: gli argomenti non vanno visitati
+	boolean resolve(ClassCallNode n) {
 		// Looking for existing object in the symbol table
-		STentry objEntry = stLookup(n.objID);
+		STentry objEntry = stLookup(n.objSymbol);
 		if (objEntry == null) {
 			System.out.println("Object " + n.objID + " at line "+ n.getLine() + " not declared");
 			stErrors++;
-			return null; // avoid dereferencing a null pointer
+			return false;
 		} else {
 			n.entry = objEntry;
 			n.nl = nestingLevel;
 		}
 
-		String classID = ((RefTypeNode) objEntry.type).classID;
+		RefTypeNode classType = (RefTypeNode) objEntry.type;
+		String classID = classType.classID;
 
 		// Looking for method in the virtual table
-		STentry methodEntry = vtLookup(classID, n.methodID);
+		STentry methodEntry = vtLookup(classType.classSymbol, n.methodSymbol);
 		if (methodEntry == null) {
 			System.out.println("Method " + n.methodID + " at line " + n.getLine() + " not declared in class " + classID);
 			stErrors++;
@@ -446,40 +495,39 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void, VoidException> {
 			n.methodEntry = methodEntry;
 			n.nl = nestingLevel;
 		}
+		return true;
+	}
 
+	@Override
+	public Void visitNode(NewNode n) {
+		if (print) printNode(n);
+		resolve(n);
 		for (Node arg : n.arglist) {
 			visit(arg);
 		}
-
 		return null;
 	}
 
-	@Override
-	public Void visitNode(NewNode n) {
-		if (print) printNode(n);
-
+	void resolve(NewNode n) {
 		// checking that the class exists
-		String classID = n.classID;
-		if (!classTable.containsKey(classID)) {
+		if (!classTable.containsKey(n.classSymbol)) {
 			System.out.println("Class id " + n.classID + " at line " + n.getLine() + " not declared");
 			stErrors++;
 		}
 
 		// Setting the entry as the one of the class
-		n.entry = symTable.get(0).get(classID);
-
-		for (Node arg : n.arglist) {
-			visit(arg);
-		}
-
-		return null;
+		n.entry = symTable.lookupGlobal(n.classSymbol);
 	}
 
 	@Override
 	public Void visitNode(IdNode n) {
 		if (print) printNode(n);
+		resolve(n);
+		return null;
+	}
 
-		STentry entry = stLookup(n.id);
+	void resolve(IdNode n) {
+		STentry entry = stLookup(n.symbol);
 		if (entry == null) {
 			System.out.println("Var or Par id " + n.id + " at line " + n.getLine() + " not declared");
 			stErrors++;
@@ -487,8 +535,6 @@ public class SymbolTableASTVisitor extends BaseASTVisitor<Void, VoidException> {
 			n.entry = entry;
 			n.nl = nestingLevel;
 		}
-
-		return null;
 	}
 
 	@Override
@@ -2,14 +2,16 @@ package compiler;
 
 import compiler.exc.IncomplException;
 import compiler.exc.TypeException;
-import compiler.lib.FOOLlib;
+import compiler.lib.Code;
+import compiler.lib.CompilationContext;
 import compiler.lib.Node;
 import compiler.lib.TypeNode;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
 import org.antlr.v4.runtime.tree.ParseTree;
-import visualsvm.*;
+import svm.ObjectFile;
+import visualsvm.ExecuteVM;
 
 import java.io.BufferedWriter;
 import java.io.FileWriter;
@@ -30,12 +32,14 @@ public class Test {
     	System.out.println("You had "+lexer.lexicalErrors+" lexical errors and "+
     		parser.getNumberOfSyntaxErrors()+" syntax errors.\n");
 
+    	CompilationContext context = new CompilationContext();
+
     	System.out.println("Generating AST.");
-    	ASTGenerationSTVisitor visitor = new ASTGenerationSTVisitor(); // use true to visualize the ST
+    	ASTGenerationSTVisitor visitor = new ASTGenerationSTVisitor(context); // use true to visualize the ST
     	Node ast = visitor.visit(st);
 
     	System.out.println("\nEnriching AST via symbol table.");
-    	SymbolTableASTVisitor symtableVisitor = new SymbolTableASTVisitor();
+    	SymbolTableASTVisitor symtableVisitor = new SymbolTableASTVisitor(context);
     	symtableVisitor.visit(ast);
     	System.out.println("You had "+symtableVisitor.stErrors+" symbol table errors.\n");
 
@@ -44,7 +48,7 @@ public class Test {
 
     	System.out.println("\nChecking Types.");
     	try {
-    		TypeCheckEASTVisitor typeCheckVisitor = new TypeCheckEASTVisitor();
+    		TypeCheckEASTVisitor typeCheckVisitor = new TypeCheckEASTVisitor(context);
     		TypeNode mainType = typeCheckVisitor.visit(ast);
     		System.out.print("Type of main program expression is: ");
     		new PrintEASTVisitor().visit(mainType);
@@ -53,34 +57,41 @@ public class Test {
     	} catch (TypeException e) {
     		System.out.println("Type checking error in main program expression: " + e.text);
     	}
-    	System.out.println("You had "+ FOOLlib.typeErrors+" type checking errors.\n");
+    	System.out.println("You had "+ context.typeErrors+" type checking errors.\n");
 
-    	int frontEndErrors = lexer.lexicalErrors + parser.getNumberOfSyntaxErrors() + symtableVisitor.stErrors + FOOLlib.typeErrors;
+    	int frontEndErrors = lexer.lexicalErrors + parser.getNumberOfSyntaxErrors() + symtableVisitor.stErrors + context.typeErrors;
 		System.out.println("You had a total of " + frontEndErrors + " front-end errors.\n");
 		
 		if (frontEndErrors > 0) System.exit(1);
 
+    	System.out.println("Lifting nested functions.");
+    	ast = new LambdaLiftingASTVisitor(context).visit(ast);
+    	System.out.println("You had "+context.liftedFunctions+" lifted functions.\n");
+
+    	System.out.println("Inlining small functions and methods.");
+    	ast = new InliningASTVisitor(context).visit(ast);
+    	System.out.println("You had "+context.inlinedCalls+" inlined calls.\n");
+
+    	System.out.println("Folding constant expressions.\n");
+    	ast = new ConstantFoldingASTVisitor().visit(ast);
+
     	System.out.println("Generating code.");
-    	String code = new CodeGenerationASTVisitor().visit(ast);        
-    	BufferedWriter out = new BufferedWriter(new FileWriter(fileName+".asm"));
-    	out.write(code);
+    	Code code = new CodeGenerationASTVisitor(context).visit(ast);
+    	if (context.peephole != null)
+    		System.out.println("You had "+(context.peephole.sizeBefore() - context.peephole.sizeAfter())+" code cells removed by the peephole optimizer.\n");
+    	BufferedWriter out = new BufferedWriter(new FileWriter(fileName+".asm")); // dump testuale, solo per debug
+    	code.write(out);
     	out.close();
 
     	System.out.println("\nAssembling generated code.");
-    	CharStream charsASM = CharStreams.fromFileName(fileName+".asm");
-    	SVMLexer lexerASM = new SVMLexer(charsASM);
-    	CommonTokenStream tokensASM = new CommonTokenStream(lexerASM);
-    	SVMParser parserASM = new SVMParser(tokensASM);
-
-    	parserASM.assembly();
+    	ObjectFile program = code.assemble();
 
-    	// needed only for debug
-    	System.out.println("You had: "+lexerASM.lexicalErrors+" lexical errors and "+parserASM.getNumberOfSyntaxErrors()+" syntax errors.\n");
-    	if (lexerASM.lexicalErrors+parserASM.getNumberOfSyntaxErrors()>0) System.exit(1);
+    	System.out.println("Writing object file.");
+    	program.write(Paths.get(fileName+".svm"));
 
     	System.out.println("Running generated code via Stack Virtual Machine.");
-    	//ExecuteVM vm = new ExecuteVM(parserASM.code);
-		ExecuteVM vm = new ExecuteVM(parserASM.code, parserASM.sourceMap, Files.readAllLines(Paths.get(fileName+".asm")));
+    	//svm.ExecuteVM vm = new svm.ExecuteVM(program);
+		ExecuteVM vm = new ExecuteVM(program.code, program.sourceMap, Files.readAllLines(Paths.get(fileName+".asm")));
     	vm.cpu();
     }
 }
\ No newline at end of file
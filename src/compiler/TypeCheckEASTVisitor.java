@@ -4,7 +4,7 @@ import compiler.exc.*;
 import compiler.lib.*;
 import compiler.AST.*;
 
-import static compiler.TypeRels.*;
+import java.util.*;
 
 // visitNode(n) fa il type checking di un Node n e ritorna:
 // - per una espressione, il suo tipo (oggetto BoolTypeNode o IntTypeNode)
@@ -14,8 +14,17 @@ import static compiler.TypeRels.*;
 // visitSTentry(s) ritorna, per una STentry s, il tipo contenuto al suo interno
 public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode, TypeException> {
 
-	public TypeCheckEASTVisitor() { super(true); } // enables incomplete tree exceptions
-	public TypeCheckEASTVisitor(boolean debug) { super(true, debug); } // enables print for debugging
+	private final CompilationContext context;
+	private final TypeRels typeRels;
+	private final TypingRules rules;
+
+	public TypeCheckEASTVisitor(CompilationContext context) { this(context, false); } // enables incomplete tree exceptions
+	public TypeCheckEASTVisitor(CompilationContext context, boolean debug) { // enables print for debugging
+		super(true, debug);
+		this.context = context;
+		this.typeRels = context.typeRels;
+		this.rules = new TypingRules(typeRels);
+	}
 
 	//checks that a type object is visitable (not incomplete) 
 	private TypeNode ckvisit(TypeNode t) throws TypeException {
@@ -32,17 +41,28 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode, TypeExceptio
 				visit(dec);
 			} catch (IncomplException ignored) {
 			} catch (TypeException e) {
-				System.out.println("Type checking error in a declaration: " + e.text);
+				context.typeErrors++;
+				System.out.println(TypingRules.declarationError(e));
 			}
 		}
 
-		return visit(n.exp);
+		return visitMain(n.exp);
 	}
 
 	@Override
 	public TypeNode visitNode(ProgNode n) throws TypeException {
 		if (print) printNode(n);
-		return visit(n.exp);
+		return visitMain(n.exp);
+	}
+
+	// un errore nell'espressione principale arriva al chiamante, ma va contato
+	private TypeNode visitMain(Node exp) throws TypeException {
+		try {
+			return visit(exp);
+		} catch (TypeException e) {
+			context.typeErrors++;
+			throw e;
+		}
 	}
 
 	@Override
@@ -54,12 +74,12 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode, TypeExceptio
 				visit(dec);
 			} catch (IncomplException ignored) {
 			} catch (TypeException e) {
-				System.out.println("Type checking error in a declaration: " + e.text);
+				context.typeErrors++;
+				System.out.println(TypingRules.declarationError(e));
 			}
 		}
 
-		if ( !isSubtype(visit(n.exp), ckvisit(n.retType)) )
-			throw new TypeException("Wrong return type for function " + n.id, n.getLine());
+		rules.result(visit(n.exp), ckvisit(n.retType), n);
 
 		return null;
 	}
@@ -67,8 +87,7 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode, TypeExceptio
 	@Override
 	public TypeNode visitNode(VarNode n) throws TypeException {
 		if (print) printNode(n, n.id);
-		if ( !isSubtype(visit(n.exp), ckvisit(n.getType())) )
-			throw new TypeException("Incompatible value for variable " + n.id, n.getLine());
+		rules.variable(visit(n.exp), ckvisit(n.getType()), n);
 		return null;
 	}
 
@@ -83,23 +102,11 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode, TypeExceptio
 		if (print) printNode(n);
 
 		// checking that the condition is a boolean
-		if ( !(isSubtype(visit(n.cond), new BoolTypeNode())) ) {
-			throw new TypeException("Non boolean condition in if", n.getLine());
-		}
+		rules.condition(visit(n.cond), n);
 
 		TypeNode t = visit(n.th);
 		TypeNode e = visit(n.el);
-
-		// se sono uno sottotipo dell'altro, restituisco il supertipo
-		if (isSubtype(t, e)) return e;
-		if (isSubtype(e, t)) return t;
-
-		// cerco il loro lowest common ancestor
-		TypeNode ancestor = lowestCommonAncestor(t, e);
-		if(ancestor != null) return ancestor;
-
-		// se non sono sottotipi e non hanno un LCA, TypeException
-		throw new TypeException("Incompatible types in then-else branches", n.getLine());
+		return rules.branches(t, e, n);
 	}
 
 	@Override
@@ -107,9 +114,7 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode, TypeExceptio
 		if (print) printNode(n);
 		TypeNode l = visit(n.left);
 		TypeNode r = visit(n.right);
-		if ( !(isSubtype(l, r) || isSubtype(r, l)) )
-			throw new TypeException("Incompatible types in equal", n.getLine());
-		return new BoolTypeNode();
+		return rules.comparison(l, r, n);
 	}
 
 	@Override
@@ -117,9 +122,7 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode, TypeExceptio
 		if (print) printNode(n);
 		TypeNode l = visit(n.left);
 		TypeNode r = visit(n.right);
-		if ( !(isSubtype(l, r) || isSubtype(r, l)) )
-			throw new TypeException("Incompatible types in greater-equal", n.getLine());
-		return new BoolTypeNode();
+		return rules.comparison(l, r, n);
 	}
 
 	@Override
@@ -127,9 +130,7 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode, TypeExceptio
 		if (print) printNode(n);
 		TypeNode l = visit(n.left);
 		TypeNode r = visit(n.right);
-		if ( !(isSubtype(l, r) || isSubtype(r, l)) )
-			throw new TypeException("Incompatible types in less-equal", n.getLine());
-		return new BoolTypeNode();
+		return rules.comparison(l, r, n);
 	}
 
 	@Override
@@ -137,10 +138,7 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode, TypeExceptio
 		if (print) printNode(n);
 		TypeNode l = visit(n.left);
 		TypeNode r = visit(n.right);
-		if ( !(l instanceof BoolTypeNode) || !(r instanceof BoolTypeNode) ) {
-			throw new TypeException("Non-boolean in or", n.getLine());
-		}
-		return new BoolTypeNode();
+		return rules.logical(l, r, n);
 	}
 
 	@Override
@@ -148,76 +146,51 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode, TypeExceptio
 		if (print) printNode(n);
 		TypeNode l = visit(n.left);
 		TypeNode r = visit(n.right);
-		if ( !(l instanceof BoolTypeNode) || !(r instanceof BoolTypeNode) ) {
-			throw new TypeException("Non-boolean in and", n.getLine());
-		}
-		return new BoolTypeNode();
+		return rules.logical(l, r, n);
 	}
 
 	@Override
 	public TypeNode visitNode(NotNode n) throws TypeException {
 		if (print) printNode(n);
-		TypeNode t = visit(n.exp);
-		if ( !(t instanceof BoolTypeNode) ) {
-			throw new TypeException("Non-boolean in not", n.getLine());
-		}
-		return new BoolTypeNode();
+		return rules.not(visit(n.exp), n);
 	}
 
 	@Override
 	public TypeNode visitNode(TimesNode n) throws TypeException {
 		if (print) printNode(n);
-		if ( !(isSubtype(visit(n.left), new IntTypeNode())
-				&& isSubtype(visit(n.right), new IntTypeNode())) )
-			throw new TypeException("Non integers in multiplication", n.getLine());
-		return new IntTypeNode();
+		rules.arithmetic(visit(n.left), n);
+		return rules.arithmetic(visit(n.right), n);
 	}
 
 	@Override
 	public TypeNode visitNode(DivNode n) throws TypeException {
 		if (print) printNode(n);
-		if ( !(isSubtype(visit(n.left), new IntTypeNode())
-				&& isSubtype(visit(n.right), new IntTypeNode())) )
-			throw new TypeException("Non integers in division", n.getLine());
-		return new IntTypeNode();
+		rules.arithmetic(visit(n.left), n);
+		return rules.arithmetic(visit(n.right), n);
 	}
 
 	@Override
 	public TypeNode visitNode(PlusNode n) throws TypeException {
 		if (print) printNode(n);
-		if ( !(isSubtype(visit(n.left), new IntTypeNode())
-				&& isSubtype(visit(n.right), new IntTypeNode())) )
-			throw new TypeException("Non integers in sum", n.getLine());
-		return new IntTypeNode();
+		rules.arithmetic(visit(n.left), n);
+		return rules.arithmetic(visit(n.right), n);
 	}
 
 	@Override
 	public TypeNode visitNode(MinusNode n) throws TypeException {
 		if (print) printNode(n);
-		if ( !(isSubtype(visit(n.left), new IntTypeNode())
-				&& isSubtype(visit(n.right), new IntTypeNode())) )
-			throw new TypeException("Non integers in subtraction", n.getLine());
-		return new IntTypeNode();
+		rules.arithmetic(visit(n.left), n);
+		return rules.arithmetic(visit(n.right), n);
 	}
 
 	@Override
 	public TypeNode visitNode(CallNode n) throws TypeException {
 		if (print) printNode(n, n.id);
 
-		TypeNode t = visit(n.entry);
-		if(t instanceof MethodTypeNode) {
-			t = ((MethodTypeNode) t).fun;
-		}
-
-		if ( !(t instanceof ArrowTypeNode at) )
-			throw new TypeException("Invocation of a non-function "+n.id, n.getLine());
-
-		if ( !(at.parlist.size() == n.arglist.size()) )
-			throw new TypeException("Wrong number of parameters in the invocation of "+n.id, n.getLine());
+		ArrowTypeNode at = rules.call(visit(n.entry), n);
 
 		for (int i = 0; i < n.arglist.size(); i++)
-			if ( !(isSubtype(visit(n.arglist.get(i)), at.parlist.get(i))) )
-				throw new TypeException("Wrong type for "+i+"-th parameter in the invocation of "+n.id, n.getLine());
+			rules.argument(visit(n.arglist.get(i)), at, i, n);
 
 		return at.returnType;
 	}
@@ -225,22 +198,19 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode, TypeExceptio
 	@Override
 	public TypeNode visitNode(IdNode n) throws TypeException {
 		if (print) printNode(n, n.id);
-		TypeNode t = visit(n.entry); 
-		if (t instanceof ArrowTypeNode)
-			throw new TypeException("Wrong usage of function identifier " + n.id, n.getLine());
-		return t;
+		return rules.identifier(visit(n.entry), n);
 	}
 
 	@Override
 	public TypeNode visitNode(BoolNode n) {
 		if (print) printNode(n,n.val.toString());
-		return new BoolTypeNode();
+		return Types.BOOL;
 	}
 
 	@Override
 	public TypeNode visitNode(IntNode n) {
 		if (print) printNode(n,n.val.toString());
-		return new IntTypeNode();
+		return Types.INT;
 	}
 	
 	@Override
@@ -279,64 +249,39 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode, TypeExceptio
 	public TypeNode visitNode(NewNode n) throws TypeException {
 		if (print) printNode(n);
 
-		// Handle incomplete nodes
-		if (n.entry == null) {
-			throw new TypeException("Invalid type", n.getLine());
-		}
-
-		ClassTypeNode ctn = ((ClassTypeNode) n.entry.type);
-
-		// Checking number of parameters
-		if ( n.arglist.size() != ctn.allFields.size() ) {
-			throw new TypeException("Wrong number of parameters for new " + n.classID, n.getLine());
-		}
+		// Checking the class (incomplete nodes included) and the number of parameters
+		ClassTypeNode ctn = rules.instance(n);
 
 		// Checking parameter types
 		for (int i=0; i<ctn.allFields.size(); i++) {
-			Node arg = n.arglist.get(i);
-			TypeNode t = visit(arg);
-
-			if ( !(isSubtype(t, ctn.allFields.get(i))) ) {
-				throw new TypeException("Wrong type of "+i+"-th parameter", n.getLine());
-			}
+			rules.field(visit(n.arglist.get(i)), ctn, i, n);
 		}
 
-		return new RefTypeNode(n.classID);
+		return context.types.ref(n.classSymbol);
 	}
 
 	@Override
 	public TypeNode visitNode(ClassNode n) throws TypeException {
 		if (print) printNode(n, n.id + ((n.superID==null)?"":" extends "+n.superID));
 
+		Set<Integer> declared = new HashSet<>();
+		for (MethodNode method : n.methods) declared.add(method.offset);
+		typeRels.declareClass(n.symbol, n.superSymbol);
+		typeRels.declareMethods(n.symbol, declared);
+
 		if(n.superID != null) {
-			// se eredito, aggiungo la mia classe in superType
-			superType.put(n.id, n.superID);
 
 			ClassTypeNode parentCT = (ClassTypeNode) n.superEntry.type;
 
 			// confronto che gli eventuali overriding di campi siano corretti
 			for(int f=0; f<n.fields.size(); f++) {
-				int position = -n.fields.get(f).offset - 1;
-
-				if(position < parentCT.allFields.size() && f < n.type.allFields.size()) {
-					// overriding
-					if( !isSubtype(n.type.allFields.get(position), parentCT.allFields.get(position)) ) {
-						throw new TypeException("Invalid overriding of " + f + "-th field in class " + n.id, n.getLine());
-					}
-				}
+				rules.fieldOverriding(n, parentCT, f);
 			}
 
 			// confronto che gli eventuali overriding di metodi siano corretti
 			for(int m=0; m<n.methods.size(); m++) {
-				int position = n.methods.get(m).offset;
-
-				if(position < parentCT.allMethods.size()) {
-					// overriding
-					ArrowTypeNode atn = n.type.allMethods.get(position);
-					ArrowTypeNode fatherAtn = parentCT.allMethods.get(position);
-					if( !isSubtype(atn, fatherAtn) ) {
-						throw new TypeException("Invalid overriding of " + m + "-th method in class " + n.id, n.getLine());
-					}
+				if(TypingRules.overrides(n.methods.get(m), parentCT)) {
+					rules.methodOverriding(n, parentCT, m);
 				} else {
 					// senza overriding visito il metodo
 					visit(n.methods.get(m));
@@ -358,25 +303,13 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode, TypeExceptio
 
 		if(n.methodEntry == null) return null; // early exit to avoid NullPointerException on wrong ClassCallNodes
 
-		if(n.methodEntry.type instanceof MethodTypeNode) {
-			ArrowTypeNode atn = ((MethodTypeNode) n.methodEntry.type).fun;
+		ArrowTypeNode atn = rules.method(n);
 
-			if(n.arglist.size() != atn.parlist.size()) {
-				throw new TypeException("Wrong number of arguments in method " + n.methodID + " invocation", n.getLine());
-			}
-
-			for(int i=0; i<n.arglist.size(); i++) {
-				TypeNode argType = visit(n.arglist.get(i));
-				TypeNode declarationArgType = atn.parlist.get(i);
-				if(!isSubtype(argType, declarationArgType)) {
-					throw new TypeException("Wrong type of " + i + "-th argument in method " + n.methodID + " invocation", n.getLine());
-				}
-			}
-
-			return atn.returnType;
-		} else {
-			throw new TypeException("Cannot call id " + n.methodID + " because it is not a method", n.getLine());
+		for(int i=0; i<n.arglist.size(); i++) {
+			rules.argument(visit(n.arglist.get(i)), atn, i, n);
 		}
+
+		return atn.returnType;
 	}
 
 	@Override
@@ -388,14 +321,13 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode, TypeExceptio
 				visit(dec);
 			} catch (IncomplException ignored) {
 			} catch (TypeException e) {
-				System.out.println("Type checking error in a declaration: " + e.text);
+				context.typeErrors++;
+				System.out.println(TypingRules.declarationError(e));
 			}
 		}
 
 		// checking that the type of the result is actually the return type or "lower"
-		if ( !isSubtype(visit(n.exp), ckvisit(n.retType)) ) {
-			throw new TypeException("Wrong return type for method " + n.id, n.getLine());
-		}
+		rules.result(visit(n.exp), ckvisit(n.retType), n);
 
 		return null;
 	}
@@ -409,7 +341,7 @@ public class TypeCheckEASTVisitor extends BaseEASTVisitor<TypeNode, TypeExceptio
 	@Override
 	public TypeNode visitNode(EmptyNode n) {
 		if (print) printNode(n);
-		return new EmptyTypeNode();
+		return Types.EMPTY;
 	}
 
 	@Override
@@ -6,15 +6,74 @@ import compiler.AST.*;
 import java.util.*;
 
 /*
-	Classe con metodi statici di utility per definire relazioni tra tipi.
+	Relazioni tra tipi di una compilazione (ognuna ha le sue classi, vedi CompilationContext).
 */
 public class TypeRels {
 
-	// Map da classID a superclassID
-	public static Map<String, String> superType = new HashMap<>();
+	private final Types types;
+
+	/*
+	 * Display delle classi (Cohen): per ogni simbolo di classe i suoi antenati dalla radice della gerarchia fino
+	 * alla classe stessa, quindi display[c][d] e' l'antenato di c a profondita' d. Una classe e' sottoclasse di sup
+	 * se nel suo display, alla profondita' di sup, c'e' sup: il controllo non dipende dalla profondita'.
+	 * Il display di una classe si costruisce una volta sola, quando viene dichiarata, da quello della superclasse.
+	 */
+	private int[][] displays = new int[0][];
+
+	// class hierarchy analysis: per ogni classe gli offset (nella dispatch table) dei metodi ridefiniti da almeno
+	// una sua sottoclasse, aggiornati ad ogni classe dichiarata (le superclassi sono dichiarate prima)
+	private final SymbolMap<Set<Integer>> overridden = new SymbolMap<>();
+
+	public TypeRels(Types types) {
+		this.types = types;
+	}
+
+	// registra una classe e la sua superclasse (-1 se non eredita)
+	public void declareClass(int classSymbol, int superSymbol) {
+		if (classSymbol >= displays.length) displays = Arrays.copyOf(displays, Math.max(classSymbol + 1, 2 * displays.length));
+		int[] ancestors = superSymbol < 0 ? new int[0] : display(superSymbol);
+		int[] display = Arrays.copyOf(ancestors, ancestors.length + 1);
+		display[ancestors.length] = classSymbol;
+		displays[classSymbol] = display;
+	}
+
+	// registra gli offset dei metodi che una classe gia' registrata dichiara
+	public void declareMethods(int classSymbol, Set<Integer> declaredMethods) {
+		int[] display = display(classSymbol);
+		for (int i = 0; i < display.length - 1; i++) {
+			int ancestor = display[i];
+			Set<Integer> methods = overridden.get(ancestor);
+			if (methods == null) overridden.put(ancestor, methods = new HashSet<>());
+			methods.addAll(declaredMethods);
+		}
+	}
+
+	// display della classe; una classe non (ancora) dichiarata non ha antenati
+	private int[] display(int classSymbol) {
+		int[] display = classSymbol < displays.length ? displays[classSymbol] : null;
+		return display != null ? display : new int[] {classSymbol};
+	}
+
+	// true se una sottoclasse (diretta o indiretta) della classe ridefinisce il metodo all'offset dato: altrimenti
+	// una chiamata su un oggetto di quel tipo statico ha una sola destinazione, nota a compile time
+	public boolean isOverridden(int classSymbol, int offset) {
+		Set<Integer> methods = overridden.get(classSymbol);
+		return methods != null && methods.contains(offset);
+	}
+
+	// true se la classe sub e' sup o una sua sottoclasse (diretta o indiretta)
+	private boolean isSubclass(int sub, int sup) {
+		if (sub == sup) return true;
+		int[] subDisplay = display(sub);
+		int depth = display(sup).length - 1;
+		return depth < subDisplay.length && subDisplay[depth] == sup;
+	}
 
 	// controlla che a sia sottotipo di b
-	public static boolean isSubtype(TypeNode a, TypeNode b) {
+	public boolean isSubtype(TypeNode a, TypeNode b) {
+		// ogni tipo è sottotipo di sé stesso: tipi uguali sono lo stesso oggetto (vedi Types)
+		if(a == b) return true;
+
 		// bool è sottotipo di int e null è sottotipo di qualsiasi classe
 		if((a instanceof BoolTypeNode) && (b instanceof IntTypeNode) ||
 				(a instanceof EmptyTypeNode) && (b instanceof RefTypeNode)) {
@@ -23,15 +82,8 @@ public class TypeRels {
 
 		// class subtyping
 		if(a instanceof RefTypeNode && b instanceof RefTypeNode) {
-			String current = ((RefTypeNode) a).classID;
-			String end = ((RefTypeNode) b).classID;
-
-			// seguo la catena di ereditarietà finchè non trovo null oppure la classe b
-			while(!current.equals(end)) {
-				current = superType.get(current);
-				if(current == null) return false;
-			}
-			return true;
+			// a è sottoclasse di b se il suo display contiene b alla profondità di b
+			return isSubclass(((RefTypeNode) a).classSymbol, ((RefTypeNode) b).classSymbol);
 		}
 
 		if(a instanceof ArrowTypeNode atnA && b instanceof ArrowTypeNode atnB) {
@@ -52,11 +104,11 @@ public class TypeRels {
 			return true;
 		}
 
-		// se il caso non rispetta nessuna delle situazioni qui sopra, allora controllo se hanno la stessa classe
-		return a.getClass().equals(b.getClass());
+		// se il caso non rispetta nessuna delle situazioni qui sopra, i tipi sono diversi
+		return false;
 	}
 
-	public static TypeNode lowestCommonAncestor(TypeNode a, TypeNode b) {
+	public TypeNode lowestCommonAncestor(TypeNode a, TypeNode b) {
 		// se sono entrambi RefType o EmptyType
 		if( ((a instanceof RefTypeNode) || (a instanceof EmptyTypeNode)) &&
 				((b instanceof RefTypeNode) || (b instanceof EmptyTypeNode))) {
@@ -65,15 +117,17 @@ public class TypeRels {
 			if(a instanceof EmptyTypeNode) return b;
 			if(b instanceof EmptyTypeNode) return a;
 
-			// altrimenti risalgo la catena dei supertipi di a cercando una classe che sia anche supertipo di b
-			RefTypeNode typeA = (RefTypeNode) a;
-			RefTypeNode typeB = (RefTypeNode) b;
-
-			while(typeA.classID != null) {
-				if(isSubtype(typeB, typeA)) {
-					return typeA;
+			// altrimenti l'antenato comune piu' profondo: i display di a e b coincidono fino alla sua profondita'
+			RefTypeNode refA = (RefTypeNode) a;
+			RefTypeNode refB = (RefTypeNode) b;
+			if(isSubclass(refB.classSymbol, refA.classSymbol)) return a;
+			if(isSubclass(refA.classSymbol, refB.classSymbol)) return b;
+			int[] displayA = display(refA.classSymbol);
+			int[] displayB = display(refB.classSymbol);
+			for(int depth = Math.min(displayA.length, displayB.length) - 1; depth >= 0; depth--) {
+				if(displayA[depth] == displayB[depth]) {
+					return types.ref(displayA[depth]);
 				}
-				typeA = new RefTypeNode(superType.get(typeA.classID));
 			}
 
 			// se non la trovo, restituisco null
@@ -86,10 +140,10 @@ public class TypeRels {
 
 			// se almeno uno dei due è int, restituisco int
 			if ((a instanceof IntTypeNode) || (b instanceof IntTypeNode)) {
-				return new IntTypeNode();
+				return Types.INT;
 			} else {
 				// altrimenti bool
-				return new BoolTypeNode();
+				return Types.BOOL;
 			}
 		}
 
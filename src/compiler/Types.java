@@ -0,0 +1,56 @@
+package compiler;
+
+import compiler.lib.*;
+import compiler.AST.*;
+
+import java.util.*;
+
+/*
+	Tipi di una compilazione, un solo oggetto per ogni tipo: int, bool e il tipo di null sono unici, c'e' un solo
+	RefTypeNode per classe e un solo ArrowTypeNode (e MethodTypeNode) per ogni lista di tipi dei parametri e tipo
+	di ritorno, a loro volta unici. Due tipi sono uguali se e solo se sono lo stesso oggetto.
+	I tipi sono condivisi tra tutti i nodi che li usano, quindi non hanno una riga.
+*/
+public class Types {
+
+	public static final IntTypeNode INT = new IntTypeNode();
+	public static final BoolTypeNode BOOL = new BoolTypeNode();
+	public static final EmptyTypeNode EMPTY = new EmptyTypeNode();
+
+	private record Signature(List<TypeNode> parlist, TypeNode returnType) {}
+
+	private final Symbols symbols;
+	private RefTypeNode[] refs = new RefTypeNode[16]; // per simbolo della classe
+	private final Map<Signature, ArrowTypeNode> arrows = new HashMap<>();
+	private final Map<ArrowTypeNode, MethodTypeNode> methods = new HashMap<>();
+
+	public Types(Symbols symbols) {
+		this.symbols = symbols;
+	}
+
+	// riferimento alla classe con il simbolo dato
+	public RefTypeNode ref(int classSymbol) {
+		if (classSymbol >= refs.length) refs = Arrays.copyOf(refs, Math.max(classSymbol + 1, 2 * refs.length));
+		RefTypeNode ref = refs[classSymbol];
+		if (ref == null) refs[classSymbol] = ref = new RefTypeNode(symbols.name(classSymbol), classSymbol);
+		return ref;
+	}
+
+	// i tipi dei parametri e il tipo di ritorno devono essere gia' unici: si confrontano per identita'
+	// (in un albero incompleto possono mancare, cioe' essere null)
+	public ArrowTypeNode arrow(List<TypeNode> parlist, TypeNode returnType) {
+		Signature signature = new Signature(new ArrayList<>(parlist), returnType);
+		ArrowTypeNode arrow = arrows.get(signature);
+		if (arrow == null) arrows.put(signature, arrow = new ArrowTypeNode(signature.parlist(), returnType));
+		return arrow;
+	}
+
+	public MethodTypeNode method(ArrowTypeNode fun) {
+		return methods.computeIfAbsent(fun, MethodTypeNode::new);
+	}
+
+	// numero di tipi funzionali distinti della compilazione
+	public int arrows() {
+		return arrows.size();
+	}
+}
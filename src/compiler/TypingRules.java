@@ -0,0 +1,159 @@
+package compiler;
+
+import compiler.exc.*;
+import compiler.lib.*;
+import compiler.AST.*;
+
+/*
+	Regole di tipo di FOOL, condivise da TypeCheckEASTVisitor e SemanticAnalysisASTVisitor: ogni regola riceve i tipi
+	gia' calcolati (le visite restano ai due visitor, che le fanno in ordini diversi) e lancia una TypeException con
+	il messaggio dell'errore. Il type checker la lascia propagare, l'analisi in una visita la tiene in sospeso.
+*/
+public class TypingRules {
+
+	private final TypeRels typeRels;
+
+	public TypingRules(TypeRels typeRels) {
+		this.typeRels = typeRels;
+	}
+
+	// messaggio di un errore che interrompe una dichiarazione
+	public static String declarationError(TypeException e) {
+		return "Type checking error in a declaration: " + e.text;
+	}
+
+	// il corpo di una funzione o di un metodo ha un sottotipo del tipo di ritorno
+	public void result(TypeNode body, TypeNode retType, FunNode n) throws TypeException {
+		if ( !typeRels.isSubtype(body, retType) )
+			throw new TypeException("Wrong return type for " + (n instanceof MethodNode ? "method " : "function ") + n.id, n.getLine());
+	}
+
+	public void variable(TypeNode value, TypeNode type, VarNode n) throws TypeException {
+		if ( !typeRels.isSubtype(value, type) )
+			throw new TypeException("Incompatible value for variable " + n.id, n.getLine());
+	}
+
+	public void condition(TypeNode cond, IfNode n) throws TypeException {
+		if ( !typeRels.isSubtype(cond, Types.BOOL) )
+			throw new TypeException("Non boolean condition in if", n.getLine());
+	}
+
+	// tipo di un if: il supertipo dei due rami se uno e' sottotipo dell'altro, altrimenti il loro lowest common ancestor
+	public TypeNode branches(TypeNode t, TypeNode e, IfNode n) throws TypeException {
+		if (typeRels.isSubtype(t, e)) return e;
+		if (typeRels.isSubtype(e, t)) return t;
+		TypeNode ancestor = typeRels.lowestCommonAncestor(t, e);
+		if (ancestor == null) throw new TypeException("Incompatible types in then-else branches", n.getLine());
+		return ancestor;
+	}
+
+	// nome di un operatore nei messaggi
+	private static String operator(Node n) {
+		if (n instanceof EqualNode) return "equal";
+		if (n instanceof GreaterEqualNode) return "greater-equal";
+		if (n instanceof LessEqualNode) return "less-equal";
+		if (n instanceof OrNode) return "or";
+		if (n instanceof AndNode) return "and";
+		if (n instanceof TimesNode) return "multiplication";
+		if (n instanceof DivNode) return "division";
+		if (n instanceof PlusNode) return "sum";
+		if (n instanceof MinusNode) return "subtraction";
+		throw new IllegalArgumentException(n.getClass().getSimpleName() + " is not an operator");
+	}
+
+	// ==, >= e <=: i due operandi devono essere confrontabili
+	public TypeNode comparison(TypeNode l, TypeNode r, Node n) throws TypeException {
+		if ( !(typeRels.isSubtype(l, r) || typeRels.isSubtype(r, l)) )
+			throw new TypeException("Incompatible types in " + operator(n), n.getLine());
+		return Types.BOOL;
+	}
+
+	// || e &&
+	public TypeNode logical(TypeNode l, TypeNode r, Node n) throws TypeException {
+		if ( !(l instanceof BoolTypeNode) || !(r instanceof BoolTypeNode) )
+			throw new TypeException("Non-boolean in " + operator(n), n.getLine());
+		return Types.BOOL;
+	}
+
+	public TypeNode not(TypeNode t, NotNode n) throws TypeException {
+		if ( !(t instanceof BoolTypeNode) )
+			throw new TypeException("Non-boolean in not", n.getLine());
+		return Types.BOOL;
+	}
+
+	// un operando di *, /, + e -: si controlla prima di visitare il successivo
+	public TypeNode arithmetic(TypeNode operand, Node n) throws TypeException {
+		if ( !typeRels.isSubtype(operand, Types.INT) )
+			throw new TypeException("Non integers in " + operator(n), n.getLine());
+		return Types.INT;
+	}
+
+	// tipo funzionale del chiamato (anche un metodo chiamato dall'interno della sua classe)
+	public ArrowTypeNode call(TypeNode t, CallNode n) throws TypeException {
+		if (t instanceof MethodTypeNode method) t = method.fun;
+		if ( !(t instanceof ArrowTypeNode at) )
+			throw new TypeException("Invocation of a non-function " + n.id, n.getLine());
+		if ( at.parlist.size() != n.arglist.size() )
+			throw new TypeException("Wrong number of parameters in the invocation of " + n.id, n.getLine());
+		return at;
+	}
+
+	public void argument(TypeNode arg, ArrowTypeNode at, int i, CallNode n) throws TypeException {
+		if ( !typeRels.isSubtype(arg, at.parlist.get(i)) )
+			throw new TypeException("Wrong type for " + i + "-th parameter in the invocation of " + n.id, n.getLine());
+	}
+
+	public TypeNode identifier(TypeNode t, IdNode n) throws TypeException {
+		if (t instanceof ArrowTypeNode)
+			throw new TypeException("Wrong usage of function identifier " + n.id, n.getLine());
+		return t;
+	}
+
+	// tipo della classe istanziata
+	public ClassTypeNode instance(NewNode n) throws TypeException {
+		if (n.entry == null) throw new TypeException("Invalid type", n.getLine()); // albero incompleto
+		ClassTypeNode ctn = (ClassTypeNode) n.entry.type;
+		if ( n.arglist.size() != ctn.allFields.size() )
+			throw new TypeException("Wrong number of parameters for new " + n.classID, n.getLine());
+		return ctn;
+	}
+
+	public void field(TypeNode arg, ClassTypeNode ctn, int i, NewNode n) throws TypeException {
+		if ( !typeRels.isSubtype(arg, ctn.allFields.get(i)) )
+			throw new TypeException("Wrong type of " + i + "-th parameter", n.getLine());
+	}
+
+	// tipo funzionale del metodo chiamato su un oggetto
+	public ArrowTypeNode method(ClassCallNode n) throws TypeException {
+		if ( !(n.methodEntry.type instanceof MethodTypeNode method) )
+			throw new TypeException("Cannot call id " + n.methodID + " because it is not a method", n.getLine());
+		if ( n.arglist.size() != method.fun.parlist.size() )
+			throw new TypeException("Wrong number of arguments in method " + n.methodID + " invocation", n.getLine());
+		return method.fun;
+	}
+
+	public void argument(TypeNode arg, ArrowTypeNode atn, int i, ClassCallNode n) throws TypeException {
+		if ( !typeRels.isSubtype(arg, atn.parlist.get(i)) )
+			throw new TypeException("Wrong type of " + i + "-th argument in method " + n.methodID + " invocation", n.getLine());
+	}
+
+	// l'f-esimo campo dichiarato dalla classe, se ridefinisce un campo della superclasse, ne ha un sottotipo
+	public void fieldOverriding(ClassNode n, ClassTypeNode parentCT, int f) throws TypeException {
+		int position = -n.fields.get(f).offset - 1;
+		if (position < parentCT.allFields.size() && f < n.type.allFields.size()
+				&& !typeRels.isSubtype(n.type.allFields.get(position), parentCT.allFields.get(position)))
+			throw new TypeException("Invalid overriding of " + f + "-th field in class " + n.id, n.getLine());
+	}
+
+	// true se il metodo ridefinisce uno della superclasse (se c'e'): del suo corpo si controlla solo il tipo
+	public static boolean overrides(MethodNode method, ClassTypeNode parentCT) {
+		return parentCT != null && method.offset < parentCT.allMethods.size();
+	}
+
+	// l'm-esimo metodo dichiarato dalla classe, che ridefinisce un metodo della superclasse, ne ha un sottotipo
+	public void methodOverriding(ClassNode n, ClassTypeNode parentCT, int m) throws TypeException {
+		int position = n.methods.get(m).offset;
+		if ( !typeRels.isSubtype(n.type.allMethods.get(position), parentCT.allMethods.get(position)) )
+			throw new TypeException("Invalid overriding of " + m + "-th method in class " + n.id, n.getLine());
+	}
+}
@@ -1,7 +1,5 @@
 package compiler.exc;
 
-import compiler.lib.*;
-
 import java.io.*;
 
 public class TypeException extends Exception {
@@ -12,7 +10,6 @@ public class TypeException extends Exception {
 	public String text;
 
 	public TypeException(String t, int line) {
-		FOOLlib.typeErrors++;
 		text = t + " at line "+ line;
 	}
 
@@ -84,6 +84,7 @@ public class BaseASTVisitor<S,E extends Exception> {
 	public S visitNode(ClassCallNode node) throws E {throw new UnimplException();}
 	public S visitNode(NewNode n) throws E {throw new UnimplException();}
 	public S visitNode(EmptyNode n) throws E {throw new UnimplException();}
+	public S visitNode(FieldAccessNode n) throws E {throw new UnimplException();}
 
 	public S visitNode(ClassTypeNode n) throws E {throw new UnimplException();}
 	public S visitNode(MethodTypeNode n) throws E {throw new UnimplException();}
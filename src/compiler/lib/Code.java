@@ -0,0 +1,256 @@
+package compiler.lib;
+
+import svm.ExecuteVM;
+import svm.ObjectFile;
+import svm.SVMParser;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+import static svm.SVMParser.*;
+
+/*
+ * Frammento di codice SVM prodotto dalla generazione del codice: una sequenza di istruzioni gia' decodificate
+ * (opcode e operando) che viene assemblata direttamente in un array di interi, risolvendo le etichette in fondo.
+ * Il testo assembly (toString) serve solo come dump di debug e non viene piu' riletto dal parser.
+ */
+public class Code {
+
+	// un'istruzione SVM o una pseudo-istruzione: definizione di etichetta (COL), mappa dello stack (GCMAP)
+	// o commento (COMMENT), che non occupano celle di codice
+	public static final class Instruction {
+		public final int opcode;
+		public final int value;
+		public final String label; // etichetta riferita (push/branch) o definita (COL), oppure testo del commento
+		public final int[] map;
+
+		public Instruction(int opcode, int value, String label, int[] map) {
+			this.opcode = opcode;
+			this.value = value;
+			this.label = label;
+			this.map = map;
+		}
+
+		// celle di codice occupate: 0 per le pseudo-istruzioni
+		public int size() {
+			if (opcode == COL || opcode == GCMAP || opcode == COMMENT) return 0;
+			switch (opcode) {
+				case PUSH:
+				case BRANCH:
+				case BRANCHEQ:
+				case BRANCHLESSEQ:
+				case ADDI:
+				case MULI:
+				case POPN:
+				case CALL:
+				case LOADDISPLAY:
+				case STOREDISPLAY:
+					return 2;
+				default:
+					return 1;
+			}
+		}
+
+		@Override
+		public String toString() {
+			switch (opcode) {
+				case COL:
+					return label + ":";
+				case COMMENT:
+					return "/* " + label + " */";
+				case GCMAP:
+					StringBuilder s = new StringBuilder(mnemonic(GCMAP));
+					for (int v : map) s.append(" ").append(v);
+					return s.toString();
+				default:
+					if (size() == 1) return mnemonic(opcode);
+					return mnemonic(opcode) + " " + (label != null ? label : Integer.toString(value));
+			}
+		}
+	}
+
+	/*
+	 * Il codice e' una rope: una foglia con una sola istruzione oppure la concatenazione di altri frammenti.
+	 * join costa quindi quanto il numero dei suoi argomenti e non copia mai le istruzioni gia' generate,
+	 * che vengono visitate una sola volta (senza ricorsione, le catene di join possono essere molto profonde)
+	 * quando il codice viene assemblato o stampato.
+	 */
+	private final Instruction instruction; // null se il frammento e' una concatenazione
+	private final Code[] parts;
+
+	private Code(Instruction instruction, Code[] parts) {
+		this.instruction = instruction;
+		this.parts = parts;
+	}
+
+	private static Code of(int opcode, int value, String label, int[] map) {
+		return new Code(new Instruction(opcode, value, label, map), null);
+	}
+
+	// istruzione senza operando (add, lw, js, ...)
+	public static Code op(int opcode) {
+		return of(opcode, 0, null, null);
+	}
+
+	// istruzione con operando immediato (addi, muli, popn, ldisp, sdisp)
+	public static Code op(int opcode, int value) {
+		return of(opcode, value, null, null);
+	}
+
+	public static Code push(int value) {
+		return of(PUSH, value, null, null);
+	}
+
+	// push dell'indirizzo dell'etichetta
+	public static Code push(String label) {
+		return of(PUSH, 0, label, null);
+	}
+
+	// salto (b, beq, bleq) all'etichetta
+	public static Code branch(int opcode, String label) {
+		return of(opcode, 0, label, null);
+	}
+
+	// chiamata diretta della funzione all'etichetta
+	public static Code call(String label) {
+		return of(CALL, 0, label, null);
+	}
+
+	public static Code label(String label) {
+		return of(COL, 0, label, null);
+	}
+
+	// mappa dello stack associata all'indirizzo dell'istruzione successiva
+	public static Code gcmap(int... map) {
+		return of(GCMAP, 0, null, map);
+	}
+
+	public static Code comment(String text) {
+		return of(COMMENT, 0, text, null);
+	}
+
+	// concatena i frammenti nell'ordine dato (come nlJoin, i frammenti null sono ignorati)
+	public static Code join(Code... fragments) {
+		Code[] parts = new Code[fragments.length];
+		int count = 0;
+		for (final Code fragment : fragments) {
+			if (fragment != null) parts[count++] = fragment;
+		}
+		if (count == 0) return null;
+		if (count == 1) return parts[0];
+		return new Code(null, count == parts.length ? parts : Arrays.copyOf(parts, count));
+	}
+
+	public static Code join(List<Code> fragments) {
+		return join(fragments.toArray(new Code[0]));
+	}
+
+	// il frammento formato dalle istruzioni date, nell'ordine (null se la lista e' vuota)
+	public static Code of(List<Instruction> instructions) {
+		Code[] leaves = new Code[instructions.size()];
+		for (int i = 0; i < leaves.length; i++) leaves[i] = new Code(instructions.get(i), null);
+		return join(leaves);
+	}
+
+	// le istruzioni del frammento, in ordine, in una lista modificabile
+	public List<Instruction> toList() {
+		List<Instruction> list = new ArrayList<>();
+		for (Instruction instruction : instructions()) list.add(instruction);
+		return list;
+	}
+
+	// le istruzioni del frammento, in ordine (la rope viene visitata man mano che si scorrono)
+	private Iterable<Instruction> instructions() {
+		return () -> new Iterator<>() {
+			private final Deque<Code> pending = new ArrayDeque<>(List.of(Code.this));
+
+			@Override
+			public boolean hasNext() {
+				while (!pending.isEmpty() && pending.peek().instruction == null) {
+					Code[] parts = pending.pop().parts;
+					for (int i = parts.length-1; i >= 0; i--) pending.push(parts[i]);
+				}
+				return !pending.isEmpty();
+			}
+
+			@Override
+			public Instruction next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				return pending.pop().instruction;
+			}
+		};
+	}
+
+	/*
+	 * Assembla il codice: gli opcode e gli operandi sono scritti in un buffer che cresce per raddoppio,
+	 * i riferimenti alle etichette sono lasciati a 0 e risolti alla fine (backpatching).
+	 * La source map associa ad ogni cella di codice la riga (da 0) del dump testuale.
+	 */
+	public ObjectFile assemble() {
+		int[] code = new int[ExecuteVM.CODESIZE];
+		int[] sourceMap = new int[ExecuteVM.CODESIZE];
+		int i = 0;
+		Map<String,Integer> labelDef = new HashMap<>();
+		Map<Integer,String> labelRef = new HashMap<>();
+		Map<Integer,int[]> stackMaps = new HashMap<>();
+
+		int line = 0;
+		for (Instruction instruction : instructions()) {
+			switch (instruction.opcode) {
+				case COL:
+					labelDef.put(instruction.label, i);
+					break;
+				case GCMAP:
+					stackMaps.put(i, instruction.map);
+					break;
+				case COMMENT:
+					break;
+				default:
+					if (i + 2 > code.length) {
+						code = Arrays.copyOf(code, 2*code.length);
+						sourceMap = Arrays.copyOf(sourceMap, 2*sourceMap.length);
+					}
+					sourceMap[i] = line;
+					code[i++] = instruction.opcode;
+					if (instruction.size() == 2) {
+						if (instruction.label != null) labelRef.put(i, instruction.label);
+						sourceMap[i] = line;
+						code[i++] = instruction.value;
+					}
+			}
+			line++;
+		}
+
+		for (Map.Entry<Integer,String> ref : labelRef.entrySet()) {
+			Integer address = labelDef.get(ref.getValue());
+			if (address == null) throw new IllegalStateException("Undefined label " + ref.getValue());
+			code[ref.getKey()] = address;
+		}
+		return new ObjectFile(Arrays.copyOf(code, i), labelDef, stackMaps, Arrays.copyOf(sourceMap, i), new int[0]);
+	}
+
+	// scrive il dump testuale sul writer, una istruzione per riga, senza costruirlo in memoria
+	public void write(Writer out) throws IOException {
+		for (Instruction instruction : instructions()) {
+			out.write(instruction.toString());
+			out.write("\n");
+		}
+	}
+
+	// dump in assembly testuale, una istruzione per riga
+	@Override
+	public String toString() {
+		StringBuilder text = new StringBuilder();
+		for (Instruction instruction : instructions()) {
+			if (text.length() > 0) text.append("\n");
+			text.append(instruction);
+		}
+		return text.toString();
+	}
+
+	private static String mnemonic(int opcode) {
+		String literal = SVMParser.VOCABULARY.getLiteralName(opcode);
+		return literal.substring(1, literal.length()-1);
+	}
+}
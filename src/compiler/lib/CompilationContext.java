@@ -0,0 +1,65 @@
+package compiler.lib;
+
+import compiler.TypeRels;
+import compiler.Types;
+
+import java.util.*;
+
+/*
+ * Stato di una singola compilazione, condiviso dai visitor che la eseguono: niente e' statico,
+ * quindi piu' compilazioni possono avvenire insieme (anche in thread diversi) senza interferire.
+ */
+public class CompilationContext {
+
+	public int typeErrors = 0;
+
+	// simboli degli identificatori del programma, assegnati durante la generazione dell'AST
+	public final Symbols symbols = new Symbols();
+
+	// tipi del programma, un oggetto per tipo
+	public final Types types = new Types(symbols);
+
+	// relazioni di sottotipo tra le classi del programma
+	public final TypeRels typeRels = new TypeRels(types);
+
+	// numero massimo di parametri aggiunti ad una funzione annidata per sollevarla a livello globale:
+	// -1 disabilita il lambda lifting
+	public int liftBudget = 3;
+	public int liftedFunctions = 0;
+
+	// dimensione massima (in nodi) del corpo inlinato di una funzione o di un metodo: 0 disabilita l'inlining
+	public int inlineBudget = 16;
+	public int inlinedCalls = 0;
+
+	// chiamate di metodo con una sola destinazione possibile, compilate come chiamate dirette
+	public int devirtualizedCalls = 0;
+
+	// accesso ai nomi non locali attraverso il display della SVM invece di risalire la catena statica
+	public boolean display = false;
+
+	// ottimizzatore peephole applicato al codice generato (null lo disabilita), con le sue statistiche
+	public PeepholeOptimizer peephole = new PeepholeOptimizer();
+
+	private int labCount = 0;
+
+	public String freshLabel() {
+		return "label" + (labCount++);
+	}
+
+	private int funlabCount = 0;
+
+	public String freshFunLabel() {
+		return "function" + (funlabCount++);
+	}
+
+	// i corpi di funzioni e metodi, nell'ordine in cui sono generati: vengono concatenati una volta sola
+	private final List<Code> funCode = new ArrayList<>();
+
+	public void putCode(Code c) {
+		funCode.add(c);
+	}
+
+	public Code getCode() {
+		return Code.join(funCode);
+	}
+}
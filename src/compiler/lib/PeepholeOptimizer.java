@@ -0,0 +1,289 @@
+package compiler.lib;
+
+import compiler.lib.Code.Instruction;
+
+import java.util.*;
+import java.util.function.Function;
+
+import static svm.SVMParser.*;
+
+/*
+ * Ottimizzatore peephole sul flusso di istruzioni prodotto dalla generazione del codice, prima dell'assemblaggio.
+ * Ogni regola guarda una finestra di istruzioni consecutive e, se la riconosce, la sostituisce con una sequenza
+ * equivalente e piu' corta; le regole si applicano ripetutamente finche' nessuna trova piu' niente da fare.
+ * Le finestre comprendono anche le pseudo-istruzioni (etichette, mappe dello stack, commenti): una regola che
+ * non le nomina esplicitamente non le riconosce, quindi non sposta mai codice a cavallo di un'etichetta
+ * e non separa una mappa dello stack dal suo js.
+ * Con verify ogni riscrittura viene controllata: fino al primo salto incondizionato la sostituzione deve
+ * cambiare l'altezza dello stack come la finestra e non usare piu' celle preesistenti di quelle usate dalla finestra.
+ */
+public class PeepholeOptimizer {
+
+	// una regola: nome (per le statistiche), dimensione della finestra e riscrittura (null se non si applica)
+	public record Rule(String name, int window, Function<List<Instruction>, List<Instruction>> rewrite) {}
+
+	private final List<Rule> rules;
+	private final boolean verify;
+
+	// statistiche: applicazioni di ogni regola e celle di codice prima e dopo l'ottimizzazione
+	private final Map<String, Integer> applications = new LinkedHashMap<>();
+	private int sizeBefore = 0;
+	private int sizeAfter = 0;
+
+	public PeepholeOptimizer() {this(defaultRules(), true);}
+	public PeepholeOptimizer(List<Rule> rules, boolean verify) {
+		this.rules = List.copyOf(rules);
+		this.verify = verify;
+		for (Rule rule : rules) applications.put(rule.name(), 0);
+	}
+
+	/*
+	 * Le istruzioni passano una alla volta dall'ingresso all'uscita; dopo ognuna si provano le regole sulle finestre
+	 * che terminano con essa. La sostituzione torna in testa all'ingresso, cosi' puo' formare nuove finestre con
+	 * le istruzioni gia' in uscita: ogni regola accorcia il codice, quindi il procedimento termina ed e' lineare.
+	 */
+	public Code optimize(Code code) {
+		if (code == null) return null;
+		Deque<Instruction> input = new ArrayDeque<>(code.toList());
+		List<Instruction> output = new ArrayList<>();
+		sizeBefore += size(input);
+
+		while (!input.isEmpty()) {
+			output.add(input.pop());
+			for (Rule rule : rules) {
+				int start = output.size() - rule.window();
+				if (start < 0) continue;
+				List<Instruction> window = output.subList(start, output.size());
+				List<Instruction> replacement = rule.rewrite().apply(window);
+				if (replacement == null) continue;
+				if (verify) check(rule, window, replacement);
+				window.clear();
+				for (int i = replacement.size()-1; i >= 0; i--) input.push(replacement.get(i));
+				applications.merge(rule.name(), 1, Integer::sum);
+				break;
+			}
+		}
+
+		sizeAfter += size(output);
+		return Code.of(output);
+	}
+
+	public Map<String, Integer> applications() {
+		return Collections.unmodifiableMap(applications);
+	}
+
+	public int sizeBefore() {
+		return sizeBefore;
+	}
+
+	public int sizeAfter() {
+		return sizeAfter;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder s = new StringBuilder("peephole: " + sizeBefore + " -> " + sizeAfter + " code cells");
+		for (Map.Entry<String, Integer> rule : applications.entrySet()) {
+			if (rule.getValue() > 0) s.append("\n  ").append(rule.getKey()).append(": ").append(rule.getValue());
+		}
+		return s.toString();
+	}
+
+	private static int size(Collection<Instruction> instructions) {
+		int size = 0;
+		for (Instruction instruction : instructions) size += instruction.size();
+		return size;
+	}
+
+	private static void check(Rule rule, List<Instruction> window, List<Instruction> replacement) {
+		int[] before = stackEffect(window), after = stackEffect(replacement);
+		if (before[1] - before[0] != after[1] - after[0] || after[0] > before[0]) {
+			throw new IllegalStateException("Peephole rule " + rule.name() + " changes the stack effect of " + window);
+		}
+	}
+
+	// celle che la sequenza consuma dallo stack preesistente e celle che lascia, fino al primo salto incondizionato
+	private static int[] stackEffect(List<Instruction> instructions) {
+		int depth = 0, consumed = 0;
+		for (Instruction instruction : instructions) {
+			int[] effect = stackEffect(instruction);
+			depth -= effect[0];
+			consumed = Math.max(consumed, -depth);
+			depth += effect[1];
+			if (instruction.opcode == BRANCH || instruction.opcode == HALT || instruction.opcode == RET) break;
+		}
+		return new int[] {consumed, depth + consumed};
+	}
+
+	// celle consumate e prodotte da una istruzione
+	private static int[] stackEffect(Instruction instruction) {
+		switch (instruction.opcode) {
+			case PUSH:
+			case LOADFP:
+			case LOADHP:
+			case LOADRA:
+			case LOADTM:
+			case ENTER:
+			case LOADDISPLAY:
+				return new int[] {0, 1};
+			case POPN:
+				return new int[] {instruction.value, 0};
+			case DUP:
+				return new int[] {1, 2};
+			case SWAP:
+				return new int[] {2, 2};
+			case POP:
+			case STOREFP:
+			case STOREHP:
+			case STORERA:
+			case STORETM:
+			case STOREDISPLAY:
+			case JS:
+				return new int[] {1, 0};
+			case ADD:
+			case SUB:
+			case MULT:
+			case DIV:
+				return new int[] {2, 1};
+			case STOREW:
+			case BRANCHEQ:
+			case BRANCHLESSEQ:
+				return new int[] {2, 0};
+			case LOADW:
+			case PRINT:
+			case ADDI:
+			case MULI:
+				return new int[] {1, 1};
+			default: // b, halt, cfp, call, ret e pseudo-istruzioni
+				return new int[] {0, 0};
+		}
+	}
+
+	private static boolean is(Instruction instruction, int opcode) {
+		return instruction.opcode == opcode;
+	}
+
+	// push di una costante (non dell'indirizzo di un'etichetta)
+	private static boolean isConstant(Instruction instruction) {
+		return instruction.opcode == PUSH && instruction.label == null;
+	}
+
+	private static boolean isConstant(Instruction instruction, int value) {
+		return isConstant(instruction) && instruction.value == value;
+	}
+
+	private static List<Instruction> push(int value) {
+		return immediate(PUSH, value);
+	}
+
+	private static List<Instruction> immediate(int opcode, int value) {
+		return List.of(new Instruction(opcode, value, null, null));
+	}
+
+	// un pop o un popn: le celle che toglie dallo stack, 0 per le altre istruzioni
+	private static int popped(Instruction instruction) {
+		if (is(instruction, POP)) return 1;
+		return is(instruction, POPN) ? instruction.value : 0;
+	}
+
+	// lettura di una variabile: lfp, lw..lw, addi k, lw (non modifica la memoria)
+	private static boolean isLoad(List<Instruction> instructions) {
+		int last = instructions.size()-1;
+		if (last < 2 || !is(instructions.get(0), LOADFP) || !is(instructions.get(last-1), ADDI) || !is(instructions.get(last), LOADW)) return false;
+		for (int i = 1; i < last-1; i++) {
+			if (!is(instructions.get(i), LOADW)) return false;
+		}
+		return true;
+	}
+
+	// due letture uguali consecutive: la seconda diventa dup
+	private static Rule duplicateLoad(int window) {
+		return new Rule("duplicate load", window, w -> {
+			List<Instruction> first = w.subList(0, window/2), second = w.subList(window/2, window);
+			if (!isLoad(first)) return null;
+			for (int i = 0; i < first.size(); i++) {
+				if (first.get(i).opcode != second.get(i).opcode || first.get(i).value != second.get(i).value) return null;
+			}
+			List<Instruction> replacement = new ArrayList<>(first);
+			replacement.add(new Instruction(DUP, 0, null, null));
+			return replacement;
+		});
+	}
+
+	/*
+	 * Regole predefinite:
+	 *  - identita' aritmetiche: push 0 add, push 0 sub, push 1 mult, push 1 div non cambiano la cima dello stack
+	 *  - aritmetica tra costanti (la divisione solo se il divisore non e' 0, che deve fallire a runtime)
+	 *  - aritmetica con operando immediato: push k add/sub/mult diventano addi/muli, che si sommano (o
+	 *    moltiplicano) tra loro e con una costante precedente; addi 0 e muli 1 spariscono
+	 *  - salti condizionati tra costanti: diventano b oppure spariscono
+	 *  - un valore caricato senza effetti e subito rimosso (push, lfp, lhp, lra, ltm, dup, ldisp seguiti da pop)
+	 *  - pop consecutivi: diventano un solo popn
+	 *  - la stessa variabile letta due volte di seguito: la seconda lettura diventa dup
+	 *  - un salto all'istruzione successiva
+	 *  - codice irraggiungibile dopo b, ret o halt, fino alla prossima etichetta
+	 */
+	public static List<Rule> defaultRules() {
+		return List.of(
+			new Rule("arithmetic identity", 2, w ->
+				(isConstant(w.get(0), 0) && (is(w.get(1), ADD) || is(w.get(1), SUB)))
+						|| (isConstant(w.get(0), 1) && (is(w.get(1), MULT) || is(w.get(1), DIV))) ? List.of() : null),
+			new Rule("constant arithmetic", 3, w -> {
+				if (!isConstant(w.get(0)) || !isConstant(w.get(1))) return null;
+				int a = w.get(0).value, b = w.get(1).value;
+				switch (w.get(2).opcode) {
+					case ADD: return push(a + b);
+					case SUB: return push(a - b);
+					case MULT: return push(a * b);
+					case DIV: return b != 0 ? push(a / b) : null;
+					default: return null;
+				}
+			}),
+			new Rule("immediate arithmetic", 2, w -> {
+				Instruction first = w.get(0), second = w.get(1);
+				if (isConstant(first)) {
+					switch (second.opcode) {
+						case ADD: return immediate(ADDI, first.value);
+						case SUB: return immediate(ADDI, -first.value);
+						case MULT: return immediate(MULI, first.value);
+						case ADDI: return push(first.value + second.value);
+						case MULI: return push(first.value * second.value);
+						default: return null;
+					}
+				}
+				if (is(first, ADDI) && is(second, ADDI)) return immediate(ADDI, first.value + second.value);
+				if (is(first, MULI) && is(second, MULI)) return immediate(MULI, first.value * second.value);
+				return null;
+			}),
+			new Rule("immediate identity", 1, w ->
+				(is(w.get(0), ADDI) && w.get(0).value == 0) || (is(w.get(0), MULI) && w.get(0).value == 1) ? List.of() : null),
+			new Rule("constant branch", 3, w -> {
+				if (!isConstant(w.get(0)) || !isConstant(w.get(1))) return null;
+				int a = w.get(0).value, b = w.get(1).value;
+				boolean taken;
+				switch (w.get(2).opcode) {
+					case BRANCHEQ: taken = a == b; break;
+					case BRANCHLESSEQ: taken = a <= b; break;
+					default: return null;
+				}
+				return taken ? List.of(new Instruction(BRANCH, 0, w.get(2).label, null)) : List.of();
+			}),
+			new Rule("dead push", 2, w -> {
+				int load = w.get(0).opcode;
+				boolean pure = load == PUSH || load == LOADFP || load == LOADHP || load == LOADRA || load == LOADTM || load == DUP
+						|| load == LOADDISPLAY;
+				return pure && is(w.get(1), POP) ? List.of() : null;
+			}),
+			new Rule("bulk pop", 2, w -> {
+				int first = popped(w.get(0)), second = popped(w.get(1));
+				return first > 0 && second > 0 ? immediate(POPN, first + second) : null;
+			}),
+			duplicateLoad(6),
+			duplicateLoad(8),
+			new Rule("branch to next", 2, w ->
+				is(w.get(0), BRANCH) && is(w.get(1), COL) && w.get(0).label.equals(w.get(1).label) ? List.of(w.get(1)) : null),
+			new Rule("unreachable code", 2, w ->
+				(is(w.get(0), BRANCH) || is(w.get(0), HALT) || is(w.get(0), RET)) && w.get(1).size() > 0 ? List.of(w.get(0)) : null)
+		);
+	}
+}
@@ -0,0 +1,68 @@
+package compiler.lib;
+
+/*
+ * Mappa da simboli (vedi Symbols) a valori, ad indirizzamento aperto su array di int: le chiavi non vengono
+ * incapsulate in Integer e cercare un simbolo non chiama hashCode ne' equals. Non si possono togliere associazioni.
+ */
+public class SymbolMap<V> {
+
+	private int[] keys = new int[8]; // simbolo + 1, 0 per le celle libere
+	private Object[] values = new Object[8];
+	private int size = 0;
+
+	private int slot(int symbol) {
+		int mask = keys.length - 1;
+		int hash = symbol * 0x9E3779B9;
+		int i = (hash ^ hash >>> 16) & mask;
+		while (keys[i] != 0 && keys[i] != symbol + 1) i = (i + 1) & mask;
+		return i;
+	}
+
+	@SuppressWarnings("unchecked")
+	public V get(int symbol) {
+		return (V) values[slot(symbol)];
+	}
+
+	public boolean containsKey(int symbol) {
+		return keys[slot(symbol)] != 0;
+	}
+
+	// associa value a symbol: ritorna il valore che aveva, o null
+	@SuppressWarnings("unchecked")
+	public V put(int symbol, V value) {
+		int i = slot(symbol);
+		V old = (V) values[i];
+		values[i] = value;
+		if (keys[i] == 0) {
+			keys[i] = symbol + 1;
+			if (++size * 2 > keys.length) grow();
+		}
+		return old;
+	}
+
+	// copia indipendente della mappa (i valori sono condivisi)
+	public SymbolMap<V> copy() {
+		SymbolMap<V> copy = new SymbolMap<>();
+		copy.keys = keys.clone();
+		copy.values = values.clone();
+		copy.size = size;
+		return copy;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	private void grow() {
+		int[] oldKeys = keys;
+		Object[] oldValues = values;
+		keys = new int[2 * oldKeys.length];
+		values = new Object[2 * oldValues.length];
+		for (int j = 0; j < oldKeys.length; j++) {
+			if (oldKeys[j] == 0) continue;
+			int i = slot(oldKeys[j] - 1);
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+}
@@ -0,0 +1,35 @@
+package compiler.lib;
+
+import java.util.*;
+
+/*
+ * Identificatori di una compilazione: ad ogni identificatore distinto corrisponde un simbolo, un intero assegnato
+ * in ordine di prima occorrenza (0, 1, 2, ...) durante la generazione dell'AST. Le fasi successive indicizzano le
+ * loro tabelle (symbol table, virtual table, gerarchia delle classi) con i simboli invece che con le stringhe,
+ * che restano solo per i messaggi e per il codice generato.
+ */
+public class Symbols {
+
+	private final Map<String, Integer> symbols = new HashMap<>();
+	private final List<String> names = new ArrayList<>();
+
+	// simbolo di id, assegnato alla prima richiesta
+	public int intern(String id) {
+		Integer symbol = symbols.get(id);
+		if (symbol == null) {
+			symbol = names.size();
+			symbols.put(id, symbol);
+			names.add(id);
+		}
+		return symbol;
+	}
+
+	public String name(int symbol) {
+		return names.get(symbol);
+	}
+
+	// numero di simboli assegnati: i simboli sono tutti gli interi da 0 a size()-1
+	public int size() {
+		return names.size();
+	}
+}
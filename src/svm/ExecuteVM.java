@@ -2,13 +2,18 @@ package svm;
 
 import visualsvm.*;
 
+import java.util.*;
+import java.util.regex.Pattern;
+
 public class ExecuteVM {
 
-	public static final int CODESIZE = 10000;
-	public static final int MEMSIZE = 10000;
+	public static final int CODESIZE = 10000;   // initial capacity of the assembler's code buffer
+	public static final int MEMSIZE = 10000;    // default initial memory size
+	public static final int MAX_MEMSIZE = 1 << 24;
 
 	private final int[] code;
-	private final int[] memory = new int[MEMSIZE];
+	private int[] memory = new int[MEMSIZE]; // heap dal basso, stack dall'alto: cresce spostando lo stack
+	private int maxMemory = MAX_MEMSIZE;
 
 	private int ip = 0;
 	private int sp = MEMSIZE;
@@ -18,11 +23,214 @@ public class ExecuteVM {
 	private int ra;
 	private int tm;
 
+	// spazio libero minimo tra heap e stack: sotto questa soglia si raccoglie la spazzatura. E' un decimo della
+	// memoria (ricalcolato quando la memoria cambia dimensione), ma almeno frameRoom celle, quelle che stack e heap
+	// possono occupare tra due controlli
+	private final int frameRoom;
+	private int gcReserve;
+	private Map<Integer,int[]> stackMaps; // return address -> stack map emitted by the compiler, null if the collector is off
+	private int collections = 0;
+
+	// contenuto delle celle dello stack nelle mappe emesse dal compilatore
+	public static final int SLOT_VALUE = 0;     // intero, booleano o indirizzo di codice
+	public static final int SLOT_REFERENCE = 1; // riferimento ad un oggetto nello heap
+	public static final int SLOT_FRAME = 2;     // indirizzo di un frame sullo stack (CL o AL)
+
+	private boolean decoded = false; // if true runs the code on the pre-decoded engine
+	private boolean tiered = false;  // if true hot functions are compiled to JVM bytecode
+
+	// register file condiviso con il codice compilato dal JIT (con una copia di gcReserve, che il codice compilato
+	// controlla agli ingressi di funzione), seguito dal display: per ogni nesting level l'indirizzo del frame
+	// attivo a quel livello (aggiornato dal codice generato con sdisp, letto con ldisp)
+	static final int REG_SP = 0, REG_FP = 1, REG_HP = 2, REG_RA = 3, REG_TM = 4, REG_GC_RESERVE = 5, REG_DISPLAY = 6;
+	public static final int DISPLAY_SIZE = 32;
+	private final int[] regs = new int[REG_DISPLAY + DISPLAY_SIZE];
+
+	public static final int HOT_THRESHOLD = 1000;
+	// labels of function and method bodies, as generated by CodeGenerationASTVisitor
+	private static final Pattern FUNCTION_LABEL = Pattern.compile("function[0-9]+|class[0-9]+method[0-9]+");
+
+	private Map<String,Integer> labels;
+	private int hotThreshold;
+	private int[] functionEnd;  // for every function entry the address following its body, 0 elsewhere
+	private int[] entryCounts;
+	private JITCompiler.Compiled[] compiledAt; // compiled code to run from a function entry or a return point
+	private final Set<String> compiledFunctions = new TreeSet<>();
+	private final Map<String,String> failedFunctions = new TreeMap<>(); // label -> error of the JIT
+
+	// programma pre-decodificato: per ogni indirizzo di codice l'opcode e il suo operando (gia' risolto)
+	private int[] ops;
+	private int[] args;
+	private int[] args2; // second operand of superinstructions
+	private int[] nexts; // address following the sequence replaced by a superinstruction
+	private InlineCache[] inlineCaches; // inline cache of every CALL_METHOD, null elsewhere
+
+	// superinstructions: fuse the frame access idioms emitted by CodeGenerationASTVisitor
+	private static final int LOAD_LOCAL = 100;  // lfp addi k lw
+	private static final int LOAD_OUTER = 101;  // lfp lw..lw addi k lw
+	private static final int CALL_VIA_AL = 102; // lfp lw..lw dup addi k lw js
+	private static final int CALL_METHOD = 103; // dup lw addi k lw js (o senza addi 0)
+	private static final int RETURN = 104;      // stm popn d sra popn p sfp ltm ret (pop al posto di popn 1)
+	private static final int HEAP_STORE = 105;  // lhp sw lhp addi 1 shp
+	private static final int HP_INC = 106;      // lhp addi 1 shp
+	private static final int BEQ_CONST = 107;   // push k beq label
+	private static final int CALL_DIRECT = 108; // lfp lw..lw call label
+	private static final String[] SUPERINSTRUCTIONS = {"LOAD_LOCAL", "LOAD_OUTER", "CALL_VIA_AL", "CALL_METHOD", "RETURN",
+			"HEAP_STORE", "HP_INC", "BEQ_CONST", "CALL_DIRECT"};
+
+	private int[] staticData; // initial heap image, copied into memory when the execution starts
+
 	public ExecuteVM(int[] code) {
 		this.code = code;
+		this.frameRoom = frameRoom(code);
+		this.gcReserve = gcReserve(MEMSIZE);
+	}
+
+	/*
+	 * Lo spazio libero si controlla solo sui salti (js, call, ret) e sugli ingressi di funzione (enter, cfp): tra due
+	 * controlli si esegue il codice di un solo corpo (di funzione, di metodo o del programma principale, che inizia
+	 * all'indirizzo 0), senza salti all'indietro. Per ogni corpo si contano le istruzioni che allungano lo stack di
+	 * una cella e le celle allocate nello heap (lhp addi k shp, l'unica forma generata): il massimo sui corpi
+	 * limita le celle occupate in ogni tratto di esecuzione senza controlli, per quanto grande sia un frame.
+	 */
+	private static int frameRoom(int[] code) {
+		int room = 0, body = 0;
+		int i = 0, previous = -1;
+		while (i < code.length) {
+			switch ( code[i] ) {
+				case SVMParser.ENTER:
+				case SVMParser.COPYFP:
+					room = Math.max(room, body);
+					body = code[i] == SVMParser.ENTER ? 1 : 0;
+					break;
+				case SVMParser.PUSH:
+				case SVMParser.LOADFP:
+				case SVMParser.LOADHP:
+				case SVMParser.LOADRA:
+				case SVMParser.LOADTM:
+				case SVMParser.LOADDISPLAY:
+				case SVMParser.DUP:
+					body++;
+					break;
+				case SVMParser.STOREHP:
+					if (previous >= 0 && code[previous] == SVMParser.ADDI) body += Math.max(0, code[previous+1]);
+					break;
+			}
+			previous = i;
+			i += instructionSize(code[i]);
+		}
+		return Math.max(room, body);
+	}
+
+	// program loaded from an object file: the stack maps and the static data come with it
+	public ExecuteVM(ObjectFile program) {
+		this(program.code);
+		this.stackMaps = program.stackMaps;
+		this.staticData = program.data;
+	}
+
+	// selects the pre-decoded engine instead of the classic fetch-and-switch loop
+	public ExecuteVM decoded() {
+		this.decoded = true;
+		return this;
+	}
+
+	// selects the tiered mode (on top of the pre-decoded engine): labels are the ones resolved by the assembler
+	public ExecuteVM tiered(Map<String,Integer> labels) {
+		return tiered(labels, HOT_THRESHOLD);
+	}
+
+	public ExecuteVM tiered(Map<String,Integer> labels, int hotThreshold) {
+		this.decoded = true;
+		this.tiered = true;
+		this.labels = labels;
+		this.hotThreshold = hotThreshold;
+		return this;
+	}
+
+	// labels of the functions compiled to JVM bytecode so far
+	public Set<String> compiledFunctions() {
+		return Collections.unmodifiableSet(compiledFunctions);
+	}
+
+	// labels of the functions whose generated code was rejected by the JVM, with the error: they stay interpreted
+	public Map<String,String> failedFunctions() {
+		return Collections.unmodifiableMap(failedFunctions);
+	}
+
+	// enables the garbage collector, using the stack maps resolved by the assembler;
+	// the stack maps also let the memory grow (up to maxMemory) when collecting is not enough
+	public ExecuteVM gc(Map<Integer,int[]> stackMaps) {
+		this.stackMaps = stackMaps;
+		return this;
+	}
+
+	// initial size of the memory shared by heap and stack, to be set before running
+	public ExecuteVM memory(int size) {
+		this.memory = new int[size];
+		this.sp = size;
+		this.fp = size;
+		this.gcReserve = gcReserve(size);
+		this.maxMemory = Math.max(maxMemory, size);
+		return this;
+	}
+
+	private int gcReserve(int memorySize) {
+		return Math.max(frameRoom, memorySize / 10);
+	}
+
+	public ExecuteVM maxMemory(int size) {
+		this.maxMemory = Math.max(size, memory.length);
+		return this;
+	}
+
+	public int memorySize() {
+		return memory.length;
+	}
+
+	// inline caches of the method call sites executed by the pre-decoded engine, by address
+	public List<InlineCache> inlineCaches() {
+		List<InlineCache> caches = new ArrayList<>();
+		if (inlineCaches == null) return caches;
+		for (InlineCache cache : inlineCaches) {
+			if (cache != null && cache.hits() + cache.misses() > 0) caches.add(cache);
+		}
+		return caches;
+	}
+
+	// siti fusi dal motore pre-decodificato, per nome di superistruzione (vuota se non ha mai girato)
+	public Map<String,Integer> superinstructions() {
+		Map<String,Integer> sites = new TreeMap<>();
+		if (ops == null) return sites;
+		for (int op : ops) {
+			if (op >= LOAD_LOCAL && op < LOAD_LOCAL + SUPERINSTRUCTIONS.length) {
+				sites.merge(SUPERINSTRUCTIONS[op - LOAD_LOCAL], 1, Integer::sum);
+			}
+		}
+		return sites;
+	}
+
+	// number of garbage collections run so far
+	public int collections() {
+		return collections;
 	}
 
 	public void cpu() {
+		if (staticData != null) {
+			System.arraycopy(staticData, 0, memory, 0, staticData.length);
+			hp = staticData.length;
+			staticData = null;
+		}
+		// il programma principale non passa da un controllo prima di iniziare: lo stack e' ancora vuoto,
+		// quindi la memoria si puo' allargare senza mappe
+		regs[REG_SP] = sp; regs[REG_FP] = fp; regs[REG_HP] = hp;
+		while (regs[REG_SP] - hp < gcReserve && memory.length < maxMemory) grow(new ArrayList<>());
+		sp = regs[REG_SP]; fp = regs[REG_FP];
+		regs[REG_GC_RESERVE] = gcReserve;
+		if (decoded) {
+			cpuDecoded();
+			return;
+		}
 		while ( true ) {
 			int bytecode = code[ip++]; // fetch
 			int v1,v2;
@@ -82,6 +290,10 @@ public class ExecuteVM {
 					address = pop();
 					ra = ip;
 					ip = address;
+					if (sp - hp < gcReserve && stackMaps != null) {
+						safepoint(ip, sp, fp, hp, ra, tm);
+						sp = regs[REG_SP]; fp = regs[REG_FP]; hp = regs[REG_HP]; tm = regs[REG_TM];
+					}
 					break;
 				case SVMParser.STORERA:
 					ra = pop();
@@ -102,6 +314,11 @@ public class ExecuteVM {
 					fp = pop();
 					break;
 				case SVMParser.COPYFP:
+					if (sp - hp < gcReserve && stackMaps != null) { // ingresso di funzione, anche da una chiamata in coda
+						regs[REG_SP] = sp; regs[REG_FP] = fp; regs[REG_HP] = hp; regs[REG_RA] = ra; regs[REG_TM] = tm;
+						makeRoom(ip-1);
+						sp = regs[REG_SP]; fp = regs[REG_FP]; hp = regs[REG_HP]; tm = regs[REG_TM];
+					}
 					fp = sp;
 					break;
 				case SVMParser.STOREHP:
@@ -111,11 +328,692 @@ public class ExecuteVM {
 					push(hp);
 					break;
 				case SVMParser.PRINT:
-					System.out.println((sp<MEMSIZE) ? memory[sp] : "Empty stack!");
+					System.out.println((sp<memory.length) ? memory[sp] : "Empty stack!");
 					break;
 				case SVMParser.HALT:
 					return;
+				case SVMParser.DUP:
+					push(memory[sp]);
+					break;
+				case SVMParser.SWAP:
+					v1 = memory[sp];
+					memory[sp] = memory[sp+1];
+					memory[sp+1] = v1;
+					break;
+				case SVMParser.ADDI:
+					memory[sp] += code[ip++];
+					break;
+				case SVMParser.MULI:
+					memory[sp] *= code[ip++];
+					break;
+				case SVMParser.POPN:
+					sp += code[ip++];
+					break;
+				case SVMParser.CALL:
+					address = code[ip++];
+					ra = ip;
+					ip = address;
+					if (sp - hp < gcReserve && stackMaps != null) {
+						safepoint(ip, sp, fp, hp, ra, tm);
+						sp = regs[REG_SP]; fp = regs[REG_FP]; hp = regs[REG_HP]; tm = regs[REG_TM];
+					}
+					break;
+				case SVMParser.RET:
+					ip = ra;
+					if (sp - hp < gcReserve && stackMaps != null) {
+						safepoint(ip, sp, fp, hp, ra, tm);
+						sp = regs[REG_SP]; fp = regs[REG_FP]; hp = regs[REG_HP]; tm = regs[REG_TM];
+					}
+					break;
+				case SVMParser.ENTER:
+					if (sp - hp < gcReserve && stackMaps != null) { // come cfp
+						regs[REG_SP] = sp; regs[REG_FP] = fp; regs[REG_HP] = hp; regs[REG_RA] = ra; regs[REG_TM] = tm;
+						makeRoom(ip-1);
+						sp = regs[REG_SP]; fp = regs[REG_FP]; hp = regs[REG_HP]; tm = regs[REG_TM];
+					}
+					fp = sp;
+					push(ra);
+					break;
+				case SVMParser.LOADDISPLAY:
+					push(regs[REG_DISPLAY + code[ip++]]);
+					break;
+				case SVMParser.STOREDISPLAY:
+					regs[REG_DISPLAY + code[ip++]] = pop();
+					break;
+			}
+		}
+	}
+
+	// celle di codice occupate da un'istruzione: l'opcode piu' l'eventuale operando
+	static int instructionSize(int bytecode) {
+		switch ( bytecode ) {
+			case SVMParser.PUSH:
+			case SVMParser.BRANCH:
+			case SVMParser.BRANCHEQ:
+			case SVMParser.BRANCHLESSEQ:
+			case SVMParser.ADDI:
+			case SVMParser.MULI:
+			case SVMParser.POPN:
+			case SVMParser.CALL:
+			case SVMParser.LOADDISPLAY:
+			case SVMParser.STOREDISPLAY:
+				return 2;
+			default:
+				return 1;
+		}
+	}
+
+	// translates code[] into the ops[]/args[] streams once, before the execution starts
+	private void decode() {
+		ops = new int[code.length];
+		args = new int[code.length];
+		int codeEnd = 0;
+		int i = 0;
+		while (i < code.length) {
+			int bytecode = code[i];
+			ops[i] = bytecode;
+			if (bytecode != 0) codeEnd = i+1;
+			if (instructionSize(bytecode) == 2) {
+				if (i+1 < code.length) args[i] = code[i+1];
+				i += 2; // the operand slot is never executed
+			} else {
+				i++;
+			}
+		}
+		fuse();
+		if (tiered) findFunctions(codeEnd);
+	}
+
+	// every function body goes from its label to the label of the next one (or to the end of the code)
+	private void findFunctions(int codeEnd) {
+		functionEnd = new int[code.length];
+		entryCounts = new int[code.length];
+		compiledAt = new JITCompiler.Compiled[code.length];
+		int[] entries = labels.entrySet().stream()
+				.filter(l -> FUNCTION_LABEL.matcher(l.getKey()).matches())
+				.mapToInt(Map.Entry::getValue)
+				.sorted().distinct().toArray();
+		for (int e = 0; e < entries.length; e++) {
+			functionEnd[entries[e]] = (e+1 < entries.length) ? entries[e+1] : Math.max(codeEnd, entries[e]+1);
+		}
+	}
+
+	// called on a jump through js, call or ret when the program is tiered or is short of memory: registers are
+	// passed in and returned through regs; returns the next ip, -1 if the program halted
+	private int safepoint(int ip, int sp, int fp, int hp, int ra, int tm) {
+		regs[REG_SP] = sp; regs[REG_FP] = fp; regs[REG_HP] = hp; regs[REG_RA] = ra; regs[REG_TM] = tm;
+		if (sp - hp < gcReserve && stackMaps != null) makeRoom(ip);
+		return tiered ? tierUp(ip) : ip;
+	}
+
+	// counts function entries, compiles hot functions and runs compiled code for as long as control stays in it
+	private int tierUp(int ip) {
+		while (ip >= 0) {
+			JITCompiler.Compiled compiled = compiledAt[ip];
+			if (compiled == null) {
+				if (functionEnd[ip] == 0 || ++entryCounts[ip] < hotThreshold) return ip;
+				try {
+					compiled = JITCompiler.compile(code, ip, functionEnd[ip]);
+				} catch (JITCompiler.CompilationError e) {
+					for (String label : functionLabels(ip)) failedFunctions.put(label, e.getMessage());
+				}
+				if (compiled == null) {
+					functionEnd[ip] = 0; // not compilable: stays interpreted
+					return ip;
+				}
+				for (int point : JITCompiler.entryPoints(code, ip, functionEnd[ip])) compiledAt[point] = compiled;
+				compiledFunctions.addAll(functionLabels(ip));
+			}
+			if (regs[REG_SP] - regs[REG_HP] < gcReserve) {
+				if (stackMaps != null) makeRoom(ip);
+				// il codice compilato torna alla VM sugli ingressi di funzione quando la memoria scarseggia:
+				// se non si e' liberato spazio prosegue l'interprete, altrimenti si ripartirebbe dallo stesso punto
+				if (regs[REG_SP] - regs[REG_HP] < gcReserve) return ip;
+			}
+			ip = compiled.run(memory, regs, ip);
+		}
+		return ip;
+	}
+
+	// labels of the function entry at ip
+	private List<String> functionLabels(int ip) {
+		List<String> entry = new ArrayList<>();
+		for (Map.Entry<String,Integer> l : labels.entrySet()) {
+			if (l.getValue() == ip && FUNCTION_LABEL.matcher(l.getKey()).matches()) entry.add(l.getKey());
+		}
+		return entry;
+	}
+
+	/*
+	 * Chiamato su un js, call o ret o su un cfp o enter (ingresso di funzione) quando tra heap e stack restano meno di gcReserve celle:
+	 * raccoglie la spazzatura e, se lo spazio libero resta sotto un quarto della memoria, la raddoppia (fino a maxMemory).
+	 * I registri sono in regs; tm va ricaricato dalla cima dello stack, di cui al ritorno da una funzione e' sempre una copia
+	 * (su una chiamata o all'ingresso di una funzione tm non e' in uso).
+	 */
+	private void makeRoom(int ip) {
+		List<Integer> references = stackSlots(ip, SLOT_REFERENCE);
+		List<Integer> frames = stackSlots(ip, SLOT_FRAME);
+		if (references == null || frames == null) return; // stack non descritto dalle mappe
+		regs[REG_HP] = collect(regs[REG_SP], regs[REG_HP], references);
+		while (regs[REG_SP] - regs[REG_HP] < Math.max(gcReserve, memory.length / 4) && memory.length < maxMemory) {
+			grow(frames);
+		}
+		regs[REG_TM] = memory[regs[REG_SP]];
+	}
+
+	/*
+	 * Sposta la memoria in un array grande il doppio: lo heap resta agli stessi indirizzi, lo stack viene copiato
+	 * in cima al nuovo array e tutti gli indirizzi di frame (fp, sp, display, CL e AL sullo stack) vengono traslati.
+	 * Le celle del display non ancora scritte (o di livelli non piu' attivi) vengono traslate comunque:
+	 * il loro contenuto non viene letto prima di essere riscritto.
+	 */
+	private void grow(List<Integer> frames) {
+		int size = (int) Math.min(2L * memory.length, maxMemory);
+		int delta = size - memory.length;
+		int sp = regs[REG_SP];
+		int[] larger = new int[size];
+		System.arraycopy(memory, 0, larger, 0, regs[REG_HP]);
+		System.arraycopy(memory, sp, larger, sp + delta, memory.length - sp);
+		for (int i = 0; i < frames.size(); i++) {
+			frames.set(i, frames.get(i) + delta);
+			larger[frames.get(i)] += delta;
+		}
+		memory = larger;
+		gcReserve = gcReserve(size);
+		regs[REG_GC_RESERVE] = gcReserve;
+		regs[REG_SP] += delta;
+		regs[REG_FP] += delta;
+		for (int level = 0; level < DISPLAY_SIZE; level++) regs[REG_DISPLAY + level] += delta;
+	}
+
+	/*
+	 * Garbage collector mark-compact, eseguito solo sulle istruzioni js (dove nessun oggetto e' a meta' costruzione).
+	 * Lo heap e' percorribile grazie agli header emessi da CodeGenerationASTVisitor:
+	 *  - oggetto:          [n] [campo n-1] ... [campo 0] [dispatch pointer]   (l'oggetto punta al dispatch pointer)
+	 *  - dispatch table:   [-size] [kind n-1] ... [kind 0] [n] [metodo 0] ... (il dispatch pointer punta al metodo 0)
+	 * dove kind e' 1 per i campi che contengono riferimenti ad oggetti. Le radici sono le celle dello stack
+	 * indicate dalle mappe dei punti di chiamata (vedi stackSlots). Gli oggetti vivi scivolano verso il basso
+	 * e tutti i riferimenti (stack e campi) vengono aggiornati; le dispatch table non si spostano mai.
+	 * Restituisce il nuovo valore di hp.
+	 */
+	private int collect(int sp, int hp, List<Integer> roots) {
+		boolean[] isObject = new boolean[hp];
+		int address = 0;
+		while (address < hp) {
+			int header = memory[address];
+			int next = (header < 0) ? address - header : address + header + 2;
+			if (next <= address || next > hp) return hp; // heap non percorribile: non raccolgo nulla
+			if (header >= 0) isObject[next-1] = true;
+			address = next;
+		}
+
+		boolean[] marked = new boolean[hp];
+		Deque<Integer> toVisit = new ArrayDeque<>();
+		for (int slot : roots) {
+			int value = memory[slot];
+			if (value >= 0 && value < hp && isObject[value] && !marked[value]) {
+				marked[value] = true;
+				toVisit.push(value);
+			}
+		}
+		while (!toVisit.isEmpty()) {
+			int object = toVisit.pop();
+			int dp = memory[object];
+			for (int i = 0; i < memory[dp-1]; i++) {
+				int value = memory[object-1-i];
+				if (memory[dp-2-i] != 0 && value >= 0 && value < hp && isObject[value] && !marked[value]) {
+					marked[value] = true;
+					toVisit.push(value);
+				}
+			}
+		}
+
+		// nuovi indirizzi degli oggetti vivi
+		int[] forward = new int[hp];
+		int free = 0;
+		address = 0;
+		while (address < hp) {
+			int header = memory[address];
+			if (header < 0) {
+				free = address - header;
+				address = free;
+				continue;
+			}
+			int object = address + header + 1;
+			if (marked[object]) {
+				forward[object] = free + header + 1;
+				free += header + 2;
+			}
+			address = object + 1;
+		}
+
+		// aggiorno i riferimenti sullo stack e nei campi degli oggetti vivi, poi sposto i blocchi
+		for (int slot : roots) {
+			int value = memory[slot];
+			if (value >= 0 && value < hp && isObject[value]) memory[slot] = forward[value];
+		}
+		address = 0;
+		while (address < hp) {
+			int header = memory[address];
+			if (header < 0) {
+				address -= header;
+				continue;
+			}
+			int object = address + header + 1;
+			if (marked[object]) {
+				int dp = memory[object];
+				for (int i = 0; i < header; i++) {
+					int value = memory[object-1-i];
+					if (memory[dp-2-i] != 0 && value >= 0 && value < hp && isObject[value]) memory[object-1-i] = forward[value];
+				}
+			}
+			address = object + 1;
+		}
+		address = 0;
+		while (address < hp) {
+			int header = memory[address];
+			if (header < 0) {
+				address -= header;
+				continue;
+			}
+			int object = address + header + 1;
+			if (marked[object] && forward[object] != object) {
+				System.arraycopy(memory, address, memory, forward[object] - header - 1, header + 2);
+			}
+			address = object + 1;
+		}
+
+		collections++;
+		return free;
+	}
+
+	/*
+	 * Celle dello stack con il contenuto kind, ricavate risalendo i frame con le mappe emesse dopo ogni chiamata:
+	 * la mappa di una chiamata descrive le celle dall'AL del chiamato fino al return address del chiamante, quindi
+	 * il frame successivo inizia subito dopo e il suo return address porta alla mappa seguente, fino alla cima
+	 * della memoria. Su un js di ritorno (ip e' un indirizzo di ritorno) in cima allo stack c'e' il risultato al
+	 * posto di AL, argomenti e CL del chiamato. Restituisce null se lo stack non e' descritto dalle mappe.
+	 */
+	private List<Integer> stackSlots(int ip, int kind) {
+		List<Integer> slots = new ArrayList<>();
+		int sp = regs[REG_SP];
+		int[] map = stackMaps.get(ip);
+		int base, first;
+		if (map != null) {
+			if (map[1] == kind) slots.add(sp);
+			base = sp + 1 - map[0];
+			first = map[0];
+		} else {
+			map = stackMaps.get(regs[REG_RA]);
+			base = sp;
+			first = 0;
+		}
+		while (map != null) {
+			for (int j = first; j < map.length-2; j++) {
+				if (map[2+j] == kind) slots.add(base + j);
+			}
+			base += map.length-2;
+			if (base >= memory.length) return (base == memory.length) ? slots : null;
+			map = stackMaps.get(memory[base-1]);
+			first = 0;
+		}
+		return null;
+	}
+
+	private int at(int address) {
+		return address < code.length ? code[address] : -1;
+	}
+
+	private int countFrom(int address, int bytecode) {
+		int n = 0;
+		while (at(address + n) == bytecode) n++;
+		return n;
+	}
+
+	// replaces the first slot of every known idiom with a superinstruction; the other slots keep
+	// their own decoded instruction, so a branch landing inside a fused sequence still works
+	private void fuse() {
+		args2 = new int[code.length];
+		nexts = new int[code.length];
+		inlineCaches = new InlineCache[code.length];
+		int i = 0;
+		while (i < code.length) {
+			int bytecode = code[i];
+			int d, j;
+			switch ( bytecode ) {
+				case SVMParser.LOADFP:
+					d = countFrom(i+1, SVMParser.LOADW);
+					j = i+1+d;
+					if (at(j) == SVMParser.ADDI && at(j+2) == SVMParser.LOADW) {
+						fused(i, d == 0 ? LOAD_LOCAL : LOAD_OUTER, code[j+1], d, j+3);
+					} else if (at(j) == SVMParser.DUP && at(j+1) == SVMParser.ADDI && at(j+3) == SVMParser.LOADW
+							&& at(j+4) == SVMParser.JS) {
+						fused(i, CALL_VIA_AL, code[j+2], d, j+5);
+					} else if (at(j) == SVMParser.CALL) {
+						fused(i, CALL_DIRECT, code[j+1], d, j+2);
+					}
+					break;
+				case SVMParser.DUP:
+					if (at(i+1) == SVMParser.LOADW && at(i+2) == SVMParser.ADDI && at(i+4) == SVMParser.LOADW
+							&& at(i+5) == SVMParser.JS) {
+						fused(i, CALL_METHOD, code[i+3], 0, i+6);
+						inlineCaches[i] = new InlineCache(i);
+					} else if (at(i+1) == SVMParser.LOADW && at(i+2) == SVMParser.LOADW && at(i+3) == SVMParser.JS) {
+						fused(i, CALL_METHOD, 0, 0, i+4); // primo metodo: il peephole ha tolto addi 0
+						inlineCaches[i] = new InlineCache(i);
+					}
+					break;
+				case SVMParser.STORETM:
+					j = i+1;
+					int decl = popped(j);
+					if (decl > 0) j += instructionSize(at(j));
+					if (at(j) == SVMParser.STORERA) {
+						int par = popped(j+1); // Access Link e parametri
+						j += 1 + instructionSize(at(j+1));
+						if (par > 0 && at(j) == SVMParser.STOREFP && at(j+1) == SVMParser.LOADTM && at(j+2) == SVMParser.RET) {
+							fused(i, RETURN, decl, par, j+3);
+						}
+					}
+					break;
+				case SVMParser.LOADHP:
+					if (at(i+1) == SVMParser.STOREW && at(i+2) == SVMParser.LOADHP && at(i+3) == SVMParser.ADDI
+							&& at(i+4) == 1 && at(i+5) == SVMParser.STOREHP) {
+						fused(i, HEAP_STORE, 0, 0, i+6);
+					} else if (at(i+1) == SVMParser.ADDI && at(i+2) == 1 && at(i+3) == SVMParser.STOREHP) {
+						fused(i, HP_INC, 0, 0, i+4);
+					}
+					break;
+				case SVMParser.PUSH:
+					if (at(i+2) == SVMParser.BRANCHEQ) {
+						fused(i, BEQ_CONST, code[i+3], code[i+1], i+4);
+					}
+					break;
+			}
+			i += instructionSize(bytecode);
+		}
+	}
+
+	// celle tolte dallo stack dall'istruzione all'indirizzo dato se e' un pop o un popn, 0 altrimenti
+	private int popped(int address) {
+		if (at(address) == SVMParser.POP) return 1;
+		return at(address) == SVMParser.POPN ? at(address+1) : 0;
+	}
+
+	private void fused(int address, int superinstruction, int arg, int arg2, int next) {
+		ops[address] = superinstruction;
+		args[address] = arg;
+		args2[address] = arg2;
+		nexts[address] = next;
+	}
+
+	// same semantics as the classic loop, but registers live in local variables and
+	// every instruction is dispatched on the pre-decoded stream without operand fetches
+	private void cpuDecoded() {
+		if (ops == null) decode();
+
+		final int[] ops = this.ops;
+		final int[] args = this.args;
+		final int[] args2 = this.args2;
+		final int[] nexts = this.nexts;
+		final InlineCache[] inlineCaches = this.inlineCaches;
+		final int[] regs = this.regs;
+		int[] memory = this.memory;
+		int ip = this.ip, sp = this.sp, fp = this.fp, hp = this.hp, ra = this.ra, tm = this.tm;
+		int v1,v2;
+		int address;
+
+		try {
+			while ( true ) {
+				switch ( ops[ip] ) {
+					case SVMParser.PUSH:
+						memory[--sp] = args[ip];
+						ip += 2;
+						break;
+					case SVMParser.POP:
+						sp++;
+						ip++;
+						break;
+					case SVMParser.ADD:
+						v1 = memory[sp++];
+						memory[sp] += v1;
+						ip++;
+						break;
+					case SVMParser.MULT:
+						v1 = memory[sp++];
+						memory[sp] *= v1;
+						ip++;
+						break;
+					case SVMParser.DIV:
+						v1 = memory[sp++];
+						memory[sp] /= v1;
+						ip++;
+						break;
+					case SVMParser.SUB:
+						v1 = memory[sp++];
+						memory[sp] -= v1;
+						ip++;
+						break;
+					case SVMParser.STOREW:
+						v1 = memory[sp++];
+						memory[v1] = memory[sp++];
+						ip++;
+						break;
+					case SVMParser.LOADW:
+						memory[sp] = memory[memory[sp]];
+						ip++;
+						break;
+					case SVMParser.BRANCH:
+						ip = args[ip];
+						break;
+					case SVMParser.BRANCHEQ:
+						v1 = memory[sp++];
+						v2 = memory[sp++];
+						ip = (v2 == v1) ? args[ip] : ip+2;
+						break;
+					case SVMParser.BRANCHLESSEQ:
+						v1 = memory[sp++];
+						v2 = memory[sp++];
+						ip = (v2 <= v1) ? args[ip] : ip+2;
+						break;
+					case SVMParser.JS:
+						ra = ip+1;
+						ip = memory[sp++];
+						if (tiered || sp - hp < gcReserve && stackMaps != null) {
+							ip = safepoint(ip, sp, fp, hp, ra, tm);
+							memory = this.memory;
+							sp = regs[REG_SP]; fp = regs[REG_FP]; hp = regs[REG_HP]; ra = regs[REG_RA]; tm = regs[REG_TM];
+							if (ip < 0) return;
+						}
+						break;
+					case SVMParser.STORERA:
+						ra = memory[sp++];
+						ip++;
+						break;
+					case SVMParser.LOADRA:
+						memory[--sp] = ra;
+						ip++;
+						break;
+					case SVMParser.STORETM:
+						tm = memory[sp++];
+						ip++;
+						break;
+					case SVMParser.LOADTM:
+						memory[--sp] = tm;
+						ip++;
+						break;
+					case SVMParser.LOADFP:
+						memory[--sp] = fp;
+						ip++;
+						break;
+					case SVMParser.STOREFP:
+						fp = memory[sp++];
+						ip++;
+						break;
+					case SVMParser.COPYFP:
+						if (sp - hp < gcReserve && stackMaps != null) { // ingresso di funzione, anche da una chiamata in coda
+							regs[REG_SP] = sp; regs[REG_FP] = fp; regs[REG_HP] = hp; regs[REG_RA] = ra; regs[REG_TM] = tm;
+							makeRoom(ip);
+							memory = this.memory;
+							sp = regs[REG_SP]; fp = regs[REG_FP]; hp = regs[REG_HP]; tm = regs[REG_TM];
+						}
+						fp = sp;
+						ip++;
+						break;
+					case SVMParser.STOREHP:
+						hp = memory[sp++];
+						ip++;
+						break;
+					case SVMParser.LOADHP:
+						memory[--sp] = hp;
+						ip++;
+						break;
+					case SVMParser.PRINT:
+						System.out.println((sp<memory.length) ? memory[sp] : "Empty stack!");
+						ip++;
+						break;
+					case SVMParser.HALT:
+						ip++;
+						return;
+					case SVMParser.DUP:
+						v1 = memory[sp];
+						memory[--sp] = v1;
+						ip++;
+						break;
+					case SVMParser.SWAP:
+						v1 = memory[sp];
+						memory[sp] = memory[sp+1];
+						memory[sp+1] = v1;
+						ip++;
+						break;
+					case SVMParser.ADDI:
+						memory[sp] += args[ip];
+						ip += 2;
+						break;
+					case SVMParser.MULI:
+						memory[sp] *= args[ip];
+						ip += 2;
+						break;
+					case SVMParser.POPN:
+						sp += args[ip];
+						ip += 2;
+						break;
+					case SVMParser.CALL:
+						ra = ip+2;
+						ip = args[ip];
+						if (tiered || sp - hp < gcReserve && stackMaps != null) {
+							ip = safepoint(ip, sp, fp, hp, ra, tm);
+							memory = this.memory;
+							sp = regs[REG_SP]; fp = regs[REG_FP]; hp = regs[REG_HP]; ra = regs[REG_RA]; tm = regs[REG_TM];
+							if (ip < 0) return;
+						}
+						break;
+					case SVMParser.RET:
+						ip = ra;
+						if (tiered || sp - hp < gcReserve && stackMaps != null) {
+							ip = safepoint(ip, sp, fp, hp, ra, tm);
+							memory = this.memory;
+							sp = regs[REG_SP]; fp = regs[REG_FP]; hp = regs[REG_HP]; ra = regs[REG_RA]; tm = regs[REG_TM];
+							if (ip < 0) return;
+						}
+						break;
+					case SVMParser.ENTER:
+						if (sp - hp < gcReserve && stackMaps != null) { // come cfp
+							regs[REG_SP] = sp; regs[REG_FP] = fp; regs[REG_HP] = hp; regs[REG_RA] = ra; regs[REG_TM] = tm;
+							makeRoom(ip);
+							memory = this.memory;
+							sp = regs[REG_SP]; fp = regs[REG_FP]; hp = regs[REG_HP]; tm = regs[REG_TM];
+						}
+						fp = sp;
+						memory[--sp] = ra;
+						ip++;
+						break;
+					case SVMParser.LOADDISPLAY:
+						memory[--sp] = regs[REG_DISPLAY + args[ip]];
+						ip += 2;
+						break;
+					case SVMParser.STOREDISPLAY:
+						regs[REG_DISPLAY + args[ip]] = memory[sp++];
+						ip += 2;
+						break;
+					case LOAD_LOCAL:
+						memory[--sp] = memory[fp + args[ip]];
+						ip = nexts[ip];
+						break;
+					case LOAD_OUTER:
+						address = fp;
+						for (v1 = args2[ip]; v1 > 0; v1--) address = memory[address];
+						memory[--sp] = memory[address + args[ip]];
+						ip = nexts[ip];
+						break;
+					case CALL_VIA_AL:
+						address = fp;
+						for (v1 = args2[ip]; v1 > 0; v1--) address = memory[address];
+						memory[--sp] = address;
+						ra = nexts[ip];
+						ip = memory[address + args[ip]];
+						if (tiered || sp - hp < gcReserve && stackMaps != null) {
+							ip = safepoint(ip, sp, fp, hp, ra, tm);
+							memory = this.memory;
+							sp = regs[REG_SP]; fp = regs[REG_FP]; hp = regs[REG_HP]; ra = regs[REG_RA]; tm = regs[REG_TM];
+							if (ip < 0) return;
+						}
+						break;
+					case CALL_DIRECT:
+						address = fp;
+						for (v1 = args2[ip]; v1 > 0; v1--) address = memory[address];
+						memory[--sp] = address;
+						ra = nexts[ip];
+						ip = args[ip];
+						if (tiered || sp - hp < gcReserve && stackMaps != null) {
+							ip = safepoint(ip, sp, fp, hp, ra, tm);
+							memory = this.memory;
+							sp = regs[REG_SP]; fp = regs[REG_FP]; hp = regs[REG_HP]; ra = regs[REG_RA]; tm = regs[REG_TM];
+							if (ip < 0) return;
+						}
+						break;
+					case CALL_METHOD:
+						ra = nexts[ip];
+						ip = inlineCaches[ip].target(memory, memory[memory[sp]], args[ip]); // dispatch pointer dell'oggetto
+						if (tiered || sp - hp < gcReserve && stackMaps != null) {
+							ip = safepoint(ip, sp, fp, hp, ra, tm);
+							memory = this.memory;
+							sp = regs[REG_SP]; fp = regs[REG_FP]; hp = regs[REG_HP]; ra = regs[REG_RA]; tm = regs[REG_TM];
+							if (ip < 0) return;
+						}
+						break;
+					case RETURN:
+						tm = memory[sp];
+						sp += 1 + args[ip];
+						address = memory[sp++];
+						sp += args2[ip];
+						fp = memory[sp];
+						memory[sp] = tm;
+						ra = address;
+						ip = address;
+						if (tiered || sp - hp < gcReserve && stackMaps != null) {
+							ip = safepoint(ip, sp, fp, hp, ra, tm);
+							memory = this.memory;
+							sp = regs[REG_SP]; fp = regs[REG_FP]; hp = regs[REG_HP]; ra = regs[REG_RA]; tm = regs[REG_TM];
+							if (ip < 0) return;
+						}
+						break;
+					case HEAP_STORE:
+						memory[hp++] = memory[sp++];
+						ip = nexts[ip];
+						break;
+					case HP_INC:
+						hp++;
+						ip = nexts[ip];
+						break;
+					case BEQ_CONST:
+						ip = (memory[sp++] == args2[ip]) ? args[ip] : nexts[ip];
+						break;
+					default:
+						ip++;
+				}
 			}
+		} finally {
+			this.ip = ip; this.sp = sp; this.fp = fp; this.hp = hp; this.ra = ra; this.tm = tm;
 		}
 	}
 
@@ -0,0 +1,83 @@
+package svm;
+
+/*
+ * Inline cache di un sito di chiamata di metodo (dup lw [addi k] lw js) nel motore pre-decodificato:
+ * ricorda, per i primi WAYS dispatch pointer visti, l'indirizzo del metodo chiamato. Le dispatch table non
+ * cambiano e non si spostano, quindi una voce resta valida per tutta l'esecuzione.
+ * Un sito che ha visto un solo dispatch pointer e' monomorfico, fino a WAYS polimorfico; oltre e' megamorfico:
+ * la cache smette di essere consultata e ogni chiamata legge la dispatch table.
+ */
+public final class InlineCache {
+
+	public static final int WAYS = 4;
+
+	private final int address;
+	private final int[] pointers = new int[WAYS];
+	private final int[] targets = new int[WAYS];
+	private int size = 0;
+	private boolean megamorphic = false;
+	private long hits = 0;
+	private long misses = 0;
+
+	InlineCache(int address) {
+		this.address = address;
+	}
+
+	// indirizzo del metodo all'offset dato della dispatch table a cui punta dispatchPointer
+	int target(int[] memory, int dispatchPointer, int offset) {
+		if (!megamorphic) {
+			for (int i = 0; i < size; i++) {
+				if (pointers[i] == dispatchPointer) {
+					hits++;
+					return targets[i];
+				}
+			}
+		}
+		misses++;
+		int target = memory[dispatchPointer + offset];
+		if (size < WAYS) {
+			pointers[size] = dispatchPointer;
+			targets[size++] = target;
+		} else {
+			megamorphic = true;
+		}
+		return target;
+	}
+
+	// indirizzo della chiamata nel codice
+	public int address() {
+		return address;
+	}
+
+	// numero di dispatch pointer diversi in cache
+	public int receivers() {
+		return size;
+	}
+
+	public boolean isMonomorphic() {
+		return size == 1 && !megamorphic;
+	}
+
+	public boolean isMegamorphic() {
+		return megamorphic;
+	}
+
+	public long hits() {
+		return hits;
+	}
+
+	public long misses() {
+		return misses;
+	}
+
+	public double hitRate() {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+
+	@Override
+	public String toString() {
+		String kind = megamorphic ? "megamorphic" : (size <= 1 ? "monomorphic" : "polymorphic");
+		return String.format("call site %d: %s, %d receivers, %d hits, %d misses (%.1f%%)",
+				address, kind, size, hits, misses, 100 * hitRate());
+	}
+}
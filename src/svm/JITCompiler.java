@@ -0,0 +1,627 @@
+package svm;
+
+import java.io.Serial;
+import java.lang.invoke.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/*
+	Traduce il codice SVM di una funzione in bytecode JVM e lo carica come classe nascosta,
+	cosi' che il JIT di HotSpot possa ottimizzarlo.
+	Il codice compilato lavora sullo stesso array memory[] e sullo stesso register file della VM:
+	esegue dall'indirizzo ricevuto finche' non incontra un js, call o ret (chiamata o ritorno), un salto fuori
+	dalla funzione o un halt, e restituisce l'indirizzo da cui la VM deve proseguire (-1 dopo halt).
+*/
+final class JITCompiler {
+
+	interface Compiled {
+		int run(int[] memory, int[] regs, int ip);
+	}
+
+	private static final int MAX_METHOD_SIZE = 30000; // keeps every branch offset within 16 bits
+	private static final String CLASS_NAME = "svm/JITCode";
+	private static final String RUN_DESCRIPTOR = "([I[II)I";
+
+	// JVM local variables of the generated run method
+	private static final int MEM = 1, REGS = 2, IP = 3, SP = 4, FP = 5, HP = 6, RA = 7, TM = 8;
+	private static final int[] REGISTER_LOCALS = new int[5];
+	static {
+		REGISTER_LOCALS[ExecuteVM.REG_SP] = SP;
+		REGISTER_LOCALS[ExecuteVM.REG_FP] = FP;
+		REGISTER_LOCALS[ExecuteVM.REG_HP] = HP;
+		REGISTER_LOCALS[ExecuteVM.REG_RA] = RA;
+		REGISTER_LOCALS[ExecuteVM.REG_TM] = TM;
+	}
+
+	// JVM opcodes
+	private static final int ALOAD_0 = 0x2a, ILOAD = 0x15, ALOAD = 0x19, ISTORE = 0x36, SWAP = 0x5f;
+	private static final int IALOAD = 0x2e, IASTORE = 0x4f, ICONST_0 = 0x03, ICONST_1 = 0x04;
+	private static final int BIPUSH = 0x10, SIPUSH = 0x11, LDC = 0x12, LDC_W = 0x13;
+	private static final int IADD = 0x60, ISUB = 0x64, IMUL = 0x68, IDIV = 0x6c, IINC = 0x84;
+	private static final int IF_ICMPEQ = 0x9f, IF_ICMPGE = 0xa2, IF_ICMPLE = 0xa4, GOTO = 0xa7;
+	private static final int LOOKUPSWITCH = 0xab, IRETURN = 0xac, RETURN = 0xb1;
+	private static final int ARRAYLENGTH = 0xbe;
+	private static final int GETSTATIC = 0xb2, INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7;
+
+	private final int[] code;
+	private final int start, end;
+
+	private final Bytes pool = new Bytes();
+	private final Map<String, Integer> poolIndex = new HashMap<>();
+	private int poolCount = 1;
+
+	private final Bytes body = new Bytes();
+	private int[] position;                                  // bytecode offset of every SVM instruction
+	private final List<int[]> fixups = new ArrayList<>();    // {opcode offset, operand offset, width, target}
+	private final Map<Integer, Integer> exits = new TreeMap<>(); // target address -> stub offset
+	private final SortedSet<Integer> resumePoints = new TreeSet<>();
+	private int exitLabel;
+
+	private JITCompiler(int[] code, int start, int end) {
+		this.code = code;
+		this.start = start;
+		this.end = end;
+	}
+
+	// una classe generata che la JVM rifiuta (VerifyError, ClassFormatError...): e' un errore del compilatore
+	static final class CompilationError extends RuntimeException {
+
+		@Serial
+		private static final long serialVersionUID = 1L;
+
+		CompilationError(int start, Throwable cause) {
+			super("JIT compilation of the function at " + start + " failed: " + cause, cause);
+		}
+	}
+
+	// compila la funzione [start, end); restituisce null se non e' compilabile (istruzioni non supportate o
+	// metodo troppo grande), lancia CompilationError se la JVM non accetta il codice generato
+	static Compiled compile(int[] code, int start, int end) {
+		byte[] classFile = new JITCompiler(code, start, end).classFile();
+		if (classFile == null) return null;
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup().defineHiddenClass(classFile, true);
+			return (Compiled) lookup.lookupClass().getConstructor().newInstance();
+		} catch (LinkageError | ReflectiveOperationException e) {
+			throw new CompilationError(start, e);
+		}
+	}
+
+	// indirizzi da cui il codice compilato puo' (ri)partire: l'ingresso e ogni punto di ritorno da chiamata
+	static SortedSet<Integer> entryPoints(int[] code, int start, int end) {
+		SortedSet<Integer> points = new TreeSet<>();
+		points.add(start);
+		for (int a = start; a < end; a += size(code[a])) {
+			if (code[a] == SVMParser.JS && a+1 < end) points.add(a+1);
+			if (code[a] == SVMParser.CALL && a+2 < end) points.add(a+2);
+		}
+		return points;
+	}
+
+	private static int size(int bytecode) {
+		return ExecuteVM.instructionSize(bytecode);
+	}
+
+	private boolean inside(int address) {
+		return address >= start && address < end && position[address - start] >= 0;
+	}
+
+	private byte[] classFile() {
+		int thisClass = classRef(CLASS_NAME);
+		int superClass = classRef("java/lang/Object");
+		int compiledInterface = classRef("svm/JITCompiler$Compiled");
+		int objectInit = methodRef("java/lang/Object", "<init>", "()V");
+		int codeName = utf8("Code");
+
+		Bytes init = new Bytes();
+		init.u1(ALOAD_0);
+		init.u1(INVOKESPECIAL);
+		init.u2(objectInit);
+		init.u1(RETURN);
+
+		if (!runMethod()) return null;
+
+		Bytes cls = new Bytes();
+		cls.u4(0xCAFEBABE);
+		cls.u2(0);
+		cls.u2(49); // Java 5 class files do not need StackMapTable frames
+		// every constant is registered by now, the pool can be written
+		int initName = utf8("<init>"), initDescriptor = utf8("()V");
+		int runName = utf8("run"), runDescriptor = utf8(RUN_DESCRIPTOR);
+		cls.u2(poolCount);
+		cls.append(pool);
+		cls.u2(0x0011); // public final
+		cls.u2(thisClass);
+		cls.u2(superClass);
+		cls.u2(1);
+		cls.u2(compiledInterface);
+		cls.u2(0); // fields
+		cls.u2(2); // methods
+		method(cls, initName, initDescriptor, codeName, init, 1, 1);
+		method(cls, runName, runDescriptor, codeName, body, 6, TM + 1);
+		cls.u2(0); // attributes
+		return cls.toByteArray();
+	}
+
+	private static void method(Bytes cls, int name, int descriptor, int codeName, Bytes code, int maxStack, int maxLocals) {
+		cls.u2(0x0001); // public
+		cls.u2(name);
+		cls.u2(descriptor);
+		cls.u2(1);
+		cls.u2(codeName);
+		cls.u4(12 + code.size());
+		cls.u2(maxStack);
+		cls.u2(maxLocals);
+		cls.u4(code.size());
+		cls.append(code);
+		cls.u2(0); // exception table
+		cls.u2(0); // attributes
+	}
+
+	private boolean runMethod() {
+		position = new int[end - start];
+		Arrays.fill(position, -1);
+		for (int a = start; a < end; a += size(code[a])) position[a - start] = 0;
+		resumePoints.addAll(entryPoints(code, start, end));
+
+		// carica i registri nelle variabili locali
+		for (int r = 0; r < REGISTER_LOCALS.length; r++) {
+			load(REGS);
+			constant(r);
+			body.u1(IALOAD);
+			store(REGISTER_LOCALS[r]);
+		}
+
+		// salta all'istruzione da cui si riparte
+		load(IP);
+		int switchAt = body.size();
+		body.u1(LOOKUPSWITCH);
+		while (body.size() % 4 != 0) body.u1(0);
+		fixup(switchAt, 4, Integer.MIN_VALUE); // default: hand the address back to the VM
+		body.u4(resumePoints.size());
+		for (int point : resumePoints) {
+			body.u4(point);
+			fixup(switchAt, 4, point);
+		}
+
+		for (int a = start; a < end; a += size(code[a])) {
+			position[a - start] = body.size();
+			instruction(a);
+			if (body.size() > MAX_METHOD_SIZE) return false;
+		}
+		exitTo(end); // fall through past the end of the function
+
+		for (Map.Entry<Integer, Integer> exit : exits.entrySet()) {
+			exit.setValue(body.size());
+			constant(exit.getKey());
+			store(IP);
+			jump(GOTO, Integer.MIN_VALUE);
+		}
+
+		// salva i registri e restituisce l'indirizzo da cui proseguire
+		exitLabel = body.size();
+		for (int r = 0; r < REGISTER_LOCALS.length; r++) {
+			load(REGS);
+			constant(r);
+			load(REGISTER_LOCALS[r]);
+			body.u1(IASTORE);
+		}
+		load(IP);
+		body.u1(IRETURN);
+
+		for (int[] f : fixups) {
+			int target = (f[3] == Integer.MIN_VALUE) ? exitLabel
+					: inside(f[3]) ? position[f[3] - start] : exits.get(f[3]);
+			int offset = target - f[0];
+			if (f[2] == 2) body.patch2(f[1], offset);
+			else body.patch4(f[1], offset);
+		}
+		return body.size() <= MAX_METHOD_SIZE;
+	}
+
+	private void instruction(int a) {
+		switch (code[a]) {
+			case SVMParser.PUSH:
+				push(() -> constant(code[a+1]));
+				break;
+			case SVMParser.POP:
+				body.u1(IINC); body.u1(SP); body.u1(1);
+				break;
+			case SVMParser.ADD:
+				binary(IADD);
+				break;
+			case SVMParser.SUB:
+				binary(ISUB);
+				break;
+			case SVMParser.MULT:
+				binary(IMUL);
+				break;
+			case SVMParser.DIV:
+				binary(IDIV);
+				break;
+			case SVMParser.STOREW:
+				// memory[memory[sp]] = memory[sp+1]
+				load(MEM);
+				top(0);
+				top(1);
+				body.u1(IASTORE);
+				body.u1(IINC); body.u1(SP); body.u1(2);
+				break;
+			case SVMParser.LOADW:
+				// memory[sp] = memory[memory[sp]]
+				load(MEM);
+				load(SP);
+				load(MEM);
+				top(0);
+				body.u1(IALOAD);
+				body.u1(IASTORE);
+				break;
+			case SVMParser.BRANCH:
+				target(code[a+1]);
+				jump(GOTO, code[a+1]);
+				break;
+			case SVMParser.BRANCHEQ:
+			case SVMParser.BRANCHLESSEQ:
+				target(code[a+1]);
+				top(1);
+				top(0);
+				body.u1(IINC); body.u1(SP); body.u1(2);
+				jump(code[a] == SVMParser.BRANCHEQ ? IF_ICMPEQ : IF_ICMPLE, code[a+1]);
+				break;
+			case SVMParser.JS:
+				top(0);
+				store(IP);
+				body.u1(IINC); body.u1(SP); body.u1(1);
+				constant(a+1);
+				store(RA);
+				jump(GOTO, Integer.MIN_VALUE);
+				break;
+			case SVMParser.STORERA:
+				pop(RA);
+				break;
+			case SVMParser.LOADRA:
+				push(() -> load(RA));
+				break;
+			case SVMParser.STORETM:
+				pop(TM);
+				break;
+			case SVMParser.LOADTM:
+				push(() -> load(TM));
+				break;
+			case SVMParser.LOADFP:
+				push(() -> load(FP));
+				break;
+			case SVMParser.STOREFP:
+				pop(FP);
+				break;
+			case SVMParser.COPYFP:
+				roomCheck(a);
+				load(SP);
+				store(FP);
+				break;
+			case SVMParser.LOADHP:
+				push(() -> load(HP));
+				break;
+			case SVMParser.STOREHP:
+				pop(HP);
+				break;
+			case SVMParser.PRINT:
+				print();
+				break;
+			case SVMParser.HALT:
+				constant(-1);
+				store(IP);
+				jump(GOTO, Integer.MIN_VALUE);
+				break;
+			case SVMParser.DUP:
+				push(() -> top(1));
+				break;
+			case SVMParser.SWAP:
+				// memory[sp] = memory[sp+1]; memory[sp+1] = vecchio memory[sp]
+				top(0);
+				load(MEM);
+				load(SP);
+				top(1);
+				body.u1(IASTORE);
+				load(MEM);
+				body.u1(SWAP);
+				load(SP);
+				constant(1);
+				body.u1(IADD);
+				body.u1(SWAP);
+				body.u1(IASTORE);
+				break;
+			case SVMParser.ADDI:
+			case SVMParser.MULI:
+				// memory[sp] = memory[sp] op k
+				load(MEM);
+				load(SP);
+				top(0);
+				constant(code[a+1]);
+				body.u1(code[a] == SVMParser.ADDI ? IADD : IMUL);
+				body.u1(IASTORE);
+				break;
+			case SVMParser.POPN:
+				load(SP);
+				constant(code[a+1]);
+				body.u1(IADD);
+				store(SP);
+				break;
+			case SVMParser.CALL:
+				constant(a+2);
+				store(RA);
+				constant(code[a+1]);
+				store(IP);
+				jump(GOTO, Integer.MIN_VALUE);
+				break;
+			case SVMParser.RET:
+				load(RA);
+				store(IP);
+				jump(GOTO, Integer.MIN_VALUE);
+				break;
+			case SVMParser.ENTER:
+				roomCheck(a);
+				load(SP);
+				store(FP);
+				push(() -> load(RA));
+				break;
+			case SVMParser.LOADDISPLAY:
+				push(() -> {
+					load(REGS);
+					constant(ExecuteVM.REG_DISPLAY + code[a+1]);
+					body.u1(IALOAD);
+				});
+				break;
+			case SVMParser.STOREDISPLAY:
+				load(REGS);
+				constant(ExecuteVM.REG_DISPLAY + code[a+1]);
+				top(0);
+				body.u1(IASTORE);
+				body.u1(IINC); body.u1(SP); body.u1(1);
+				break;
+		}
+	}
+
+	// ingresso di funzione (anche da una chiamata in coda, che non passa per js o call): se tra heap e
+	// stack resta poco spazio si torna alla VM, che puo' raccogliere la spazzatura
+	private void roomCheck(int a) {
+		load(SP);
+		load(HP);
+		body.u1(ISUB);
+		load(REGS);
+		constant(ExecuteVM.REG_GC_RESERVE); // la soglia cambia quando la memoria cresce
+		body.u1(IALOAD);
+		int roomCheck = body.size();
+		body.u1(IF_ICMPGE);
+		body.u2(0);
+		constant(a);
+		store(IP);
+		jump(GOTO, Integer.MIN_VALUE);
+		body.patch2(roomCheck + 1, body.size() - roomCheck);
+	}
+
+	// registers the exit stub for a branch leaving the function
+	private void target(int address) {
+		if (!inside(address)) exits.putIfAbsent(address, -1);
+	}
+
+	private void exitTo(int address) {
+		target(address);
+		jump(GOTO, address);
+	}
+
+	// memory[--sp] = value
+	private void push(Runnable value) {
+		body.u1(IINC); body.u1(SP); body.u1(-1);
+		load(MEM);
+		load(SP);
+		value.run();
+		body.u1(IASTORE);
+	}
+
+	// register = memory[sp++]
+	private void pop(int register) {
+		top(0);
+		store(register);
+		body.u1(IINC); body.u1(SP); body.u1(1);
+	}
+
+	// pushes memory[sp+depth] on the JVM stack
+	private void top(int depth) {
+		load(MEM);
+		load(SP);
+		if (depth > 0) {
+			constant(depth);
+			body.u1(IADD);
+		}
+		body.u1(IALOAD);
+	}
+
+	// memory[sp+1] = memory[sp+1] op memory[sp]; sp++
+	private void binary(int operation) {
+		load(MEM);
+		load(SP);
+		constant(1);
+		body.u1(IADD);
+		top(1);
+		top(0);
+		body.u1(operation);
+		body.u1(IASTORE);
+		body.u1(IINC); body.u1(SP); body.u1(1);
+	}
+
+	private void print() {
+		int out = fieldRef("java/lang/System", "out", "Ljava/io/PrintStream;");
+		load(SP);
+		load(MEM);
+		body.u1(ARRAYLENGTH);
+		int emptyCheck = body.size();
+		body.u1(IF_ICMPGE);
+		body.u2(0);
+		body.u1(GETSTATIC);
+		body.u2(out);
+		top(0);
+		body.u1(INVOKEVIRTUAL);
+		body.u2(methodRef("java/io/PrintStream", "println", "(I)V"));
+		int skip = body.size();
+		body.u1(GOTO);
+		body.u2(0);
+		body.patch2(emptyCheck + 1, body.size() - emptyCheck);
+		body.u1(GETSTATIC);
+		body.u2(out);
+		ldc(string("Empty stack!"));
+		body.u1(INVOKEVIRTUAL);
+		body.u2(methodRef("java/io/PrintStream", "println", "(Ljava/lang/String;)V"));
+		body.patch2(skip + 1, body.size() - skip);
+	}
+
+	private void jump(int opcode, int target) {
+		int at = body.size();
+		body.u1(opcode);
+		fixup(at, 2, target);
+		body.u2(0);
+	}
+
+	private void fixup(int opcodeOffset, int width, int target) {
+		fixups.add(new int[] {opcodeOffset, body.size(), width, target});
+		if (width == 4) body.u4(0);
+	}
+
+	private void load(int local) {
+		body.u1(local == MEM || local == REGS ? ALOAD : ILOAD);
+		body.u1(local);
+	}
+
+	private void store(int local) {
+		body.u1(ISTORE);
+		body.u1(local);
+	}
+
+	private void constant(int value) {
+		if (value >= -1 && value <= 5) {
+			body.u1(ICONST_0 + value);
+		} else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+			body.u1(BIPUSH);
+			body.u1(value);
+		} else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+			body.u1(SIPUSH);
+			body.u2(value);
+		} else {
+			ldc(integer(value));
+		}
+	}
+
+	private void ldc(int index) {
+		if (index < 256) {
+			body.u1(LDC);
+			body.u1(index);
+		} else {
+			body.u1(LDC_W);
+			body.u2(index);
+		}
+	}
+
+	// constant pool
+
+	private int constant(String key, Runnable entry) {
+		Integer index = poolIndex.get(key);
+		if (index == null) {
+			entry.run();
+			index = poolCount++;
+			poolIndex.put(key, index);
+		}
+		return index;
+	}
+
+	private int utf8(String s) {
+		return constant("U" + s, () -> {
+			byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+			pool.u1(1);
+			pool.u2(bytes.length);
+			pool.append(bytes);
+		});
+	}
+
+	private int integer(int value) {
+		return constant("I" + value, () -> {
+			pool.u1(3);
+			pool.u4(value);
+		});
+	}
+
+	private int string(String s) {
+		int text = utf8(s);
+		return constant("S" + s, () -> {
+			pool.u1(8);
+			pool.u2(text);
+		});
+	}
+
+	private int classRef(String name) {
+		int n = utf8(name);
+		return constant("C" + name, () -> {
+			pool.u1(7);
+			pool.u2(n);
+		});
+	}
+
+	private int nameAndType(String name, String descriptor) {
+		int n = utf8(name), d = utf8(descriptor);
+		return constant("N" + name + ":" + descriptor, () -> {
+			pool.u1(12);
+			pool.u2(n);
+			pool.u2(d);
+		});
+	}
+
+	private int fieldRef(String owner, String name, String descriptor) {
+		int c = classRef(owner), nt = nameAndType(name, descriptor);
+		return constant("F" + owner + "." + name, () -> {
+			pool.u1(9);
+			pool.u2(c);
+			pool.u2(nt);
+		});
+	}
+
+	private int methodRef(String owner, String name, String descriptor) {
+		int c = classRef(owner), nt = nameAndType(name, descriptor);
+		return constant("M" + owner + "." + name + descriptor, () -> {
+			pool.u1(10);
+			pool.u2(c);
+			pool.u2(nt);
+		});
+	}
+
+	// buffer di byte big-endian
+	private static final class Bytes {
+		private byte[] data = new byte[256];
+		private int size = 0;
+
+		int size() { return size; }
+
+		void u1(int b) {
+			if (size == data.length) data = Arrays.copyOf(data, size * 2);
+			data[size++] = (byte) b;
+		}
+
+		void u2(int v) { u1(v >> 8); u1(v); }
+
+		void u4(int v) { u2(v >> 16); u2(v); }
+
+		void patch2(int at, int v) {
+			data[at] = (byte) (v >> 8);
+			data[at+1] = (byte) v;
+		}
+
+		void patch4(int at, int v) {
+			patch2(at, v >> 16);
+			patch2(at+2, v);
+		}
+
+		void append(byte[] bytes) { for (byte b : bytes) u1(b); }
+
+		void append(Bytes other) { for (int i = 0; i < other.size; i++) u1(other.data[i]); }
+
+		byte[] toByteArray() { return Arrays.copyOf(data, size); }
+	}
+}
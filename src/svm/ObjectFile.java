@@ -0,0 +1,126 @@
+package svm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/*
+ * Programma SVM gia' assemblato, salvabile in un formato binario che si carica senza passare dal parser.
+ * Tutti i numeri sono int big endian:
+ *  - header:      magic "SVMO", versione, lunghezza del codice, numero di etichette, numero di mappe dello stack,
+ *                 lunghezza della source map (0 se assente), lunghezza dei dati statici
+ *  - codice:      il codice con le etichette gia' risolte
+ *  - etichette:   per ognuna indirizzo, lunghezza del nome in byte e nome in UTF-8 (allineato a 4 byte)
+ *  - mappe:       per ognuna indirizzo di ritorno, lunghezza e contenuto della mappa
+ *  - source map:  per ogni indirizzo di codice la riga del sorgente assembly
+ *  - dati:        immagine iniziale dello heap (dall'indirizzo 0), copiata in memoria prima di eseguire; sezione
+ *                 riservata: il compilatore la lascia vuota e costruisce le dispatch table con il codice di avvio
+ */
+public final class ObjectFile {
+
+	public static final int MAGIC = 0x53564D4F; // "SVMO"
+	public static final int VERSION = 3; // 2: istruzioni estese (dup, swap, addi, muli, popn, call, ret, enter), 3: display (ldisp, sdisp)
+	private static final int HEADER_INTS = 7;
+
+	public final int[] code;
+	public final Map<String,Integer> labels;
+	public final Map<Integer,int[]> stackMaps;
+	public final int[] sourceMap; // null se assente
+	public final int[] data;
+
+	public ObjectFile(int[] code, Map<String,Integer> labels, Map<Integer,int[]> stackMaps, int[] sourceMap, int[] data) {
+		this.code = code;
+		this.labels = labels;
+		this.stackMaps = stackMaps;
+		this.sourceMap = sourceMap;
+		this.data = data;
+	}
+
+	public void write(Path file) throws IOException {
+		List<byte[]> names = new ArrayList<>();
+		int size = 4 * (HEADER_INTS + code.length + (sourceMap == null ? 0 : sourceMap.length) + data.length);
+		for (String label : labels.keySet()) {
+			byte[] name = label.getBytes(StandardCharsets.UTF_8);
+			names.add(name);
+			size += 8 + align(name.length);
+		}
+		for (int[] map : stackMaps.values()) size += 4 * (2 + map.length);
+
+		ByteBuffer buffer = ByteBuffer.allocate(size);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(code.length).putInt(labels.size()).putInt(stackMaps.size())
+				.putInt(sourceMap == null ? 0 : sourceMap.length).putInt(data.length);
+		buffer.asIntBuffer().put(code);
+		buffer.position(buffer.position() + 4 * code.length);
+		Iterator<byte[]> name = names.iterator();
+		for (int address : labels.values()) {
+			byte[] bytes = name.next();
+			buffer.putInt(address).putInt(bytes.length).put(bytes);
+			buffer.position(buffer.position() + align(bytes.length) - bytes.length);
+		}
+		for (Map.Entry<Integer,int[]> map : stackMaps.entrySet()) {
+			buffer.putInt(map.getKey()).putInt(map.getValue().length);
+			for (int v : map.getValue()) buffer.putInt(v);
+		}
+		if (sourceMap != null) for (int line : sourceMap) buffer.putInt(line);
+		for (int word : data) buffer.putInt(word);
+
+		buffer.flip();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			while (buffer.hasRemaining()) channel.write(buffer);
+		}
+	}
+
+	// il file viene mappato in memoria in sola lettura e le sezioni copiate con letture di blocco
+	public static ObjectFile load(Path file) throws IOException {
+		ByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		if (buffer.remaining() < 4 * HEADER_INTS || buffer.getInt() != MAGIC) {
+			throw new IOException(file + " is not an SVM object file");
+		}
+		int version = buffer.getInt();
+		if (version < 1 || version > VERSION) throw new IOException("Unsupported SVM object file version " + version);
+		int codeLength = buffer.getInt();
+		int labelCount = buffer.getInt();
+		int stackMapCount = buffer.getInt();
+		int sourceMapLength = buffer.getInt();
+		int dataLength = buffer.getInt();
+
+		int[] code = ints(buffer, codeLength);
+		Map<String,Integer> labels = new HashMap<>();
+		for (int i = 0; i < labelCount; i++) {
+			int address = buffer.getInt();
+			byte[] name = new byte[buffer.getInt()];
+			buffer.get(name);
+			buffer.position(buffer.position() + align(name.length) - name.length);
+			labels.put(new String(name, StandardCharsets.UTF_8), address);
+		}
+		Map<Integer,int[]> stackMaps = new HashMap<>();
+		for (int i = 0; i < stackMapCount; i++) {
+			int address = buffer.getInt();
+			stackMaps.put(address, ints(buffer, buffer.getInt()));
+		}
+		int[] sourceMap = (sourceMapLength > 0) ? ints(buffer, sourceMapLength) : null;
+		int[] data = ints(buffer, dataLength);
+		return new ObjectFile(code, labels, stackMaps, sourceMap, data);
+	}
+
+	private static int[] ints(ByteBuffer buffer, int count) {
+		int[] values = new int[count];
+		IntBuffer view = buffer.asIntBuffer();
+		view.get(values);
+		buffer.position(buffer.position() + 4 * count);
+		return values;
+	}
+
+	private static int align(int bytes) {
+		return (bytes + 3) & ~3;
+	}
+}
@@ -10,9 +10,25 @@ grammar SVM;
    
 @parser::members { 
 	public int[] code = new int[ExecuteVM.CODESIZE];
+	public int[] sourceMap = new int[ExecuteVM.CODESIZE]; // per ogni cella di codice la riga (da 0) del sorgente
 	private int i = 0;
-	private Map<String,Integer> labelDef = new HashMap<>();
+	private int line = 0; // riga dell'istruzione che si sta assemblando
+	public Map<String,Integer> labelDef = new HashMap<>();
+	public Map<Integer,int[]> stackMaps = new HashMap<>(); // return address -> stack map for the garbage collector
 	private Map<Integer,String> labelRef = new HashMap<>();
+	private void emit(int c) {
+		if (i == code.length) { // il buffer del codice cresce
+			code = Arrays.copyOf(code, 2*code.length);
+			sourceMap = Arrays.copyOf(sourceMap, 2*sourceMap.length);
+		}
+		sourceMap[i] = line;
+		code[i++] = c;
+	}
+
+	// programma assemblato: solo le celle scritte, anche se l'ultima e' un operando 0
+	public ObjectFile objectFile() {
+		return new ObjectFile(Arrays.copyOf(code, i), labelDef, stackMaps, Arrays.copyOf(sourceMap, i), new int[0]);
+	}
 }
 
 /*------------------------------------------------------------------
@@ -23,37 +39,55 @@ assembly: instruction* EOF 	{ for (Integer j: labelRef.keySet())
 								code[j]=labelDef.get(labelRef.get(j)); 
 							} ;
 
-instruction : 
-        PUSH n=INTEGER       {code[i++] = PUSH;
-			                    code[i++] = Integer.parseInt($n.text);}
-	  | PUSH l=LABEL         {code[i++] = PUSH;
-	    		                labelRef.put(i++,$l.text);}
-	  | POP		             {code[i++] = POP;}
-	  | ADD		             {code[i++] = ADD;}
-	  | SUB		             {code[i++] = SUB;}
-	  | MULT	             {code[i++] = MULT;}
-	  | DIV		             {code[i++] = DIV;}
-	  | STOREW	             {code[i++] = STOREW;}
-	  | LOADW                {code[i++] = LOADW;}
+instruction
+	@init { line = _input.LT(1).getLine() - 1; } :
+        PUSH n=INTEGER       {emit(PUSH);
+			                    emit(Integer.parseInt($n.text));}
+	  | PUSH l=LABEL         {emit(PUSH);
+	    		                labelRef.put(i,$l.text); emit(0);}
+	  | POP		             {emit(POP);}
+	  | ADD		             {emit(ADD);}
+	  | SUB		             {emit(SUB);}
+	  | MULT	             {emit(MULT);}
+	  | DIV		             {emit(DIV);}
+	  | STOREW	             {emit(STOREW);}
+	  | LOADW                {emit(LOADW);}
 	  | l=LABEL COL          {labelDef.put($l.text,i);}
-	  | BRANCH l=LABEL       {code[i++] = BRANCH;
-                               labelRef.put(i++,$l.text);}
-	  | BRANCHEQ l=LABEL     {code[i++] = BRANCHEQ;
-                               labelRef.put(i++,$l.text);}
-	  | BRANCHLESSEQ l=LABEL {code[i++] = BRANCHLESSEQ;
-                               labelRef.put(i++,$l.text);}
-	  | JS                   {code[i++] = JS;}
-	  | LOADRA               {code[i++] = LOADRA;}
-	  | STORERA              {code[i++] = STORERA;}
-	  | LOADTM               {code[i++] = LOADTM;}
-	  | STORETM              {code[i++] = STORETM;}
-	  | LOADFP               {code[i++] = LOADFP;}
-	  | STOREFP              {code[i++] = STOREFP;}
-	  | COPYFP               {code[i++] = COPYFP;}
-	  | LOADHP               {code[i++] = LOADHP;}
-	  | STOREHP              {code[i++] = STOREHP;}
-	  | PRINT                {code[i++] = PRINT;}
-	  | HALT                 {code[i++] = HALT;}
+	  | GCMAP (v+=INTEGER)+  {stackMaps.put(i, $v.stream().mapToInt(t -> Integer.parseInt(t.getText())).toArray());}
+	  | BRANCH l=LABEL       {emit(BRANCH);
+                               labelRef.put(i,$l.text); emit(0);}
+	  | BRANCHEQ l=LABEL     {emit(BRANCHEQ);
+                               labelRef.put(i,$l.text); emit(0);}
+	  | BRANCHLESSEQ l=LABEL {emit(BRANCHLESSEQ);
+                               labelRef.put(i,$l.text); emit(0);}
+	  | JS                   {emit(JS);}
+	  | LOADRA               {emit(LOADRA);}
+	  | STORERA              {emit(STORERA);}
+	  | LOADTM               {emit(LOADTM);}
+	  | STORETM              {emit(STORETM);}
+	  | LOADFP               {emit(LOADFP);}
+	  | STOREFP              {emit(STOREFP);}
+	  | COPYFP               {emit(COPYFP);}
+	  | LOADHP               {emit(LOADHP);}
+	  | STOREHP              {emit(STOREHP);}
+	  | PRINT                {emit(PRINT);}
+	  | HALT                 {emit(HALT);}
+	  | DUP                  {emit(DUP);}
+	  | SWAP                 {emit(SWAP);}
+	  | ADDI n=INTEGER       {emit(ADDI);
+			                    emit(Integer.parseInt($n.text));}
+	  | MULI n=INTEGER       {emit(MULI);
+			                    emit(Integer.parseInt($n.text));}
+	  | POPN n=INTEGER       {emit(POPN);
+			                    emit(Integer.parseInt($n.text));}
+	  | CALL l=LABEL         {emit(CALL);
+                               labelRef.put(i,$l.text); emit(0);}
+	  | RET                  {emit(RET);}
+	  | ENTER                {emit(ENTER);}
+	  | LOADDISPLAY n=INTEGER  {emit(LOADDISPLAY);
+			                    emit(Integer.parseInt($n.text));}
+	  | STOREDISPLAY n=INTEGER {emit(STOREDISPLAY);
+			                    emit(Integer.parseInt($n.text));}
 	  ;
 	  
 /*------------------------------------------------------------------
@@ -83,6 +117,17 @@ LOADHP	 : 'lhp' ;
 STOREHP	 : 'shp' ;	
 PRINT	 : 'print' ;	
 HALT	 : 'halt' ;
+DUP	 : 'dup' ;
+SWAP	 : 'swap' ;
+ADDI	 : 'addi' ;
+MULI	 : 'muli' ;
+POPN	 : 'popn' ;
+CALL	 : 'call' ;
+RET	 : 'ret' ;
+ENTER	 : 'enter' ;
+LOADDISPLAY : 'ldisp' ;
+STOREDISPLAY: 'sdisp' ;
+GCMAP	 : 'gcmap' ;
 COL	 : ':' ;
 
 LABEL	 : ('a'..'z'|'A'..'Z')('a'..'z' | 'A'..'Z' | '0'..'9')* ;
@@ -1,8 +1,24 @@
 package test;
 
+import compiler.Batch;
 import compiler.exc.*;
+import compiler.lib.Code;
+import compiler.lib.PeepholeOptimizer;
+import org.antlr.v4.runtime.*;
 import org.junit.jupiter.api.*;
-
+import svm.ExecuteVM;
+import svm.InlineCache;
+import svm.ObjectFile;
+import svm.SVMLexer;
+import svm.SVMParser;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.stream.Stream;
 
@@ -1963,6 +1979,36 @@ public class TestFOOL {
 		assertEquals(result, List.of("99"));
 	}
 
+	@Test
+	public void lowestCommonAncestorInDeepHierarchy() throws TypeException {
+		// A <- B <- C <- D e B <- E: l'antenato comune di D ed E e' B, a profondita' diverse da entrambi
+		String classes = """
+							class A() { fun m:int() (1); }
+							class B extends A() { fun m:int() (2); }
+							class C extends B() { fun m:int() (3); }
+							class D extends C() { fun m:int() (4); }
+							class E extends B() { fun m:int() (5); }
+							class Z() { fun m:int() (6); }
+				""";
+		String code = "let " + classes + """
+							var x:B = if (false) then { new D() } else { new E() };
+							var y:A = if (true) then { new D() } else { new C() };
+						in
+							print(x.m() + y.m());
+				""";
+		List<String> result = compiler.compileSourceAndRun(code);
+		assertTrue(compiler.err.ok());
+		assertEquals(result, List.of("9"));
+
+		// B non e' sottotipo di C, e D e Z non hanno antenati comuni
+		compiler.quiet().compileSource("let " + classes +
+				"var x:C = if (true) then { new D() } else { new E() }; in print(x.m());");
+		assertEquals(compiler.err.typeErrors, 1);
+		compiler.quiet().compileSource("let " + classes +
+				"var x:A = if (true) then { new D() } else { new Z() }; in print(x.m());");
+		assertEquals(compiler.err.typeErrors, 1);
+	}
+
 	@Test
 	public void lowestCommonAncestorWithIntAndBool1() throws TypeException {
 		String code = """
@@ -2133,4 +2179,970 @@ public class TestFOOL {
 		assertTrue(compiler.err.ok());
 		assertEquals(result, List.of("5"));
 	}
-}
\ No newline at end of file
+
+	@Test
+	public void decodedEngine() throws TypeException {
+		String code = """
+					let
+						class List (f:int, r:List) {
+							fun first:int() f;
+							fun rest:List() r;
+						}
+						fun sum:int (l:List)
+							if (l == null) then {0} else {l.first() + sum(l.rest())};
+						fun fact:int (n:int)
+							if (n <= 1) then {1} else {n * fact(n-1)};
+						var l:List = new List(1, new List(2, new List(3, null)));
+					in
+						print(sum(l) + fact(5) - 100/4);
+				""";
+		assertEquals(compiler.compileSourceAndRun(code), List.of("101"));
+		assertEquals(new TestUtils().decoded().compileSourceAndRun(code), List.of("101"));
+	}
+
+	@Test
+	public void decodedEngineDivisionByZero() {
+		assertThrows(ArithmeticException.class, () -> compiler.decoded().compileSourceAndRun("1/0;"));
+	}
+
+	@Test
+	public void decodedEngineNestedFunctions() throws TypeException {
+		String code = """
+					let
+						var base:int = 10;
+						fun outer:int (x:int)
+						let
+							fun middle:int (y:int)
+							let
+								fun inner:int (z:int) base + x + y + z;
+							in
+								inner(y+1);
+						in
+							middle(x+1);
+					in
+						print(outer(1));
+				""";
+		assertEquals(compiler.decoded().compileSourceAndRun(code), List.of("16"));
+		// senza lifting ne' inlining le chiamate restano: ogni idioma di accesso al frame deve diventare una superistruzione
+		TestUtils calls = new TestUtils().decoded().liftBudget(-1).inlineBudget(0);
+		assertEquals(calls.compileSourceAndRun(code), List.of("16"));
+		assertEquals(calls.superinstructions.get("LOAD_LOCAL"), 3);  // x, y e z
+		assertEquals(calls.superinstructions.get("LOAD_OUTER"), 3);  // base, x e y da inner
+		assertEquals(calls.superinstructions.get("CALL_DIRECT"), 3); // le etichette delle funzioni sono note
+		assertEquals(calls.superinstructions.get("RETURN"), 3);
+	}
+
+	@Test
+	public void tieredExecution() throws TypeException {
+		String code = """
+					let
+						class List (f:int, r:List) {
+							fun first:int() f;
+							fun rest:List() r;
+						}
+						fun append:List (l1:List, l2:List)
+							if (l1 == null) then {l2} else {new List(l1.first(), append(l1.rest(),l2))};
+						fun printList:List (l:List)
+							if (l == null) then {null} else {
+								if (print(l.first()) >= 0) then {printList(l.rest())} else {null}
+							};
+						var l:List = append(new List(1, new List(2, null)), new List(3, null));
+					in
+						printList(l);
+				""";
+		List<String> result = compiler.tiered().inlineBudget(0).compileSourceAndRun(code); // first e rest non vanno inlinati
+		assertEquals(result, List.of("1", "2", "3"));
+		assertEquals(compiler.compiledFunctions.size(), 4); // append, printList, first and rest
+	}
+
+	@Test
+	public void garbageCollection() throws TypeException {
+		// 400 liste di 10 elementi scartate subito: senza garbage collector lo heap invaderebbe lo stack
+		String code = """
+					let
+						class List (f:int, r:List) {
+							fun first:int() f;
+						}
+						fun build:List (k:int)
+							if (k == 0) then {null} else {new List(k, build(k - 1))};
+						fun head:int (l:List) l.first();
+						fun loop:int (n:int, acc:int)
+							if (n == 0) then {acc} else {loop(n - 1, acc + head(build(10)))};
+					in
+						print(loop(400, 0));
+				""";
+		assertEquals(compiler.compileSourceAndRun(code), List.of("4000"));
+		assertTrue(compiler.collections > 0);
+		assertEquals(compiler.decoded().compileSourceAndRun(code), List.of("4000"));
+		assertEquals(compiler.tiered().compileSourceAndRun(code), List.of("4000"));
+	}
+
+	@Test
+	public void garbageCollectionKeepsLiveObjects() throws TypeException {
+		// i nodi della lista accumulata sono intervallati dalla spazzatura: la compattazione deve spostarli
+		// e aggiornare i campi che li riferiscono
+		String code = """
+					let
+						class List (f:int, r:List) {
+							fun first:int() f;
+							fun rest:List() r;
+						}
+						fun build:List (k:int)
+							if (k == 0) then {null} else {new List(k, build(k - 1))};
+						fun head:int (l:List) l.first();
+						fun sum:int (l:List)
+							if (l == null) then {0} else {l.first() + sum(l.rest())};
+						fun churn:List (n:int, acc:List)
+							if (n == 0) then {acc} else {churn(n - 1, new List(head(build(10)) + n, acc))};
+					in
+						print(sum(churn(400, null)));
+				""";
+		assertEquals(compiler.compileSourceAndRun(code), List.of("84200"));
+		assertTrue(compiler.collections > 0);
+		assertEquals(compiler.tiered().compileSourceAndRun(code), List.of("84200"));
+	}
+
+	@Test
+	public void growingStack() throws TypeException {
+		// 5000 chiamate annidate non stanno nella memoria iniziale: lo stack viene spostato in una memoria piu' grande
+		String code = """
+					let
+						fun sum:int (n:int)
+							if (n == 0) then {0} else {n + sum(n - 1)};
+					in
+						print(sum(5000));
+				""";
+		assertEquals(compiler.compileSourceAndRun(code), List.of("12502500"));
+		assertTrue(compiler.memorySize > svm.ExecuteVM.MEMSIZE);
+		assertEquals(compiler.tiered().compileSourceAndRun(code), List.of("12502500"));
+	}
+
+	@Test
+	public void smallInitialMemory() throws TypeException {
+		String code = """
+					let
+						class List (f:int, r:List) {
+							fun first:int() f;
+							fun rest:List() r;
+						}
+						fun build:List (k:int)
+							if (k == 0) then {null} else {new List(k, build(k - 1))};
+						fun sum:int (l:List)
+							if (l == null) then {0} else {l.first() + sum(l.rest())};
+					in
+						print(sum(build(300)));
+				""";
+		assertEquals(compiler.memory(100).compileSourceAndRun(code), List.of("45150"));
+	}
+
+	@Test
+	public void smallMemoryReserve() throws TypeException {
+		// la soglia di raccolta e' proporzionale alla memoria: un programma che ci sta non raccoglie mai
+		String code = """
+					let
+						fun fact:int (n:int)
+							if (n <= 1) then {1} else {n * fact(n - 1)};
+					in
+						print(fact(5) + fact(4));
+				""";
+		assertEquals(compiler.memory(100).compileSourceAndRun(code), List.of("144"));
+		assertEquals(compiler.collections, 0);
+		assertEquals(compiler.memorySize, 100);
+		assertEquals(compiler.decoded().compileSourceAndRun(code), List.of("144"));
+		assertEquals(compiler.collections, 0);
+		assertEquals(compiler.memorySize, 100);
+		assertEquals(compiler.tiered().compileSourceAndRun(code), List.of("144"));
+		assertEquals(compiler.collections, 0);
+		assertEquals(compiler.memorySize, 100);
+	}
+
+	@Test
+	public void largeFramesInSmallMemory() throws TypeException {
+		// 3000 dichiarazioni globali prima del primo controllo: la memoria deve crescere prima di iniziare
+		StringBuilder many = new StringBuilder("let\n\tfun f0:int() 1;\n");
+		for (int i = 1; i < 3000; i++) {
+			many.append("\tfun f").append(i).append(":int() f").append(i-1).append("() + 1;\n");
+		}
+		many.append("in\n\tprint(f2999());");
+		// argomenti e temporanei di loop occupano piu' celle di quelle libere in una memoria piccola
+		String args = """
+					let
+						class Shape (s:int) { fun area:int() s; }
+						class Square extends Shape (s:int) { fun area:int() s * s; }
+						class Two extends Shape (s:int) { fun area:int() s * 2; }
+						class Three extends Shape (s:int) { fun area:int() s * 3; }
+						class Four extends Shape (s:int) { fun area:int() s * 4; }
+						fun poly:int (s:Shape) s.area();
+						fun mono:int (s:Shape) s.area();
+						fun mega:int (s:Shape) s.area();
+						fun loop:int (n:int, a:Shape, b:Shape, c:Shape, d:Shape, e:Shape)
+							if (n <= 0) then {0} else {
+								mono(a) + poly(a) + poly(b) + mega(a) + mega(b) + mega(c) + mega(d) + mega(e) + loop(n - 1, a, b, c, d, e)
+							};
+					in
+						print(loop(10, new Square(2), new Two(3), new Three(1), new Four(1), new Shape(5)));
+				""";
+		for (int memory : new int[] {20, 50, 1000}) {
+			assertEquals(new TestUtils().memory(memory).compileSourceAndRun(many.toString()), List.of("3000"));
+			assertEquals(new TestUtils().memory(memory).decoded().compileSourceAndRun(many.toString()), List.of("3000"));
+			assertEquals(new TestUtils().memory(memory).inlineBudget(0).compileSourceAndRun(args), List.of("360"));
+			assertEquals(new TestUtils().memory(memory).inlineBudget(0).decoded().compileSourceAndRun(args), List.of("360"));
+			assertEquals(new TestUtils().memory(memory).inlineBudget(0).tiered().compileSourceAndRun(args), List.of("360"));
+		}
+	}
+
+	@Test
+	public void objectFile() throws TypeException {
+		String code = """
+					let
+						class List (f:int, r:List) {
+							fun first:int() f;
+							fun rest:List() r;
+						}
+						fun build:List (k:int)
+							if (k == 0) then {null} else {new List(k, build(k - 1))};
+						fun printList:List (l:List)
+							if (l == null) then {null} else {
+								if (print(l.first()) >= 0) then {printList(l.rest())} else {null}
+							};
+					in
+						printList(build(3));
+				""";
+		assertEquals(compiler.objectFile().compileSourceAndRun(code), List.of("3", "2", "1"));
+		assertEquals(compiler.tiered().compileSourceAndRun(code), List.of("3", "2", "1"));
+	}
+
+	@Test
+	public void objectFileCodeLength() throws IOException {
+		// il codice assemblato finisce con un operando 0: non va troncato
+		SVMParser parser = new SVMParser(new CommonTokenStream(new SVMLexer(CharStreams.fromString("push 7\nprint\nhalt\npush 0"))));
+		parser.assembly();
+		ObjectFile program = parser.objectFile();
+		assertEquals(program.code.length, 6);
+		assertArrayEquals(program.sourceMap, new int[] {0, 0, 1, 2, 3, 3});
+		Path file = Files.createTempFile("fool", ".svm");
+		program.write(file);
+		ObjectFile loaded = ObjectFile.load(file);
+		Files.delete(file);
+		assertArrayEquals(loaded.code, program.code);
+		assertArrayEquals(loaded.sourceMap, program.sourceMap);
+	}
+
+	@Test
+	public void directAssembly() throws TypeException {
+		String code = """
+					let
+						class Counter (n:int) {
+							fun next:Counter() new Counter(n + 1);
+							fun get:int() n;
+						}
+						fun count:int (c:Counter, k:int)
+							if (k <= 0) then {c.get()} else {count(c.next(), k - 1)};
+					in
+						print(count(new Counter(0), 5));
+				""";
+		Code program = compiler.compileProgram(code);
+		ObjectFile assembled = program.assemble();
+
+		// the textual dump must assemble to the very same program
+		SVMParser parser = new SVMParser(new CommonTokenStream(new SVMLexer(CharStreams.fromString(program.toString()))));
+		parser.assembly();
+		ObjectFile parsed = parser.objectFile();
+		assertArrayEquals(parsed.code, assembled.code);
+		assertArrayEquals(parsed.sourceMap, assembled.sourceMap);
+		assertEquals(parser.labelDef, assembled.labels);
+		assertEquals(parser.stackMaps.keySet(), assembled.stackMaps.keySet());
+		assertEquals(compiler.compileSourceAndRun(code), List.of("5"));
+	}
+
+	@Test
+	public void manyFunctions() throws TypeException {
+		// f0 returns 1 and every fi calls f(i-1): the code of thousands of functions is joined in linear time
+		StringBuilder code = new StringBuilder("let\n\tfun f0:int() 1;\n");
+		for (int i = 1; i < 3000; i++) {
+			code.append("\tfun f").append(i).append(":int() f").append(i-1).append("() + 1;\n");
+		}
+		code.append("in\n\tprint(f2999());");
+		assertEquals(compiler.compileSourceAndRun(code.toString()), List.of("3000"));
+	}
+
+	@Test
+	public void streamedAssembly() throws TypeException {
+		String code = """
+					let
+						class Account (balance:int) {
+							fun deposit:Account(x:int) new Account(balance + x);
+							fun get:int() balance;
+						}
+						fun total:int (a:Account, n:int)
+							let
+								fun step:Account (b:Account) b.deposit(n);
+							in
+								if (n == 0) then {a.get()} else {total(step(a), n - 1)};
+						var start:Account = new Account(10);
+					in
+						print(total(start, 4));
+				""";
+		assertEquals(compiler.streamed().compileSourceAndRun(code), List.of("20"));
+		assertEquals(compiler.tiered().compileSourceAndRun(code), List.of("20"));
+	}
+
+	@Test
+	public void parallelCompilation() throws IOException {
+		String good = """
+					let
+						class Box (v:int) {
+							fun get:int() v;
+						}
+						fun twice:int (b:Box) if (b.get() >= 0) then {b.get() * 2} else {0};
+					in
+						print(twice(new Box(21)));
+				""";
+		String bad = "let var x:bool = 5; in x;";
+
+		Path dir = Files.createTempDirectory("fool");
+		List<Path> sources = new ArrayList<>();
+		for (int i = 0; i < 16; i++) {
+			Path source = dir.resolve("p" + i + ".fool");
+			Files.writeString(source, i == 7 ? bad : good);
+			sources.add(source);
+		}
+		List<ObjectFile> programs = Batch.compileAll(sources);
+		for (Path source : sources) Files.delete(source);
+		Files.delete(dir);
+
+		// every compilation has its own context: same source, same code (labels included)
+		ObjectFile expected = Batch.compile(CharStreams.fromString(good));
+		for (int i = 0; i < sources.size(); i++) {
+			if (i == 7) {
+				assertNull(programs.get(i));
+			} else {
+				assertArrayEquals(expected.code, programs.get(i).code);
+				assertEquals(expected.labels, programs.get(i).labels);
+			}
+		}
+	}
+
+	@Test
+	public void printedReferencesAreRoots() throws TypeException {
+		// print restituisce il riferimento stampato: mentre churn alloca resta sullo stack come argomento di new
+		String code = """
+					let
+						class B (v:int) {
+							fun get:int() v;
+						}
+						class P (b:B, n:int) {
+							fun first:int() b.get();
+						}
+						fun churn:int (n:int)
+						let
+							var g:B = new B(n);
+						in
+							if (n == 0) then {0} else {churn(n - 1)};
+						var p:P = new P(print(new B(7)), churn(40));
+					in
+						print(p.first());
+				""";
+		for (int memory = 60; memory <= 80; memory++) {
+			List<String> result = new TestUtils().memory(memory).compileSourceAndRun(code);
+			assertEquals(result.get(result.size()-1), "7");
+		}
+	}
+
+	@Test
+	public void tailCalls() throws TypeException {
+		String code = """
+					let
+						fun count:int (n:int, acc:int)
+							if (n == 0) then {acc} else {count(n - 1, acc + 1)};
+					in
+						print(count(200000, 0));
+				""";
+		assertEquals(compiler.compileSourceAndRun(code), List.of("200000"));
+		assertEquals(compiler.memorySize, svm.ExecuteVM.MEMSIZE); // constant stack space: no growth
+		assertEquals(compiler.decoded().compileSourceAndRun(code), List.of("200000"));
+		assertEquals(compiler.tiered().compileSourceAndRun(code), List.of("200000"));
+	}
+
+	@Test
+	public void tailCallsKeepReferences() throws TypeException {
+		String code = """
+					let
+						class List (f:int, r:List) {
+							fun first:int() f;
+							fun rest:List() r;
+						}
+						fun build:List (k:int, acc:List)
+							if (k == 0) then {acc} else {build(k - 1, new List(k, acc))};
+						fun sum:int (l:List, acc:int)
+							if (l == null) then {acc} else {sum(l.rest(), acc + l.first())};
+						fun last:int (l:List, other:List)
+							if (l.rest() == null) then {l.first()} else {last(l.rest(), build(10, null))};
+					in
+						print(sum(build(5000, null), 0) + last(build(300, null), null));
+				""";
+		assertEquals(compiler.compileSourceAndRun(code), List.of("12502800"));
+		assertTrue(compiler.collections > 0);
+		assertEquals(compiler.tiered().compileSourceAndRun(code), List.of("12502800"));
+	}
+
+	@Test
+	public void methodTailCalls() throws TypeException {
+		// add non e' ridefinito: la chiamata in coda da run e' diretta e riusa il frame del metodo (AL e' l'oggetto in entrambi)
+		String code = """
+					let
+						class A (v:int) {
+							fun add:int (x:int) v + x;
+						}
+						class B (a:A) {
+							fun run:int (x:int) a.add(x * 2);
+						}
+						var b:B = new B(new A(1));
+					in
+						print(b.run(20));
+				""";
+		String asm = new TestUtils().inlineBudget(0).compileSource(code);
+		assertTrue(asm.contains("tail call a.add"));
+		assertEquals(compiler.inlineBudget(0).compileSourceAndRun(code), List.of("41"));
+		assertEquals(compiler.decoded().compileSourceAndRun(code), List.of("41"));
+		assertEquals(compiler.tiered().compileSourceAndRun(code), List.of("41"));
+		assertEquals(compiler.display().compileSourceAndRun(code), List.of("41"));
+
+		// la chiamata in coda su null fallisce come una chiamata normale
+		String onNull = code.replace("new B(new A(1))", "new B(null)");
+		assertThrows(ArrayIndexOutOfBoundsException.class, () -> new TestUtils().inlineBudget(0).compileSourceAndRun(onNull));
+		assertThrows(ArrayIndexOutOfBoundsException.class, () -> new TestUtils().inlineBudget(0).decoded().compileSourceAndRun(onNull));
+		assertThrows(ArrayIndexOutOfBoundsException.class, () -> new TestUtils().inlineBudget(0).tiered().compileSourceAndRun(onNull));
+	}
+
+	@Test
+	public void inlining() throws TypeException {
+		String code = """
+					let
+						class List (f:int, r:List) {
+							fun first:int() f;
+							fun rest:List() r;
+						}
+						var k:int = 10;
+						fun square:int (x:int) x * x;
+						fun scaled:int (x:int) square(x) + k;
+						fun sum:int (l:List)
+							if (l == null) then {0} else {scaled(l.first()) + sum(l.rest())};
+					in
+						print(sum(new List(1, new List(2, new List(3, null)))));
+				""";
+		assertEquals(compiler.compileSourceAndRun(code), List.of("44"));
+		assertTrue(compiler.inlinedCalls >= 4); // square in scaled, scaled, first e rest in sum
+		String inlined = compiler.compileSource(code);
+		String called = compiler.inlineBudget(0).compileSource(code);
+		assertEquals(compiler.inlinedCalls, 0);
+		assertTrue(inlined.split("\\b(js|call)\\b").length < called.split("\\b(js|call)\\b").length);
+	}
+
+	@Test
+	public void inliningKeepsSemantics() throws TypeException {
+		// la destinazione di a.value() non e' nota (B ridefinisce value), l'argomento di twice stampa e
+		// non puo' essere duplicato, fact e' ricorsiva
+		String code = """
+					let
+						class A (v:int) {
+							fun value:int() v;
+						}
+						class B extends A (v:int) {
+							fun value:int() v + 1;
+						}
+						var a:A = new B(1);
+						fun twice:int (x:int) x + x;
+						fun fact:int (n:int) if (n <= 1) then {1} else {n * fact(n - 1)};
+					in
+						print(twice(print(a.value())) + fact(4));
+				""";
+		assertEquals(compiler.compileSourceAndRun(code), List.of("2", "28"));
+		assertEquals(compiler.inlinedCalls, 0);
+	}
+
+	@Test
+	public void inliningKeepsNullChecks() throws TypeException {
+		// un metodo si inlina solo se l'oggetto non puo' essere null: senza controllo la chiamata su null fallisce
+		String unguarded = """
+					let
+						class A (v:int) {
+							fun id:int() 7;
+						}
+						var a:A = null;
+					in
+						print(a.id());
+				""";
+		assertThrows(ArrayIndexOutOfBoundsException.class, () -> new TestUtils().compileSourceAndRun(unguarded));
+		String guarded = """
+					let
+						class A (v:int) {
+							fun value:int() v;
+						}
+						fun get:int (a:A) if (a == null) then {0} else {a.value()};
+						fun has:int (a:A) if (!(null == a)) then {a.value()} else {0};
+					in
+						print(get(new A(3)) + get(null) + has(new A(4)) + has(null));
+				""";
+		assertEquals(compiler.compileSourceAndRun(guarded), List.of("7"));
+		assertEquals(compiler.inlinedCalls, 4); // value in get e in has, get(null) e has(null)
+	}
+
+	@Test
+	public void constantFolding() throws TypeException {
+		String code = compile("print(5 + 3 * 2 - 2 * -3);");
+		assertTrue(code.contains("push 17"));
+		assertFalse(code.contains("add") || code.contains("mult") || code.contains("sub"));
+		code = compile("print(if 2 + 2 == 3 then {1} else {5});");
+		assertTrue(code.contains("push 5"));
+		assertFalse(code.contains("beq") || code.contains("push 1\n"));
+		assertEquals(compileAndRun("print(if !!(1 <= 2) then {7 * 1 + 0} else {8 / 1});"), List.of("7"));
+		assertEquals(compileAndRun("print(14 / -4);"), List.of("-3"));
+	}
+
+	@Test
+	public void constantFoldingKeepsEffects() throws TypeException {
+		// gli operandi con effetti restano (salvo quelli che il cortocircuito non valuterebbe comunque)
+		assertEquals(compileAndRun("print(print(3) * 0);"), List.of("3", "0"));
+		assertEquals(compileAndRun("print(false && print(true));"), List.of("0"));
+		assertEquals(compileAndRun("print(print(true) || true);"), List.of("1", "1"));
+		assertThrows(ArithmeticException.class, () -> compileAndRun("print(7 / (2 - 2));"));
+	}
+
+	@Test
+	public void conditionBranches() throws TypeException {
+		String code = """
+					let
+						fun f:int (a:int, b:int)
+							if ((a <= b && b <= a) || (!(a == b)) && (!(a >= 5 || b >= 5))) then {1} else {0};
+						fun g:bool (a:int, b:int) a >= b || (a == 0 && !(b == 0));
+					in
+						print(f(1, 1) + 10 * f(1, 2) + 100 * f(5, 2) + 1000 * f(3, 3) + 10000 * g(0, 1) + 100000 * g(1, 2));
+				""";
+		assertEquals(compiler.compileSourceAndRun(code), List.of("11011"));
+
+		// il confronto salta direttamente al ramo: niente 0/1 materializzati e confrontati di nuovo
+		String asm = compile("let fun max:int (a:int, b:int) if (a <= b) then {b} else {a}; in print(max(3, 4));");
+		assertEquals(asm.split("bleq").length - 1, 1);
+		assertFalse(asm.contains("beq"));
+	}
+
+	@Test
+	public void peepholeRules() {
+		PeepholeOptimizer peephole = new PeepholeOptimizer();
+		Code code = Code.join(Code.push(2), Code.push(3), Code.op(SVMParser.ADD), Code.push(0), Code.op(SVMParser.ADD),
+				Code.branch(SVMParser.BRANCH, "l"), Code.op(SVMParser.POP), Code.label("l"),
+				Code.op(SVMParser.PRINT), Code.op(SVMParser.HALT));
+		assertEquals(peephole.optimize(code).toString(), "push 5\nl:\nprint\nhalt");
+		assertEquals(peephole.sizeBefore(), 13);
+		assertEquals(peephole.sizeAfter(), 4);
+		assertEquals(peephole.applications().get("constant arithmetic"), 1);
+		assertEquals(peephole.applications().get("unreachable code"), 1);
+		assertEquals(peephole.applications().get("branch to next"), 1);
+
+		// una regola che altera lo stack viene scoperta dalla verifica
+		PeepholeOptimizer broken = new PeepholeOptimizer(List.of(new PeepholeOptimizer.Rule("drop pop", 1,
+				w -> w.get(0).opcode == SVMParser.POP ? List.of() : null)), true);
+		assertThrows(IllegalStateException.class, () -> broken.optimize(Code.join(Code.push(1), Code.op(SVMParser.POP))));
+	}
+
+	@Test
+	public void peepholeShrinksPrograms() throws TypeException {
+		String code = """
+					let
+						class Counter (n:int) {
+							fun get:int() n;
+							fun next:Counter() new Counter(n + 1);
+						}
+						fun count:int (c:Counter, k:int)
+							if (k <= 0) then {c.get()} else {count(c.next(), k - 1)};
+					in
+						print(count(new Counter(0), 5));
+				""";
+		int optimized = compiler.compileProgram(code).assemble().code.length;
+		int plain = compiler.noPeephole().compileProgram(code).assemble().code.length;
+		assertTrue(optimized < plain);
+		assertEquals(compiler.compileSourceAndRun(code), List.of("5"));
+		// senza inlining get e' chiamato davvero: il primo metodo perde addi 0, che il motore pre-decodificato deve fondere
+		assertEquals(new TestUtils().inlineBudget(0).compileSourceAndRun(code), List.of("5"));
+		assertEquals(new TestUtils().inlineBudget(0).decoded().compileSourceAndRun(code), List.of("5"));
+	}
+
+	@Test
+	public void extendedInstructions() throws TypeException {
+		String code = """
+					let
+						class Point (x:int, y:int) {
+							fun norm:int() x * x + y * y;
+						}
+						fun fact:int (n:int) if (n <= 1) then {1} else {n * fact(n - 1)};
+						fun sum:int (a:int, b:int, c:int) let var d:int = a + b; in d + c;
+						var p:Point = new Point(3, 4);
+					in
+						print(fact(5) + sum(1, 2, 3) + p.norm());
+				""";
+		String asm = new TestUtils().inlineBudget(0).compileSource(code);
+		// chiamate dirette, ingresso e uscita delle funzioni in una istruzione, niente piu' stm ltm ltm
+		assertTrue(asm.contains("call function0") && asm.contains("enter") && asm.contains("ret"));
+		assertTrue(asm.contains("popn 4") && asm.contains("addi -1"));
+		assertTrue(asm.contains("dup\nmult"));
+		assertFalse(asm.contains("cfp") || asm.contains("ltm\nltm") || asm.contains("lra\njs"));
+
+		assertEquals(compiler.compileSourceAndRun(code), List.of("151"));
+		assertEquals(new TestUtils().inlineBudget(0).compileSourceAndRun(code), List.of("151"));
+		assertEquals(new TestUtils().inlineBudget(0).decoded().compileSourceAndRun(code), List.of("151"));
+		assertEquals(new TestUtils().inlineBudget(0).tiered().compileSourceAndRun(code), List.of("151"));
+		assertEquals(new TestUtils().inlineBudget(0).noPeephole().decoded().compileSourceAndRun(code), List.of("151"));
+
+		// swap e muli non sono generati dal compilatore: assembly scritto a mano, su entrambi i motori
+		SVMParser parser = new SVMParser(new CommonTokenStream(new SVMLexer(CharStreams.fromString(
+				"push 3 push 4 swap sub muli 5 push 9 dup popn 2 print halt"))));
+		parser.assembly();
+		for (boolean decoded : List.of(false, true)) {
+			ExecuteVM vm = new ExecuteVM(parser.code);
+			if (decoded) vm.decoded();
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			PrintStream old = System.out;
+			System.setOut(new PrintStream(out));
+			vm.cpu();
+			System.setOut(old);
+			assertEquals(out.toString().trim(), "5");
+		}
+	}
+
+	@Test
+	public void display() throws TypeException {
+		String code = """
+					let
+						class Acc (total:int) {
+							fun addAll:int (n:int)
+								let
+									fun step:int (k:int)
+										let fun inner:int (j:int) if (j <= 0) then {total} else {total + j + inner(j - 1)};
+										in inner(k);
+								in step(n) + total;
+						}
+						var base:int = 100;
+						fun outer:int (a:int)
+							let
+								fun middle:int (b:int)
+									let
+										fun inner:int (c:int)
+											let
+												fun deepest:int (d:int) if (d <= 0) then {a + b + c + base} else {a + deepest(d - 1)};
+											in deepest(c) + b;
+									in inner(b) + inner(b + 1);
+							in middle(a) + middle(1);
+						var acc:Acc = new Acc(3);
+					in
+						print(outer(2) + acc.addAll(4));
+				""";
+		List<String> expected = new TestUtils().inlineBudget(0).compileSourceAndRun(code);
+		String asm = new TestUtils().liftBudget(-1).inlineBudget(0).display().compileSource(code);
+		// a (due livelli sopra deepest), total (un campo, dall'AL del metodo) e base (globale) con un solo ldisp
+		assertTrue(asm.contains("ldisp 1\naddi 1\nlw") && asm.contains("ldisp 2\nlw\naddi -1\nlw") && asm.contains("ldisp 0\naddi"));
+		assertEquals(new TestUtils().liftBudget(-1).inlineBudget(0).display().compileSourceAndRun(code), expected);
+		assertEquals(new TestUtils().display().compileSourceAndRun(code), expected);
+		assertEquals(new TestUtils().liftBudget(-1).inlineBudget(0).display().decoded().compileSourceAndRun(code), expected);
+		assertEquals(new TestUtils().liftBudget(-1).inlineBudget(0).display().tiered().compileSourceAndRun(code), expected);
+		// le celle del display seguono lo stack quando la memoria cresce
+		TestUtils small = new TestUtils().liftBudget(-1).inlineBudget(0).display().memory(50);
+		assertEquals(small.compileSourceAndRun(code), expected);
+		assertTrue(small.memorySize > 50);
+	}
+
+	@Test
+	public void lambdaLifting() throws TypeException {
+		String code = """
+					let
+						fun sumTo:int (n:int, step:int)
+							let
+								var limit:int = n * 2;
+								fun add:int (x:int) x + step;
+								fun loop:int (i:int, acc:int) if (i >= limit) then {acc} else {loop(add(i), acc + i)};
+							in loop(0, 0);
+						fun wide:int (a:int, b:int, c:int, d:int)
+							let
+								fun all:int (x:int) x + a + b + c + d;
+								fun twice:int (x:int) all(x) * 2;
+							in twice(1);
+						fun outer:int (a:int)
+							let
+								fun middle:int (b:int)
+									let fun inner:int (c:int) a + b + c;
+									in inner(b) + inner(a);
+							in middle(a + 1);
+					in
+						print(sumTo(10, 3) + wide(1, 2, 3, 4) + outer(5));
+				""";
+		// add, loop, middle e inner; all ha troppi nomi non locali e twice chiama all, che resta locale
+		TestUtils lifted = new TestUtils().inlineBudget(0);
+		assertEquals(lifted.compileSourceAndRun(code), List.of("118"));
+		assertEquals(lifted.liftedFunctions, 4);
+		// con un solo parametro aggiuntivo: add e middle (inner, che resta nel suo corpo, usa solo a da fuori)
+		TestUtils oneParameter = new TestUtils().liftBudget(1).inlineBudget(0);
+		assertEquals(oneParameter.compileSourceAndRun(code), List.of("118"));
+		assertEquals(oneParameter.liftedFunctions, 2);
+		TestUtils none = new TestUtils().liftBudget(-1);
+		assertEquals(none.compileSourceAndRun(code), List.of("118"));
+		assertEquals(none.liftedFunctions, 0);
+		assertEquals(new TestUtils().compileSourceAndRun(code), List.of("118"));
+		assertEquals(new TestUtils().decoded().compileSourceAndRun(code), List.of("118"));
+		assertEquals(new TestUtils().tiered().compileSourceAndRun(code), List.of("118"));
+		assertEquals(new TestUtils().display().compileSourceAndRun(code), List.of("118"));
+	}
+
+	@Test
+	public void devirtualization() throws TypeException {
+		// value e' ridefinito da B: e' virtuale solo la chiamata su un A (C eredita value senza sottoclassi);
+		// id non e' mai ridefinito
+		String code = """
+					let
+						class A (v:int) {
+							fun value:int() v;
+							fun id:int() 7;
+						}
+						class B extends A (v:int) {
+							fun value:int() v + 1;
+						}
+						class C extends A (v:int) {}
+						var a:A = new B(1);
+						var b:B = new B(10);
+						var c:C = new C(100);
+					in
+						print(a.value() + b.value() + c.value() + a.id() + c.id());
+				""";
+		TestUtils direct = new TestUtils().inlineBudget(0);
+		String asm = direct.compileSource(code);
+		assertEquals(direct.devirtualizedCalls, 4);
+		assertEquals(asm.split("\\bjs\\b").length - 1, 1); // a.value()
+		assertEquals(direct.compileSourceAndRun(code), List.of("127"));
+		assertEquals(new TestUtils().inlineBudget(0).decoded().compileSourceAndRun(code), List.of("127"));
+		assertEquals(new TestUtils().inlineBudget(0).tiered().compileSourceAndRun(code), List.of("127"));
+		assertEquals(new TestUtils().inlineBudget(0).display().compileSourceAndRun(code), List.of("127"));
+	}
+
+	@Test
+	public void devirtualizedCallOnNull() throws TypeException {
+		// la chiamata diretta legge comunque il dispatch pointer: su null fallisce come quella virtuale
+		String code = """
+					let
+						class A (v:int) {
+							fun id:int() 7;
+						}
+						var a:A = null;
+						fun f:int (x:A) x.id();
+					in
+						print(f(a));
+				""";
+		TestUtils direct = new TestUtils().inlineBudget(0);
+		direct.compileSource(code);
+		assertEquals(direct.devirtualizedCalls, 1);
+		assertThrows(ArrayIndexOutOfBoundsException.class, () -> new TestUtils().inlineBudget(0).compileSourceAndRun(code));
+		assertThrows(ArrayIndexOutOfBoundsException.class, () -> new TestUtils().inlineBudget(0).decoded().compileSourceAndRun(code));
+		assertThrows(ArrayIndexOutOfBoundsException.class, () -> new TestUtils().inlineBudget(0).tiered().compileSourceAndRun(code));
+	}
+
+	@Test
+	public void inlineCaches() throws TypeException {
+		String code = """
+					let
+						class Shape (s:int) { fun area:int() s; }
+						class Square extends Shape (s:int) { fun area:int() s * s; }
+						class Two extends Shape (s:int) { fun area:int() s * 2; }
+						class Three extends Shape (s:int) { fun area:int() s * 3; }
+						class Four extends Shape (s:int) { fun area:int() s * 4; }
+						fun poly:int (s:Shape) s.area();
+						fun mono:int (s:Shape) s.area();
+						fun mega:int (s:Shape) s.area();
+						fun loop:int (n:int, a:Shape, b:Shape, c:Shape, d:Shape, e:Shape)
+							if (n <= 0) then {0} else {
+								mono(a) + poly(a) + poly(b) + mega(a) + mega(b) + mega(c) + mega(d) + mega(e) + loop(n - 1, a, b, c, d, e)
+							};
+					in
+						print(loop(10, new Square(2), new Two(3), new Three(1), new Four(1), new Shape(5)));
+				""";
+		TestUtils vm = new TestUtils().inlineBudget(0).decoded();
+		assertEquals(vm.compileSourceAndRun(code), List.of("360"));
+		assertEquals(vm.inlineCaches.size(), 3); // poly, mono e mega, nell'ordine del codice
+		InlineCache poly = vm.inlineCaches.get(0), mono = vm.inlineCaches.get(1), mega = vm.inlineCaches.get(2);
+		assertEquals(poly.receivers(), 2);
+		assertEquals(poly.hits(), 18);
+		assertEquals(poly.misses(), 2);
+		assertTrue(mono.isMonomorphic());
+		assertEquals(mono.hits(), 9);
+		// al quinto dispatch pointer la cache di mega smette di essere consultata
+		assertTrue(mega.isMegamorphic());
+		assertEquals(mega.hits(), 0);
+		assertEquals(mega.misses(), 50);
+		assertEquals(new TestUtils().inlineBudget(0).compileSourceAndRun(code), List.of("360"));
+		assertEquals(new TestUtils().inlineBudget(0).tiered().compileSourceAndRun(code), List.of("360"));
+	}
+
+	@Test
+	public void scopes() throws TypeException {
+		// parametri e locali nascondono campi, globali e classi; all'uscita dallo scope torna visibile il nome esterno
+		String code = """
+					let
+						class A (x:int) { fun get:int() x; }
+						class B extends A (x:int, y:int) {
+							fun sum:int (x:int) let var y:int = 100; in x + y;
+						}
+						var x:int = 1;
+						fun f:int (A:int)
+							let
+								fun g:int (x:int) x + A;
+								var a:A = new A(A);
+							in g(10) + a.get();
+						var b:B = new B(7, 8);
+					in
+						print(f(3) + x + b.sum(1) + b.get());
+				""";
+		assertEquals(compiler.compileSourceAndRun(code), List.of("125"));
+		assertTrue(compiler.err.ok());
+
+		// la stessa dichiarazione due volte nello stesso scope e' un errore, in scope diversi no
+		compiler.quiet().compileSource("let var x:int = 1; fun f:int (x:int) let var x:int = 2; in x; in f(x);");
+		assertEquals(compiler.err.symTableErrors, 1);
+		compiler.quiet().compileSource("let var x:int = 1; fun f:int (y:int) let var x:int = 2; in x + y; in f(x);");
+		assertTrue(compiler.err.ok());
+	}
+
+	@Test
+	public void inheritedVirtualTables() throws TypeException {
+		// la virtual table di una sottoclasse e' quella della superclasse finche' non dichiara qualcosa:
+		// le dichiarazioni di B non sono visibili in C, D vede quelle di A e B a qualunque profondita'
+		String code = """
+					let
+						class A (x:int) { fun get:int() x; }
+						class B extends A (x:int, y:int) { fun sum:int() x + y; }
+						class C extends A (x:int) {}
+						class D extends B (x:int, y:int) {}
+						class E extends D (x:int, y:int) { fun all:int() x * y; }
+						var c:C = new C(1);
+						var e:E = new E(2, 3);
+					in
+						print(c.get() + e.get() + e.sum() + e.all());
+				""";
+		assertEquals(compiler.compileSourceAndRun(code), List.of("14"));
+		assertTrue(compiler.err.ok());
+		compiler.quiet().compileSource("""
+					let
+						class A (x:int) { fun get:int() x; }
+						class B extends A (x:int, y:int) { fun sum:int() x + y; }
+						class C extends A (x:int) { fun other:int() x + y; }
+						var c:C = new C(1);
+					in
+						print(c.sum());
+				""");
+		assertEquals(compiler.err.symTableErrors, 2);
+	}
+
+	@Test
+	public void methodLocalDeclarations() throws TypeException {
+		// le dichiarazioni locali di un metodo partono sotto il return address, come quelle delle funzioni,
+		// e non dopo i parametri
+		String code = """
+					let
+						class A (f:int) {
+							fun m:int (a:int, b:int)
+								let
+									var c:int = a * 10;
+									var d:int = b + c;
+								in a + b + c + d + f;
+						}
+						var o:A = new A(1000);
+					in
+						print(o.m(1, 2));
+				""";
+		assertEquals(compiler.compileSourceAndRun(code), List.of("1025"));
+		assertEquals(compiler.decoded().compileSourceAndRun(code), List.of("1025"));
+		assertEquals(new TestUtils().fused().compileSourceAndRun(code), List.of("1025"));
+	}
+
+	@Test
+	public void symbols() throws TypeException {
+		// ogni identificatore ha un solo simbolo, qualunque cosa nomini e ovunque compaia: A, B, x, a, b, get, f
+		String code = """
+					let
+						class A (x:int) { fun get:int() x; }
+						class B extends A (x:int) { fun get:int() x + 1; }
+						fun f:int (a:A) a.get();
+						var b:B = new B(41);
+					in
+						print(f(b));
+				""";
+		assertEquals(compiler.compileSourceAndRun(code), List.of("42"));
+		assertTrue(compiler.err.ok());
+		assertEquals(compiler.symbols, 7);
+
+		// lo stesso simbolo puo' nominare una classe e un parametro, un campo e una funzione: decide lo scope
+		code = """
+					let
+						class x (v:int) { fun get:int() v; }
+						fun v:int (x:int) x;
+						var y:x = new x(5);
+					in
+						print(v(y.get()));
+				""";
+		assertEquals(compiler.compileSourceAndRun(code), List.of("5"));
+		assertEquals(compiler.symbols, 4);
+	}
+
+	@Test
+	public void sharedTypes() throws TypeException {
+		// f, g e il metodo m hanno lo stesso tipo int -> int, h ha tipo (int, A) -> bool: due soli tipi funzionali
+		String code = """
+					let
+						class A (x:int) { fun m:int (y:int) x + y; }
+						fun f:int (a:int) a + 1;
+						fun g:int (b:int) b * 2;
+						fun h:bool (a:int, o:A) o.m(a) >= 5;
+					in
+						print(if h(g(f(1)), new A(3)) then { 1 } else { 0 });
+				""";
+		assertEquals(compiler.compileSourceAndRun(code), List.of("1"));
+		assertTrue(compiler.err.ok());
+		assertEquals(compiler.arrowTypes, 2);
+
+		// int -> int e int -> bool sono tipi diversi, anche se hanno gli stessi parametri
+		compiler.quiet().compileSource("let class A () { fun m:int (y:int) y; } class B extends A () { fun m:bool (y:int) true; } in 0;");
+		assertEquals(compiler.err.typeErrors, 0);
+		compiler.quiet().compileSource("let class A () { fun m:bool (y:int) true; } class B extends A () { fun m:int (y:int) y; } in 0;");
+		assertEquals(compiler.err.typeErrors, 1);
+	}
+
+	@Test
+	public void fusedAnalysis() throws TypeException {
+		String code = """
+					let
+						class Account (balance:int) { fun get:int () balance; }
+						class Savings extends Account (balance:int, rate:int) { fun get:int () balance + balance * rate / 100; }
+						fun total:int (a:Account, b:Account) a.get() + b.get();
+						var s:Account = new Savings(100, 10);
+					in
+						print(total(s, new Account(5)));
+				""";
+		assertEquals(new TestUtils().fused().compileSourceAndRun(code), List.of("115"));
+		assertEquals(compiler.compileSourceAndRun(code), List.of("115"));
+
+		// con una sola visita gli errori sono gli stessi delle due visite separate
+		List<String> wrong = List.of(
+				"let var x:bool = 5; fun f:int (a:int) y + a; in f(true);",
+				"let class A () { fun m:int () 1; } class B extends A () { fun m:int () z; } var b:B = new B(); in b.m();",
+				"let fun f:bool (a:int) a; fun g:int () f(1, 2); in g();",
+				"let class A (x:int) {} class B extends A (x:bool) {} var a:A = new B(true); in a.y();"
+		);
+		for (String source : wrong) {
+			compiler.quiet().compileSource(source);
+			int symTableErrors = compiler.err.symTableErrors;
+			int typeErrors = compiler.err.typeErrors;
+			TestUtils fused = new TestUtils().quiet().fused();
+			fused.compileSource(source);
+			assertEquals(fused.err.symTableErrors, symTableErrors);
+			assertEquals(fused.err.typeErrors, typeErrors);
+			assertTrue(symTableErrors + typeErrors > 0);
+		}
+		assertThrows(TypeException.class, () -> new TestUtils().quiet().fused().compileSource("let fun f:int () 1; in f() && true;"));
+	}
+}
@@ -6,10 +6,17 @@ import compiler.lib.*;
 import org.antlr.v4.runtime.*;
 import org.antlr.v4.runtime.tree.ParseTree;
 import svm.ExecuteVM;
+import svm.InlineCache;
+import svm.ObjectFile;
 import visualsvm.*;
 
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.PrintStream;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 
 public class TestUtils {
@@ -19,6 +26,28 @@ public class TestUtils {
 	private boolean debug = false;  // if true prints on console the errors and ASTs
 	private boolean quiet = false;  // if true hides the automatic error printing by ANTLR
 	private boolean visual = false; // if true uses the visualSVM to run the code
+	private boolean decoded = false; // if true runs the code on the pre-decoded engine of the SVM
+	private boolean tiered = false;  // if true compiles every function to JVM bytecode on its first call
+	private int memory = 0;          // if not 0 the initial memory size of the SVM
+	private boolean objectFile = false; // if true runs the code loaded from a binary object file
+	private boolean streamed = false;   // if true generates the code through the streaming assembly writer
+	private int liftBudget = -2;        // if not -2 the extra parameters allowed to a lifted function (-1 disables lifting)
+	private int inlineBudget = -1;      // if not -1 the size budget of the inliner (0 disables inlining)
+	private boolean peephole = true;    // if false the generated code is not optimized by the peephole pass
+	private boolean display = false;    // if true non-local names are reached through the display of the SVM
+	private boolean fused = false;      // if true symbol table and type checking are done in a single visit
+	private CompilationContext context; // state of the last compilation
+	public Set<String> compiledFunctions = Set.of();
+	public Map<String,String> failedFunctions = Map.of(); // functions the JIT failed to compile in the last execution
+	public int collections = 0; // garbage collections run by the last execution
+	public int memorySize = 0;  // memory size of the SVM at the end of the last execution
+	public List<InlineCache> inlineCaches = List.of(); // method call sites of the last (pre-decoded) execution
+	public Map<String,Integer> superinstructions = Map.of(); // fused sites of the last (pre-decoded) execution
+	public int symbols = 0; // distinct identifiers of the last compilation
+	public int arrowTypes = 0; // distinct function and method types of the last compilation
+	public int liftedFunctions = 0; // nested functions lifted by the last compilation
+	public int inlinedCalls = 0; // calls inlined by the last compilation
+	public int devirtualizedCalls = 0; // method calls compiled as direct calls by the last compilation
 
 	public TestUtils debug() {
 		this.debug = true;
@@ -35,13 +64,59 @@ public class TestUtils {
 		return this;
 	}
 
-	public List<String> compileSourceAndRun (final String code) throws TypeException {
-		CharStream charsASM = CharStreams.fromString(compileSource(code));
-		SVMLexer lexerASM = new SVMLexer(charsASM);
-		CommonTokenStream tokensASM = new CommonTokenStream(lexerASM);
-		SVMParser parserASM = new SVMParser(tokensASM);
+	public TestUtils decoded() {
+		this.decoded = true;
+		return this;
+	}
 
-		parserASM.assembly();
+	public TestUtils tiered() {
+		this.tiered = true;
+		return this;
+	}
+
+	public TestUtils objectFile() {
+		this.objectFile = true;
+		return this;
+	}
+
+	public TestUtils streamed() {
+		this.streamed = true;
+		return this;
+	}
+
+	public TestUtils liftBudget(int parameters) {
+		this.liftBudget = parameters;
+		return this;
+	}
+
+	public TestUtils inlineBudget(int nodes) {
+		this.inlineBudget = nodes;
+		return this;
+	}
+
+	public TestUtils noPeephole() {
+		this.peephole = false;
+		return this;
+	}
+
+	public TestUtils display() {
+		this.display = true;
+		return this;
+	}
+
+	public TestUtils fused() {
+		this.fused = true;
+		return this;
+	}
+
+	public TestUtils memory(int words) {
+		this.memory = words;
+		return this;
+	}
+
+	public List<String> compileSourceAndRun (final String code) throws TypeException {
+		Node ast = analyze(code);
+		Code program = streamed ? null : new CodeGenerationASTVisitor(context, debug).visit(ast);
 
 		ByteArrayOutputStream baos = new ByteArrayOutputStream();;
 
@@ -49,23 +124,79 @@ public class TestUtils {
 		Collections.addAll(source, code.split("\r?\n"));
 
 		if(visual) {
+			CharStream charsASM = CharStreams.fromString(program.toString());
+			SVMLexer lexerASM = new SVMLexer(charsASM);
+			CommonTokenStream tokensASM = new CommonTokenStream(lexerASM);
+			SVMParser parserASM = new SVMParser(tokensASM);
+
+			parserASM.assembly();
+
 			visualsvm.ExecuteVM vm = new visualsvm.ExecuteVM(parserASM.code, parserASM.sourceMap, source);
 			vm.cpu();
 		} else {
-			ExecuteVM vm = new ExecuteVM(parserASM.code);
+			ObjectFile assembled = streamed ? assembleStreamed(ast) : program.assemble();
+			devirtualizedCalls = context.devirtualizedCalls;
+			ExecuteVM vm;
+			if(objectFile) {
+				try {
+					Path file = Files.createTempFile("fool", ".svm");
+					assembled.write(file);
+					vm = new ExecuteVM(ObjectFile.load(file));
+					Files.delete(file);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			} else {
+				vm = new ExecuteVM(assembled);
+			}
+			if(memory > 0) vm.memory(memory);
+			if(decoded) vm.decoded();
+			if(tiered) vm.tiered(assembled.labels, 1);
 			PrintStream old = System.out;
 			PrintStream newps = new PrintStream(baos);
 			System.setOut(newps);
 			vm.cpu();  // executing
 			newps.flush();  // flushing the output
 			System.setOut(old);
+			compiledFunctions = vm.compiledFunctions();
+			failedFunctions = vm.failedFunctions();
+			// generated code rejected by the JVM is a bug of the JIT, even if the interpreter gets the right output
+			if(!failedFunctions.isEmpty()) throw new IllegalStateException("JIT compilation failed: " + failedFunctions);
+			collections = vm.collections();
+			memorySize = vm.memorySize();
+			inlineCaches = vm.inlineCaches();
+			superinstructions = vm.superinstructions();
 		}
 
 		// Using "\r?\n" to be compatible with Windows
 		return Arrays.stream(baos.toString().split("\r?\n")).toList();
 	}
 
+	// the generated assembly, as a textual dump
 	public String compileSource (final String code) throws TypeException {
+		Code program = compileProgram(code);
+		return program == null ? null : program.toString();
+	}
+
+	public Code compileProgram (final String code) throws TypeException {
+		Node ast = analyze(code);
+		if (ast == null) return null;
+		Code program = new CodeGenerationASTVisitor(context, debug).visit(ast);
+		devirtualizedCalls = context.devirtualizedCalls;
+		return program;
+	}
+
+	// streams the assembly through a writer and assembles it back with the SVM parser
+	private ObjectFile assembleStreamed(final Node ast) {
+		StringWriter asm = new StringWriter();
+		new CodeGenerationASTVisitor(context, asm).visit(ast);
+		svm.SVMParser parserASM = new svm.SVMParser(new CommonTokenStream(new svm.SVMLexer(CharStreams.fromString(asm.toString()))));
+		parserASM.assembly();
+		return parserASM.objectFile();
+	}
+
+	// front end: returns the enriched AST, or null if there were errors
+	private Node analyze (final String code) throws TypeException {
 		PrintStream old = null;
 		PrintStream newps = null;
 		if(quiet) {
@@ -76,7 +207,7 @@ public class TestUtils {
 		}
 
 		err = new TestErrors();
-		FOOLlib.typeErrors = 0;
+		context = new CompilationContext();
 
 		CharStream chars = CharStreams.fromString(code);
 		FOOLLexer lexer = new FOOLLexer(chars);
@@ -88,38 +219,69 @@ public class TestUtils {
 		if(debug) System.out.println("You had " + lexer.lexicalErrors + " lexical errors and " + parser.getNumberOfSyntaxErrors() + " syntax errors.\n");
 
 		if(debug) System.out.println("Generating AST.");
-		ASTGenerationSTVisitor visitor = new ASTGenerationSTVisitor(debug);
+		ASTGenerationSTVisitor visitor = new ASTGenerationSTVisitor(context, debug);
 		Node ast = visitor.visit(st);
+		symbols = context.symbols.size();
+
+		int stErrors;
+		TypeNode mainType;
+		if(fused) {
+			if(debug) System.out.println("\nEnriching AST via symbol table and checking types.");
+			SemanticAnalysisASTVisitor analysisVisitor = new SemanticAnalysisASTVisitor(context, debug);
+			mainType = analysisVisitor.visit(ast);
+			stErrors = analysisVisitor.stErrors();
+			arrowTypes = context.types.arrows();
+			if(debug) System.out.println("You had " + stErrors + " symbol table errors.\n");
+		} else {
+			if(debug) System.out.println("\nEnriching AST via symbol table.");
+			SymbolTableASTVisitor symtableVisitor = new SymbolTableASTVisitor(context, debug);
+			symtableVisitor.visit(ast);
+			stErrors = symtableVisitor.stErrors;
+			if(debug) System.out.println("You had " + stErrors + " symbol table errors.\n");
+			arrowTypes = context.types.arrows();
 
-		if(debug) System.out.println("\nEnriching AST via symbol table.");
-		SymbolTableASTVisitor symtableVisitor = new SymbolTableASTVisitor(debug);
-		symtableVisitor.visit(ast);
-		if(debug) System.out.println("You had " + symtableVisitor.stErrors + " symbol table errors.\n");
+			if(debug) {
+				System.out.println("Visualizing Enriched AST.");
+				new PrintEASTVisitor().visit(ast);
+			}
 
-		if(debug) {
-			System.out.println("Visualizing Enriched AST.");
-			new PrintEASTVisitor().visit(ast);
+			if(debug) System.out.println("\nChecking Types.");
+			TypeCheckEASTVisitor typeCheckVisitor = new TypeCheckEASTVisitor(context, debug);
+			mainType = typeCheckVisitor.visit(ast);
 		}
-
-		if(debug) System.out.println("\nChecking Types.");
-		TypeCheckEASTVisitor typeCheckVisitor = new TypeCheckEASTVisitor(debug);
-		TypeNode mainType = typeCheckVisitor.visit(ast);
 		if(debug) {
 			System.out.print("Type of main program expression is: ");
 			new PrintEASTVisitor().visit(mainType);
-			System.out.println("You had " + FOOLlib.typeErrors + " type checking errors.\n");
+			System.out.println("You had " + context.typeErrors + " type checking errors.\n");
 		}
 
-		int frontEndErrors = lexer.lexicalErrors + parser.getNumberOfSyntaxErrors() + symtableVisitor.stErrors + FOOLlib.typeErrors;
+		int frontEndErrors = lexer.lexicalErrors + parser.getNumberOfSyntaxErrors() + stErrors + context.typeErrors;
 		if(debug) System.out.println("You had a total of " + frontEndErrors + " front-end errors.\n");
 
 		err.lexerErrors = lexer.lexicalErrors;
 		err.parserErrors = parser.getNumberOfSyntaxErrors();
-		err.symTableErrors = symtableVisitor.stErrors;
-		err.typeErrors = FOOLlib.typeErrors;
+		err.symTableErrors = stErrors;
+		err.typeErrors = context.typeErrors;
 
 		if(frontEndErrors > 0) return null; // make the test fail if compilation failed
 
+		if(debug) System.out.println("Lifting nested functions.");
+		if(liftBudget >= -1) context.liftBudget = liftBudget;
+		ast = new LambdaLiftingASTVisitor(context, debug).visit(ast);
+		liftedFunctions = context.liftedFunctions;
+		if(debug) System.out.println("You had " + context.liftedFunctions + " lifted functions.\n");
+
+		if(debug) System.out.println("Inlining small functions and methods.");
+		if(inlineBudget >= 0) context.inlineBudget = inlineBudget;
+		if(!peephole) context.peephole = null;
+		context.display = display;
+		ast = new InliningASTVisitor(context, debug).visit(ast);
+		inlinedCalls = context.inlinedCalls;
+		if(debug) System.out.println("You had " + context.inlinedCalls + " inlined calls.\n");
+
+		if(debug) System.out.println("Folding constant expressions.");
+		ast = new ConstantFoldingASTVisitor(debug).visit(ast);
+
 		if(debug) System.out.println("Generating code.");
 
 		if(quiet) {
@@ -128,7 +290,7 @@ public class TestUtils {
 			System.setErr(old);
 		}
 
-		return new CodeGenerationASTVisitor(debug).visit(ast);
+		return ast;
 	}
 
 	public static String compile(final String code) throws TypeException {
@@ -11,19 +11,21 @@ public class ExecuteVM {
 
 	private static final Font FONT = new Font(Font.MONOSPACED, Font.PLAIN, 12);
 
-	public static final int MEMSIZE = 10000;
-	public static final int CODESIZE = 10000;
+	public static final int MEMSIZE = 10000;  // default memory size
+	public static final int CODESIZE = 10000; // initial capacity of the assembler's code buffer
+	public static final int DISPLAY_SIZE = 32;  // nesting levels with an entry in the display
 
 	private final int[] code;
 	private final int[] memory;
 
 	private int ip = 0;
-	private int sp = MEMSIZE; // punta al top dello stack
+	private int sp; // punta al top dello stack
 
 	private int tm;
 	private int hp = 0;
 	private int ra;
-	private int fp = MEMSIZE;
+	private int fp;
+	private final int[] display = new int[DISPLAY_SIZE]; // per ogni nesting level il frame attivo a quel livello
 
 	private final JFrame frame;
 	private final JList<String> asmList;
@@ -40,10 +42,16 @@ public class ExecuteVM {
 	private final int[] sourceMap;
 
 	public ExecuteVM(int[] code, int[] sourceMap, List<String> source) {
+		this(code, sourceMap, source, MEMSIZE);
+	}
+
+	public ExecuteVM(int[] code, int[] sourceMap, List<String> source, int memSize) {
 
 		this.code = code;
 		this.sourceMap = sourceMap;
-		this.memory = new int[MEMSIZE];
+		this.memory = new int[memSize];
+		this.sp = memSize;
+		this.fp = memSize;
 
 		this.frame = new JFrame("FOOL Virtual Machine");
 		JPanel mainPanel = new JPanel();
@@ -183,10 +191,10 @@ public class ExecuteVM {
 
 	private void setMem() {
 		this.stackList.setListData(new Vector<>(
-				IntStream.range(0, MEMSIZE).mapToObj(x -> String.format("%5d: %s", x, x <= hp || x >= sp ? this.memory[x] : ""))
+				IntStream.range(0, memory.length).mapToObj(x -> String.format("%5d: %s", x, x <= hp || x >= sp ? this.memory[x] : ""))
 						.collect(Collectors.toList())));
 		this.heapList.setListData(new Vector<>(
-				IntStream.range(0, MEMSIZE).mapToObj(x -> String.format("%5d: %s", x, x <= hp || x >= sp ? this.memory[x] : ""))
+				IntStream.range(0, memory.length).mapToObj(x -> String.format("%5d: %s", x, x <= hp || x >= sp ? this.memory[x] : ""))
 						.collect(Collectors.toList())));
 	}
 
@@ -313,12 +321,50 @@ public class ExecuteVM {
 				hp = pop();
 				break;
 			case SVMParser.PRINT:
-				final String output = sp == MEMSIZE ? "EMPTY STACK" : Integer.toString(memory[sp]);
+				final String output = sp == memory.length ? "EMPTY STACK" : Integer.toString(memory[sp]);
 				System.out.println(output);
 				this.outputText.append(output + "\n");
 				break;
 			case SVMParser.HALT:
 				return false;
+			case SVMParser.DUP:
+				push(memory[sp]);
+				break;
+			case SVMParser.SWAP:
+				v1 = pop();
+				v2 = pop();
+				push(v1);
+				push(v2);
+				break;
+			case SVMParser.ADDI:
+				v1 = fetch();
+				push(pop() + v1);
+				break;
+			case SVMParser.MULI:
+				v1 = fetch();
+				push(pop() * v1);
+				break;
+			case SVMParser.POPN:
+				sp += fetch();
+				break;
+			case SVMParser.CALL:
+				address = fetch();
+				ra = ip;
+				ip = address;
+				break;
+			case SVMParser.RET:
+				ip = ra;
+				break;
+			case SVMParser.ENTER:
+				fp = sp;
+				push(ra);
+				break;
+			case SVMParser.LOADDISPLAY:
+				push(display[fetch()]);
+				break;
+			case SVMParser.STOREDISPLAY:
+				display[fetch()] = pop();
+				break;
 		}
 		if (this.sp <= this.hp) {
 			System.out.println("Segmentation fault");
@@ -12,10 +12,15 @@ grammar SVM;
 	public int[] code = new int[ExecuteVM.CODESIZE];
 	public int[] sourceMap = new int[ExecuteVM.CODESIZE];
 	private int i = 0;
-	private Map<String,Integer> labelDef = new HashMap<>();
+	public Map<String,Integer> labelDef = new HashMap<>();
+	public Map<Integer,int[]> stackMaps = new HashMap<>(); // return address -> stack map for the garbage collector
 	private Map<Integer,String> labelRef = new HashMap<>();
 	private void codem(int line, int ... c) {
    	for (int x : c) {
+   		if (i == code.length) { // il buffer del codice cresce
+   			this.code = Arrays.copyOf(code, 2*code.length);
+   			this.sourceMap = Arrays.copyOf(sourceMap, 2*sourceMap.length);
+   		}
    		this.code[i] = x;
    		this.sourceMap[i] = line-1;
    		i++;
@@ -32,7 +37,7 @@ assembly: instruction* EOF 	{ for (Integer j: labelRef.keySet())
 
 instruction:
         t=PUSH n=INTEGER       { codem($t.line, PUSH, Integer.parseInt($n.text)); } //push NUMBER on the stack
-	  | t=PUSH l=LABEL         { codem($t.line, PUSH); labelRef.put(i++,$l.text); } //push the location address pointed by LABEL on the stack
+	  | t=PUSH l=LABEL         { codem($t.line, PUSH); labelRef.put(i,$l.text); codem($t.line, 0); } //push the location address pointed by LABEL on the stack
 	  | t=POP                  { codem($t.line, POP); } //pop the top of the stack
 	  | t=ADD	               { codem($t.line, ADD); } //replace the two values on top of the stack with their sum
 	  | t=SUB	               { codem($t.line, SUB); } //pop the two values v1 and v2 (respectively) and push v2-v1
@@ -41,9 +46,10 @@ instruction:
 	  | t=STOREW               { codem($t.line, STOREW); } //pop two values: the second one is written at the memory address pointed by the first one
 	  | t=LOADW                { codem($t.line, LOADW); } //read the content of the memory cell pointed by the top of the stack and replace the top of the stack with such value
 	  | l=LABEL COL            { labelDef.put($l.text, i); } //LABEL points at the location of the subsequent instruction
-	  | t=BRANCH l=LABEL       { codem($t.line, BRANCH); labelRef.put(i++,$l.text); } //jump at the instruction pointed by LABEL
-	  | t=BRANCHEQ l=LABEL     { codem($t.line, BRANCHEQ); labelRef.put(i++,$l.text); } //pop two values and jump if they are equal
-	  | t=BRANCHLESSEQ l=LABEL { codem($t.line, BRANCHLESSEQ); labelRef.put(i++,$l.text); } //pop two values and jump if the second one is less or equal to the first one
+	  | GCMAP (v+=INTEGER)+    { stackMaps.put(i, $v.stream().mapToInt(t -> Integer.parseInt(t.getText())).toArray()); } //stack map of the call returning at the subsequent instruction
+	  | t=BRANCH l=LABEL       { codem($t.line, BRANCH); labelRef.put(i,$l.text); codem($t.line, 0); } //jump at the instruction pointed by LABEL
+	  | t=BRANCHEQ l=LABEL     { codem($t.line, BRANCHEQ); labelRef.put(i,$l.text); codem($t.line, 0); } //pop two values and jump if they are equal
+	  | t=BRANCHLESSEQ l=LABEL { codem($t.line, BRANCHLESSEQ); labelRef.put(i,$l.text); codem($t.line, 0); } //pop two values and jump if the second one is less or equal to the first one
 	  | t=JS                   { codem($t.line, JS); } //pop one value from the stack: copy the instruction pointer in the RA register and jump to the popped value
 	  | t=LOADRA               { codem($t.line, LOADRA); } //push in the stack the content of the RA register
 	  | t=STORERA              { codem($t.line, STORERA); } //pop the top of the stack and copy it in the RA register
@@ -56,6 +62,16 @@ instruction:
 	  | t=STOREHP              { codem($t.line, STOREHP); } //pop the top of the stack and copy it in the HP register
 	  | t=PRINT                { codem($t.line, PRINT); } //visualize the top of the stack without removing it
 	  | t=HALT                 { codem($t.line, HALT); } //terminate the execution
+	  | t=DUP                  { codem($t.line, DUP); } //push a copy of the top of the stack
+	  | t=SWAP                 { codem($t.line, SWAP); } //exchange the two values on top of the stack
+	  | t=ADDI n=INTEGER       { codem($t.line, ADDI, Integer.parseInt($n.text)); } //add NUMBER to the top of the stack
+	  | t=MULI n=INTEGER       { codem($t.line, MULI, Integer.parseInt($n.text)); } //multiply the top of the stack by NUMBER
+	  | t=POPN n=INTEGER       { codem($t.line, POPN, Integer.parseInt($n.text)); } //pop NUMBER values from the stack
+	  | t=CALL l=LABEL         { codem($t.line, CALL); labelRef.put(i,$l.text); codem($t.line, 0); } //copy the address of the subsequent instruction in the RA register and jump at the instruction pointed by LABEL
+	  | t=RET                  { codem($t.line, RET); } //jump at the address contained in the RA register
+	  | t=ENTER                { codem($t.line, ENTER); } //copy in the FP register the current stack pointer, then push the content of the RA register
+	  | t=LOADDISPLAY n=INTEGER  { codem($t.line, LOADDISPLAY, Integer.parseInt($n.text)); } //push the frame address stored in the display at nesting level NUMBER
+	  | t=STOREDISPLAY n=INTEGER { codem($t.line, STOREDISPLAY, Integer.parseInt($n.text)); } //pop the top of the stack and store it in the display at nesting level NUMBER
 	  ;
 
 /*------------------------------------------------------------------
@@ -85,6 +101,17 @@ LOADHP	 	: 'lhp' ;
 STOREHP	 	: 'shp' ;
 PRINT	 	: 'print' ;
 HALT	 	: 'halt' ;
+DUP	 		: 'dup' ;
+SWAP	 	: 'swap' ;
+ADDI	 	: 'addi' ;
+MULI	 	: 'muli' ;
+POPN	 	: 'popn' ;
+CALL	 	: 'call' ;
+RET	 		: 'ret' ;
+ENTER	 	: 'enter' ;
+LOADDISPLAY : 'ldisp' ;
+STOREDISPLAY: 'sdisp' ;
+GCMAP		: 'gcmap' ;
 COL	 		: ':' ;
 
 LABEL	 	: ('a'..'z'|'A'..'Z')('a'..'z' | 'A'..'Z' | '0'..'9')* ;